@@ -0,0 +1,195 @@
+package org.esa.beam.meris.case2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Computes the retrieval of a tile on a sparse grid and interpolates the results in between.
+ * <p/>
+ * The retrieval is first performed on the nodes of a grid with the given step. A grid cell is
+ * interpolated bilinearly if
+ * <ul>
+ * <li>the flags of all four corners are equal and the corners are not invalid,</li>
+ * <li>every result of the corners deviates from the mean of the corners by at most the tolerance
+ * (relative), and</li>
+ * <li>no pixel of the cell is invalid and the reflectances of every pixel deviate from the bilinear
+ * interpolation of the corner reflectances by at most the tolerance (relative).</li>
+ * </ul>
+ * Otherwise the retrieval is performed for every pixel of the cell. Interpolated pixels are marked by
+ * the {@link org.esa.beam.meris.case2.water.WaterAlgorithm#INTERPOLATED_BIT_INDEX} flag, computed pixels of
+ * refined cells by the {@link org.esa.beam.meris.case2.water.WaterAlgorithm#REFINED_BIT_INDEX} flag.
+ * Because the input spectra are checked for every pixel, the interpolation error is bounded by the
+ * tolerance as long as the retrieval is smooth with respect to its inputs.
+ *
+ * @author agent
+ */
+class AdaptiveGridRetrieval {
+
+    /**
+     * Performs the retrieval of a single pixel of a tile.
+     */
+    interface PixelRetrieval {
+
+        /**
+         * @param x          the x-coordinate of the pixel
+         * @param y          the y-coordinate of the pixel
+         * @param pixelIndex the index of the pixel within the tile arrays
+         */
+        void compute(int x, int y, int pixelIndex);
+    }
+
+    private final int gridStep;
+    private final double tolerance;
+    private final AtomicLong computedPixelCount;
+    private final AtomicLong interpolatedPixelCount;
+
+    AdaptiveGridRetrieval(int gridStep, double tolerance) {
+        this.gridStep = gridStep;
+        this.tolerance = tolerance;
+        computedPixelCount = new AtomicLong();
+        interpolatedPixelCount = new AtomicLong();
+    }
+
+    long getComputedPixelCount() {
+        return computedPixelCount.get();
+    }
+
+    long getInterpolatedPixelCount() {
+        return interpolatedPixelCount.get();
+    }
+
+    /**
+     * Computes the target data of a tile.
+     *
+     * @param tileX      the x-coordinate of the upper left tile pixel
+     * @param tileY      the y-coordinate of the upper left tile pixel
+     * @param width      the width of the tile
+     * @param height     the height of the tile
+     * @param reflec     the input reflectances, indexed by band and pixel index
+     * @param invalid    the invalid state of each pixel
+     * @param retrieval  the retrieval of single pixels, writing into <code>targetData</code> and <code>flags</code>
+     * @param targetData the target data, indexed by target sample index and pixel index; arrays may be {@code null}
+     * @param flags      the flags of each pixel
+     */
+    void compute(int tileX, int tileY, int width, int height, float[][] reflec, boolean[] invalid,
+                 PixelRetrieval retrieval, float[][] targetData, byte[] flags) {
+        final int[] nodesX = createNodes(width);
+        final int[] nodesY = createNodes(height);
+        final boolean[] done = new boolean[width * height];
+        for (int nodeY : nodesY) {
+            for (int nodeX : nodesX) {
+                final int index = nodeY * width + nodeX;
+                retrieval.compute(tileX + nodeX, tileY + nodeY, index);
+                done[index] = true;
+            }
+        }
+        long computed = nodesX.length * nodesY.length;
+        long interpolated = 0;
+
+        for (int j = 0; j < nodesY.length - 1; j++) {
+            for (int i = 0; i < nodesX.length - 1; i++) {
+                final int x0 = nodesX[i];
+                final int x1 = nodesX[i + 1];
+                final int y0 = nodesY[j];
+                final int y1 = nodesY[j + 1];
+                final boolean smooth = isSmooth(x0, y0, x1, y1, width, reflec, invalid, targetData, flags);
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        final int index = y * width + x;
+                        if (done[index]) {
+                            continue;
+                        }
+                        if (smooth) {
+                            interpolate(x0, y0, x1, y1, x, y, width, targetData);
+                            flags[index] = (byte) (flags[y0 * width + x0] | (1 << INTERPOLATED_BIT_INDEX));
+                            interpolated++;
+                        } else {
+                            retrieval.compute(tileX + x, tileY + y, index);
+                            flags[index] = (byte) (flags[index] | (1 << REFINED_BIT_INDEX));
+                            computed++;
+                        }
+                        done[index] = true;
+                    }
+                }
+            }
+        }
+        computedPixelCount.addAndGet(computed);
+        interpolatedPixelCount.addAndGet(interpolated);
+    }
+
+    private int[] createNodes(int length) {
+        final int count = (length - 1 + gridStep - 1) / gridStep + 1;
+        final int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = Math.min(i * gridStep, length - 1);
+        }
+        return nodes;
+    }
+
+    private boolean isSmooth(int x0, int y0, int x1, int y1, int width, float[][] reflec, boolean[] invalid,
+                             float[][] targetData, byte[] flags) {
+        final int i00 = y0 * width + x0;
+        final int i10 = y0 * width + x1;
+        final int i01 = y1 * width + x0;
+        final int i11 = y1 * width + x1;
+        final byte flag = flags[i00];
+        if ((flag & (1 << INVALID_BIT_INDEX)) != 0 || flag != flags[i10] || flag != flags[i01] || flag != flags[i11]) {
+            return false;
+        }
+        for (float[] data : targetData) {
+            if (data != null && !isWithinTolerance(data[i00], data[i10], data[i01], data[i11])) {
+                return false;
+            }
+        }
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                final int index = y * width + x;
+                if (invalid[index]) {
+                    return false;
+                }
+                for (float[] band : reflec) {
+                    final double expected = bilinear(band[i00], band[i10], band[i01], band[i11],
+                                                     x0, y0, x1, y1, x, y);
+                    if (!(Math.abs(band[index] - expected) <= tolerance * Math.abs(expected))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isWithinTolerance(float v00, float v10, float v01, float v11) {
+        final boolean isNaN = Float.isNaN(v00);
+        if (isNaN || Float.isNaN(v10) || Float.isNaN(v01) || Float.isNaN(v11)) {
+            return isNaN && Float.isNaN(v10) && Float.isNaN(v01) && Float.isNaN(v11);
+        }
+        final double mean = (v00 + v10 + v01 + v11) / 4.0;
+        final double maxDiff = tolerance * Math.abs(mean);
+        return Math.abs(v00 - mean) <= maxDiff && Math.abs(v10 - mean) <= maxDiff &&
+               Math.abs(v01 - mean) <= maxDiff && Math.abs(v11 - mean) <= maxDiff;
+    }
+
+    private static void interpolate(int x0, int y0, int x1, int y1, int x, int y, int width, float[][] targetData) {
+        final int i00 = y0 * width + x0;
+        final int i10 = y0 * width + x1;
+        final int i01 = y1 * width + x0;
+        final int i11 = y1 * width + x1;
+        final int index = y * width + x;
+        for (float[] data : targetData) {
+            if (data != null) {
+                data[index] = (float) bilinear(data[i00], data[i10], data[i01], data[i11], x0, y0, x1, y1, x, y);
+            }
+        }
+    }
+
+    private static double bilinear(double v00, double v10, double v01, double v11,
+                                   int x0, int y0, int x1, int y1, int x, int y) {
+        final double wx = x1 > x0 ? (double) (x - x0) / (x1 - x0) : 0.0;
+        final double wy = y1 > y0 ? (double) (y - y0) / (y1 - y0) : 0.0;
+        final double v0 = v00 + wx * (v10 - v00);
+        final double v1 = v01 + wx * (v11 - v01);
+        return v0 + wy * (v1 - v0);
+    }
+}
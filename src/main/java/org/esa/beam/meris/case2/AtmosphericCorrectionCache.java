@@ -0,0 +1,206 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A directory holding the outputs of the atmospheric correction, keyed by the source product and the
+ * parameters of the correction, so water-only reruns can skip the correction.
+ * <p/>
+ * Each entry is a BEAM-DIMAP product in a directory named by the key. Its bands are stored as raw images
+ * which are read line by line. An entry is written to a temporary directory first and renamed when complete,
+ * so concurrent processes never read a partial entry.
+ *
+ * @author agent
+ */
+final class AtmosphericCorrectionCache {
+
+    private static final String FORMAT_NAME = "BEAM-DIMAP";
+    private static final String PRODUCT_FILE_NAME = "ac.dim";
+
+    private final File cacheDir;
+
+    AtmosphericCorrectionCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Creates the key of an atmospheric correction. Files, i.e. the source product and alternative nets, are
+     * identified by their path, size and time of last modification. As a subset of a product has the file of
+     * the product, the key includes the scene size, the start and end time and, if the product is geo-coded,
+     * the location of the first and the last pixel.
+     *
+     * @param sourceProduct the source product of the correction
+     * @param parameters    the parameters of the correction
+     *
+     * @return the key
+     */
+    static String createKey(Product sourceProduct, Map<String, Object> parameters) {
+        final StringBuilder sb = new StringBuilder();
+        final File sourceFile = sourceProduct.getFileLocation();
+        if (sourceFile != null) {
+            appendFile(sb, sourceFile);
+        } else {
+            sb.append(sourceProduct.getName());
+        }
+        final int width = sourceProduct.getSceneRasterWidth();
+        final int height = sourceProduct.getSceneRasterHeight();
+        sb.append(':').append(width).append('x').append(height);
+        sb.append(':').append(format(sourceProduct.getStartTime()));
+        sb.append(':').append(format(sourceProduct.getEndTime()));
+        final GeoCoding geoCoding = sourceProduct.getGeoCoding();
+        if (geoCoding != null && geoCoding.canGetGeoPos()) {
+            appendGeoPos(sb, geoCoding, 0.5f, 0.5f);
+            appendGeoPos(sb, geoCoding, width - 0.5f, height - 0.5f);
+        }
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            sb.append(';').append(entry.getKey()).append('=');
+            if (entry.getValue() instanceof File) {
+                appendFile(sb, (File) entry.getValue());
+            } else {
+                sb.append(entry.getValue());
+            }
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+            final StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(String.format("%02x", b & 0xFF));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendFile(StringBuilder sb, File file) {
+        sb.append(file.getAbsolutePath()).append(':').append(file.length()).append(':').append(file.lastModified());
+    }
+
+    private static void appendGeoPos(StringBuilder sb, GeoCoding geoCoding, float x, float y) {
+        final GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(x, y), null);
+        sb.append(':').append(geoPos.lat).append(',').append(geoPos.lon);
+    }
+
+    private static String format(ProductData.UTC time) {
+        return time != null ? time.format() : "";
+    }
+
+    /**
+     * @param key the key of the entry
+     *
+     * @return the cached output, or {@code null} if there is none
+     *
+     * @throws IOException if the entry could not be read
+     */
+    Product get(String key) throws IOException {
+        final File productFile = new File(new File(cacheDir, key), PRODUCT_FILE_NAME);
+        if (!productFile.isFile()) {
+            return null;
+        }
+        return ProductIO.readProduct(productFile);
+    }
+
+    /**
+     * Writes the output of the correction of the whole scene as a new entry, which can be read by
+     * {@link #get(String)} afterwards. The progress is logged. If the write fails or the calling thread is
+     * interrupted, the partial entry is deleted.
+     *
+     * @param key       the key of the entry
+     * @param acProduct the output of the correction
+     * @param logger    the logger of the progress
+     *
+     * @return the directory of the entry
+     *
+     * @throws IOException if the entry could not be written
+     */
+    File put(String key, Product acProduct, Logger logger) throws IOException {
+        final ProgressMonitor pm = new LoggingProgressMonitor(logger, key);
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + cacheDir);
+        }
+        final File tempDir = new File(cacheDir, key + ".tmp-" + System.nanoTime());
+        try {
+            GPF.writeProduct(acProduct, new File(tempDir, PRODUCT_FILE_NAME), FORMAT_NAME, false, pm);
+        } catch (RuntimeException e) {
+            // also thrown if cancelled
+            deleteTree(tempDir);
+            throw new IOException("Cannot write cache entry " + key, e);
+        }
+        final File entryDir = new File(cacheDir, key);
+        if (!tempDir.renameTo(entryDir)) {
+            // written concurrently by another process
+            deleteTree(tempDir);
+        }
+        if (!new File(entryDir, PRODUCT_FILE_NAME).isFile()) {
+            throw new IOException("Cannot write cache entry " + entryDir);
+        }
+        return entryDir;
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Logs the progress of a write in steps of 10 percent and cancels it when the writing thread is
+     * interrupted.
+     */
+    private static final class LoggingProgressMonitor extends NullProgressMonitor {
+
+        private final Logger logger;
+        private final String key;
+        private int totalWork;
+        private int work;
+        private int loggedPercent;
+
+        private LoggingProgressMonitor(Logger logger, String key) {
+            this.logger = logger;
+            this.key = key;
+        }
+
+        @Override
+        public void beginTask(String taskName, int totalWork) {
+            this.totalWork = totalWork;
+        }
+
+        @Override
+        public void worked(int work) {
+            this.work += work;
+            final int percent = totalWork > 0 ? (int) (100L * this.work / totalWork) / 10 * 10 : 0;
+            if (percent > loggedPercent) {
+                loggedPercent = percent;
+                logger.info(String.format("Writing atmospheric correction to cache %s: %d%%", key, percent));
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return Thread.currentThread().isInterrupted();
+        }
+    }
+}
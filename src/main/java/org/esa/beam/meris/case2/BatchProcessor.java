@@ -0,0 +1,200 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.media.jai.JAI;
+import java.awt.Dimension;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes a list of products with the IOP retrieval of {@link Case2IOPOperator}, optimised for the time to
+ * complete the whole batch rather than the latency of a single product.
+ * <p/>
+ * All products share one water retrieval, so the neural nets are read once. The tiles of all products being
+ * processed are computed by the single JAI tile scheduler, whose parallelism bounds the number of worker
+ * threads. Half of the memory budget is given to the JAI tile cache. The other half is used for admission:
+ * a product is started only when the estimated memory of its tile rows in flight fits into the remaining
+ * budget, so the products compete for neither more threads nor more memory than configured.
+ *
+ * @author agent
+ */
+public class BatchProcessor {
+
+    private static final int DEFAULT_TILE_HEIGHT = 512;
+    private static final long MB = 1024L * 1024L;
+
+    private final File outputDir;
+    private final String formatName;
+    private final int memoryBudgetMB;
+    private final Semaphore memoryPermits;
+    private final SharedWaterRetrieval sharedRetrieval;
+    private final Logger logger;
+
+    /**
+     * @param outputDir      the directory of the output products
+     * @param formatName     the name of the output format
+     * @param workerCount    the number of tiles computed at the same time, for all products together
+     * @param memoryBudgetMB the memory budget in MB
+     */
+    public BatchProcessor(File outputDir, String formatName, int workerCount, int memoryBudgetMB) {
+        if (workerCount < 1 || memoryBudgetMB < 2) {
+            throw new IllegalArgumentException("workerCount < 1 || memoryBudgetMB < 2");
+        }
+        this.outputDir = outputDir;
+        this.formatName = formatName;
+        this.memoryBudgetMB = memoryBudgetMB / 2;
+        memoryPermits = new Semaphore(this.memoryBudgetMB);
+        sharedRetrieval = new SharedWaterRetrieval();
+        logger = BeamLogManager.getSystemLogger();
+        final JAI jai = JAI.getDefaultInstance();
+        jai.getTileScheduler().setParallelism(workerCount);
+        jai.getTileCache().setMemoryCapacity((memoryBudgetMB - this.memoryBudgetMB) * MB);
+    }
+
+    /**
+     * Processes the given products and returns when all are done. Failed products are logged and skipped.
+     *
+     * @param inputFiles the products to process
+     *
+     * @return the number of products processed successfully
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public int process(List<File> inputFiles) throws InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger successCount = new AtomicInteger();
+        // the number of products at the same time is bounded by the memory admission
+        final ExecutorService productExecutor = Executors.newCachedThreadPool();
+        try {
+            for (File inputFile : inputFiles) {
+                Product product = null;
+                final Case2IOPOperator operator = new Case2IOPOperator();
+                final Product targetProduct;
+                try {
+                    product = ProductIO.readProduct(inputFile);
+                    if (product == null) {
+                        logger.warning("No reader found for " + inputFile + ", skipped");
+                        continue;
+                    }
+                    operator.setParameterDefaultValues();
+                    operator.setSourceProduct("source", product);
+                    targetProduct = sharedRetrieval.createTargetProduct(operator);
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Failed to open " + inputFile, e);
+                    if (product != null) {
+                        product.dispose();
+                    }
+                    continue;
+                }
+                final Product sourceProduct = product;
+                final int permits = estimateMemoryMB(targetProduct);
+                memoryPermits.acquire(permits);
+                productExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final File outputFile = new File(outputDir, sourceProduct.getName() +
+                                                                    WatchFolderProcessor.OUTPUT_NAME_SUFFIX);
+                        try {
+                            GPF.writeProduct(targetProduct, outputFile, formatName, false, ProgressMonitor.NULL);
+                            successCount.incrementAndGet();
+                        } catch (Exception e) {
+                            logger.log(Level.SEVERE, "Failed to process " + sourceProduct.getName(), e);
+                        } finally {
+                            operator.dispose();
+                            sourceProduct.dispose();
+                            memoryPermits.release(permits);
+                        }
+                    }
+                });
+            }
+        } finally {
+            productExecutor.shutdown();
+            productExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        logger.info(String.format("Processed %d of %d products in %.1f s", successCount.get(), inputFiles.size(),
+                                  (System.currentTimeMillis() - startTime) / 1000.0));
+        return successCount.get();
+    }
+
+    /**
+     * Estimates the memory of a product as a row of tiles of all bands, for the source and the target data.
+     * A product exceeding the budget is given the whole budget and thus processed alone.
+     */
+    private int estimateMemoryMB(Product product) {
+        final Dimension tileSize = product.getPreferredTileSize();
+        final int tileHeight = tileSize != null ? tileSize.height : DEFAULT_TILE_HEIGHT;
+        final long bytes = 2L * product.getSceneRasterWidth() * tileHeight * product.getNumBands() * 4L;
+        return (int) Math.max(1, Math.min(memoryBudgetMB, (bytes + MB - 1) / MB));
+    }
+
+    /**
+     * Usage: <code>BatchProcessor &lt;productList&gt; &lt;outputDir&gt; [-f format] [-w workers]
+     * [-m memoryMB]</code>, where the product list is a text file holding one product path per line.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        String formatName = ProductIO.DEFAULT_FORMAT_NAME;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int memoryBudgetMB = (int) (Runtime.getRuntime().maxMemory() / MB * 3 / 4);
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            if ("-f".equals(args[i])) {
+                formatName = args[++i];
+            } else if ("-w".equals(args[i])) {
+                workerCount = Integer.parseInt(args[++i]);
+            } else if ("-m".equals(args[i])) {
+                memoryBudgetMB = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        final BatchProcessor processor = new BatchProcessor(new File(args[1]), formatName, workerCount,
+                                                            memoryBudgetMB);
+        processor.process(readProductList(new File(args[0])));
+    }
+
+    private static List<File> readProductList(File listFile) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        final BufferedReader reader = new BufferedReader(new FileReader(listFile));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    files.add(new File(line));
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: BatchProcessor <productList> <outputDir> [-f format] [-w workers] [-m memoryMB]");
+    }
+}
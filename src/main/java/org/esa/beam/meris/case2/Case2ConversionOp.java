@@ -0,0 +1,242 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.meris.case2.water.EutrophicWater;
+import org.esa.beam.util.ProductUtils;
+
+import java.awt.Rectangle;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.esa.beam.meris.case2.MerisCase2BasisWaterOp.*;
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Recomputes the concentrations of an existing Case-2 product for new conversion parameters, without
+ * running the atmospheric correction or the neural nets again.
+ * <p/>
+ * The concentrations are power laws of the stored coefficients: <code>tsm</code> and <code>tsmFit</code>
+ * are derived from <code>bb_spm_443</code> and <code>bb_spm_443_Fit</code>, <code>chl_conc</code> and
+ * <code>chl_concFit</code> from <code>a_pig_443</code> and <code>a_pig_443_Fit</code>. For the
+ * regional algorithm K_min, Z90_max and Kd_490 depend on the coefficients only and are copied. The
+ * eutrophic algorithm scales <code>a_pig_443</code> with the chl conversion factor, therefore
+ * <code>a_pig_443</code>, <code>a_total_443</code>, K_min, Z90_max and Kd_490 are recomputed as well; the
+ * factor the source product was computed with must be given. All other bands are copied.
+ *
+ * @author agent
+ */
+@OperatorMetadata(alias = "Meris.Case2Conversion",
+                  description = "Recomputes the concentrations of a MERIS Case-2 product for new conversion parameters.",
+                  authors = "agent",
+                  copyright = "(c) 2010 by Brockmann Consult",
+                  version = "1.0",
+                  internal = true)
+public class Case2ConversionOp extends Operator {
+
+    @SourceProduct(alias = "case2Product", label = "Case-2 product")
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(defaultValue = "REGIONAL", valueSet = {"REGIONAL", "EUTROPHIC"},
+               description = "The algorithm the source product was computed with.")
+    private Case2AlgorithmEnum algorithm;
+
+    @Parameter(description = "Exponent for conversion from TSM to B_TSM. If not given, the default of the algorithm.")
+    private Double tsmConversionExponent;
+
+    @Parameter(description = "Factor for conversion from TSM to B_TSM. If not given, the default of the algorithm.")
+    private Double tsmConversionFactor;
+
+    @Parameter(description = "Exponent for conversion from A_PIG to CHL_CONC. If not given, the default of the algorithm.")
+    private Double chlConversionExponent;
+
+    @Parameter(description = "Factor for conversion from A_PIG to CHL_CONC. If not given, the default of the algorithm.")
+    private Double chlConversionFactor;
+
+    @Parameter(description = "Factor for conversion from A_PIG to CHL_CONC the source product was computed with. " +
+                             "Only used for the eutrophic algorithm. If not given, the default of the algorithm.")
+    private Double sourceChlConversionFactor;
+
+    private double tsmExponent;
+    private double tsmFactor;
+    private double chlExponent;
+    private double chlFactor;
+    private double sourceChlFactor;
+    private boolean eutrophic;
+    private boolean hasFitBands;
+    private EutrophicWater eutrophicWater;
+
+    @Override
+    public void initialize() throws OperatorException {
+        if (algorithm == Case2AlgorithmEnum.BOREAL) {
+            throw new OperatorException("The boreal algorithm has no conversion parameters.");
+        }
+        tsmExponent = getValue(tsmConversionExponent, algorithm.getDefaultTsmExponent());
+        tsmFactor = getValue(tsmConversionFactor, algorithm.getDefaultTsmFactor());
+        chlExponent = getValue(chlConversionExponent, algorithm.getDefaultChlExponent());
+        chlFactor = getValue(chlConversionFactor, algorithm.getDefaultChlFactor());
+        sourceChlFactor = getValue(sourceChlConversionFactor, algorithm.getDefaultChlFactor());
+        eutrophic = algorithm == Case2AlgorithmEnum.EUTROPHIC;
+
+        final Set<String> computedNames = new HashSet<String>();
+        addComputedBand(computedNames, BAND_NAME_TSM, BAND_NAME_BB_SPM);
+        addComputedBand(computedNames, BAND_NAME_CHL_CONC, BAND_NAME_A_PIGMENT);
+        hasFitBands = sourceProduct.containsBand(BAND_NAME_TSM_FIT);
+        if (hasFitBands) {
+            addComputedBand(computedNames, BAND_NAME_TSM_FIT, BAND_NAME_B_TSM_FIT);
+            addComputedBand(computedNames, BAND_NAME_CHL_CONC_FIT, BAND_NAME_A_PIG_FIT);
+        }
+        if (eutrophic) {
+            addComputedBand(computedNames, BAND_NAME_A_PIGMENT, BAND_NAME_A_GELBSTOFF, EutrophicWaterOp.BAND_NAME_A_BTSM);
+            addComputedBand(computedNames, BAND_NAME_A_TOTAL);
+            addComputedBand(computedNames, BAND_NAME_K_MIN);
+            addComputedBand(computedNames, BAND_NAME_Z90_MAX);
+            addComputedBand(computedNames, BAND_NAME_KD_490);
+            // the threshold is not used for the attenuation
+            eutrophicWater = new EutrophicWater(Double.NaN, tsmExponent, tsmFactor, chlExponent, chlFactor);
+        }
+
+        targetProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
+                                    sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        ProductUtils.copyFlagCodings(sourceProduct, targetProduct);
+        for (Band sourceBand : sourceProduct.getBands()) {
+            final String name = sourceBand.getName();
+            final Band targetBand;
+            if (computedNames.contains(name)) {
+                targetBand = targetProduct.addBand(name, sourceBand.getDataType());
+                ProductUtils.copyRasterDataNodeProperties(sourceBand, targetBand);
+            } else {
+                targetBand = ProductUtils.copyBand(name, sourceProduct, targetProduct, true);
+                if (sourceBand.getFlagCoding() != null) {
+                    targetBand.setSampleCoding(targetProduct.getFlagCodingGroup().get(sourceBand.getFlagCoding().getName()));
+                }
+            }
+        }
+        ProductUtils.copyMasks(sourceProduct, targetProduct);
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        final float[] bbSpm = getSourceSamples(BAND_NAME_BB_SPM, targetRectangle);
+        final float[] aPig = getSourceSamples(BAND_NAME_A_PIGMENT, targetRectangle);
+        final float[] tsm = new float[bbSpm.length];
+        final float[] chl = new float[bbSpm.length];
+        if (eutrophic) {
+            convertEutrophic(targetTiles, targetRectangle, bbSpm, aPig, tsm, chl);
+        } else {
+            for (int i = 0; i < bbSpm.length; i++) {
+                tsm[i] = (float) convert(bbSpm[i] / BTSM_TO_SPM_FACTOR, tsmFactor, tsmExponent);
+                chl[i] = (float) convert(aPig[i], chlFactor, chlExponent);
+            }
+        }
+        setTargetSamples(targetTiles, BAND_NAME_TSM, tsm);
+        setTargetSamples(targetTiles, BAND_NAME_CHL_CONC, chl);
+        checkForCancellation();
+
+        if (hasFitBands) {
+            // the fitted b_tsm and a_pig are stored without conversion factors
+            final float[] bTsmFit = getSourceSamples(BAND_NAME_B_TSM_FIT, targetRectangle);
+            final float[] aPigFit = getSourceSamples(BAND_NAME_A_PIG_FIT, targetRectangle);
+            for (int i = 0; i < bTsmFit.length; i++) {
+                tsm[i] = (float) convert(bTsmFit[i], tsmFactor, tsmExponent);
+                chl[i] = (float) convert(aPigFit[i], chlFactor, chlExponent);
+            }
+            setTargetSamples(targetTiles, BAND_NAME_TSM_FIT, tsm);
+            setTargetSamples(targetTiles, BAND_NAME_CHL_CONC_FIT, chl);
+        }
+    }
+
+    private void convertEutrophic(Map<Band, Tile> targetTiles, Rectangle rectangle, float[] bbSpm, float[] aPig,
+                                  float[] tsm, float[] chl) {
+        final float[] aGelbstoff = getSourceSamples(BAND_NAME_A_GELBSTOFF, rectangle);
+        final float[] aBtsm = getSourceSamples(EutrophicWaterOp.BAND_NAME_A_BTSM, rectangle);
+        final float[] aTotal = getSourceSamples(BAND_NAME_A_TOTAL, rectangle);
+        final float[] kMin = new float[bbSpm.length];
+        final float[] z90Max = new float[bbSpm.length];
+        final float[] kd490 = new float[bbSpm.length];
+        final double[] targetValues = new double[TARGET_COUNT];
+        for (int i = 0; i < bbSpm.length; i++) {
+            tsm[i] = (float) convert(bbSpm[i] / BTSM_TO_SPM_FACTOR, tsmFactor, tsmExponent);
+            // a_pig_443 holds the output of the net times the chl conversion factor
+            final double aPigNet = aPig[i] / sourceChlFactor;
+            chl[i] = (float) Math.pow(aPigNet, chlExponent);
+            final double newAPig = aPigNet * chlFactor;
+            aTotal[i] += (float) (newAPig - aPig[i]);
+            aPig[i] = (float) newAPig;
+
+            targetValues[TARGET_BB_SPM_INDEX] = bbSpm[i];
+            targetValues[TARGET_A_PIGMENT_INDEX] = newAPig;
+            targetValues[TARGET_A_GELBSTOFF_INDEX] = aGelbstoff[i];
+            targetValues[TARGET_A_BTSM_INDEX] = aBtsm[i];
+            eutrophicWater.computeAttenuation(targetValues);
+            kMin[i] = (float) targetValues[TARGET_K_MIN_INDEX];
+            z90Max[i] = (float) targetValues[TARGET_Z90_MAX_INDEX];
+            kd490[i] = (float) targetValues[TARGET_KD_490_INDEX];
+        }
+        setTargetSamples(targetTiles, BAND_NAME_A_PIGMENT, aPig);
+        setTargetSamples(targetTiles, BAND_NAME_A_TOTAL, aTotal);
+        setTargetSamples(targetTiles, BAND_NAME_K_MIN, kMin);
+        setTargetSamples(targetTiles, BAND_NAME_Z90_MAX, z90Max);
+        setTargetSamples(targetTiles, BAND_NAME_KD_490, kd490);
+    }
+
+    /**
+     * @return {@code factor * value^exponent}, evaluated as by the water algorithms
+     */
+    static double convert(double value, double factor, double exponent) {
+        return Math.exp(Math.log(factor) + Math.log(value) * exponent);
+    }
+
+    private static double getValue(Double value, double defaultValue) {
+        return value != null ? value : defaultValue;
+    }
+
+    private void addComputedBand(Set<String> computedNames, String name, String... requiredNames) {
+        if (!sourceProduct.containsBand(name)) {
+            throw new OperatorException(String.format("Missing required band '%s'.", name));
+        }
+        for (String requiredName : requiredNames) {
+            if (!sourceProduct.containsBand(requiredName)) {
+                throw new OperatorException(String.format("Missing required band '%s'.", requiredName));
+            }
+        }
+        computedNames.add(name);
+    }
+
+    private float[] getSourceSamples(String bandName, Rectangle rectangle) {
+        return getSourceTile(sourceProduct.getBand(bandName), rectangle).getSamplesFloat();
+    }
+
+    private void setTargetSamples(Map<Band, Tile> targetTiles, String bandName, float[] samples) {
+        final Tile targetTile = targetTiles.get(targetProduct.getBand(bandName));
+        if (targetTile != null) {
+            targetTile.setSamples(samples);
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(Case2ConversionOp.class);
+        }
+    }
+}
@@ -27,10 +27,15 @@ import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.meris.case2.water.WaterRetrieval;
 import org.esa.beam.util.ProductUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
 
 
 @OperatorMetadata(alias = "Meris.Case2Regional",
@@ -103,6 +108,14 @@ public class Case2IOPOperator extends Operator {
                notEmpty = true, notNull = true)
     private String cloudIceExpression;
 
+    @Parameter(label = "Atmospheric correction cache directory (optional)",
+               description = "The directory where the outputs of the atmospheric correction are cached. " +
+                             "Reruns with equal source product and atmospheric correction parameters read " +
+                             "the cached output instead of performing the correction. A missing output is " +
+                             "computed for the whole scene and written when the operator is initialised, " +
+                             "the processing then reads it from the cache.")
+    private File acCacheDir;
+
     ///////////  Case2WaterOp  ///////////////////////////
     ///////////
 
@@ -134,6 +147,12 @@ public class Case2IOPOperator extends Operator {
     @Parameter(defaultValue = "4.0", description = "Threshold to indicate Spectrum is Out of Scope.")
     private double spectrumOutOfScopeThreshold;
 
+    @Parameter(label = "Parameter sweep",
+               description = "Additional parameter sets 'chlConversionFactor:tsmConversionExponent:" +
+                             "spectrumOutOfScopeThreshold' applied to the same net outputs, see the regional " +
+                             "water operator. Only supported by the regional algorithm.")
+    private String[] parameterSweep;
+
     @Parameter(defaultValue = "agc_flags.INVALID",
                description = "Expression defining pixels not considered for processing.")
     private String invalidPixelExpression;
@@ -146,36 +165,49 @@ public class Case2IOPOperator extends Operator {
                description = "The file of the forward water neural net to be used instead of the default.")
     private File forwardWaterNnFile;
 
+    private WaterRetrieval waterRetrieval;
+    private Map<String, Object> waterRetrievalParameters;
+    private Product cachedAcProduct;
+
     @Override
     public void initialize() throws OperatorException {
+        if (parameterSweep != null && parameterSweep.length > 0 && !Case2AlgorithmEnum.REGIONAL.equals(algorithm)) {
+            throw new OperatorException("The parameter sweep is only supported by the regional algorithm.");
+        }
         Product inputProduct = sourceProduct;
 
         if (doAtmosphericCorrection) {
-            Operator atmoCorOp = new GlintCorrectionOperator();
-            atmoCorOp.setParameterDefaultValues();
-            atmoCorOp.setParameter("doSmileCorrection", doSmileCorrection);
+            final Map<String, Object> acParameters = new LinkedHashMap<String, Object>();
+            acParameters.put("doSmileCorrection", doSmileCorrection);
             if (atmoNetFile != null) {
-                atmoCorOp.setParameter("atmoNetMerisFile", atmoNetFile);
+                acParameters.put("atmoNetMerisFile", atmoNetFile);
+            }
+            acParameters.put("outputReflec", true);
+            acParameters.put("outputReflecAs", outputReflecAs);
+            acParameters.put("outputTosa", outputTosa);
+            acParameters.put("outputNormReflec", outputNormReflec);
+            acParameters.put("outputPath", outputPath);
+            acParameters.put("outputTransmittance", outputTransmittance);
+            acParameters.put("landExpression", landExpression);
+            acParameters.put("cloudIceExpression", cloudIceExpression);
+            if (acCacheDir != null) {
+                inputProduct = getCachedAtmosphericCorrection(acParameters);
+            } else {
+                inputProduct = createAtmosphericCorrection(acParameters);
             }
-            atmoCorOp.setParameter("outputReflec", true);
-            atmoCorOp.setParameter("outputReflecAs", outputReflecAs);
-            atmoCorOp.setParameter("outputTosa", outputTosa);
-            atmoCorOp.setParameter("outputNormReflec", outputNormReflec);
-            atmoCorOp.setParameter("outputPath", outputPath);
-            atmoCorOp.setParameter("outputTransmittance", outputTransmittance);
-            atmoCorOp.setParameter("landExpression", landExpression);
-            atmoCorOp.setParameter("cloudIceExpression", cloudIceExpression);
-            atmoCorOp.setSourceProduct("merisProduct", inputProduct);
-            inputProduct = atmoCorOp.getTargetProduct();
         }
 
-        Operator case2Op = new RegionalWaterOp();
+        RegionalWaterOp case2Op = new RegionalWaterOp();
+        if (waterRetrieval != null) {
+            case2Op.setRetrieval(waterRetrieval, waterRetrievalParameters);
+        }
         case2Op.setParameterDefaultValues();
         if (!Case2AlgorithmEnum.BOREAL.equals(algorithm)) {
             case2Op.setParameter("tsmConversionExponent", tsmConversionExponent);
             case2Op.setParameter("tsmConversionFactor", tsmConversionFactor);
             case2Op.setParameter("chlConversionExponent", chlConversionExponent);
             case2Op.setParameter("chlConversionFactor", chlConversionFactor);
+            case2Op.setParameter("parameterSweep", parameterSweep);
         }
         case2Op.setParameter("inputReflecAre", outputReflecAs);
         case2Op.setParameter("spectrumOutOfScopeThreshold", spectrumOutOfScopeThreshold);
@@ -184,6 +216,8 @@ public class Case2IOPOperator extends Operator {
         case2Op.setParameter("forwardWaterNnFile", forwardWaterNnFile);
         case2Op.setSourceProduct("acProduct", inputProduct);
         final Product case2Product = case2Op.getTargetProduct();
+        waterRetrieval = case2Op.getRetrieval();
+        waterRetrievalParameters = case2Op.getRetrievalParameters();
 
         Product targetProduct = new Product(case2Product.getName(), case2Product.getProductType(),
                                             case2Product.getSceneRasterWidth(), case2Product.getSceneRasterHeight());
@@ -229,6 +263,81 @@ public class Case2IOPOperator extends Operator {
         setTargetProduct(targetProduct);
     }
 
+    private Product createAtmosphericCorrection(Map<String, Object> acParameters) {
+        Operator atmoCorOp = new GlintCorrectionOperator();
+        atmoCorOp.setParameterDefaultValues();
+        for (Map.Entry<String, Object> entry : acParameters.entrySet()) {
+            atmoCorOp.setParameter(entry.getKey(), entry.getValue());
+        }
+        atmoCorOp.setSourceProduct("merisProduct", sourceProduct);
+        return atmoCorOp.getTargetProduct();
+    }
+
+    private Product getCachedAtmosphericCorrection(Map<String, Object> acParameters) {
+        final AtmosphericCorrectionCache cache = new AtmosphericCorrectionCache(acCacheDir);
+        final String key = AtmosphericCorrectionCache.createKey(sourceProduct, acParameters);
+        try {
+            cachedAcProduct = cache.get(key);
+            if (cachedAcProduct != null) {
+                getLogger().info("Using cached atmospheric correction " + key);
+                return cachedAcProduct;
+            }
+        } catch (IOException e) {
+            throw new OperatorException("Failed to access the atmospheric correction cache", e);
+        }
+        // the entry is written before the processing, so the correction is computed only once and the water
+        // operator does not read the product while a writer is installed on it
+        getLogger().info("Writing atmospheric correction to cache " + key);
+        final Product acProduct = createAtmosphericCorrection(acParameters);
+        try {
+            cache.put(key, acProduct, getLogger());
+            cachedAcProduct = cache.get(key);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Failed to write the atmospheric correction cache", e);
+        }
+        // the written product has a writer installed, so it is not used for the processing in either case
+        acProduct.dispose();
+        if (cachedAcProduct == null) {
+            return createAtmosphericCorrection(acParameters);
+        }
+        return cachedAcProduct;
+    }
+
+    @Override
+    public void dispose() {
+        if (cachedAcProduct != null) {
+            cachedAcProduct.dispose();
+            cachedAcProduct = null;
+        }
+        super.dispose();
+    }
+
+    /**
+     * @return the retrieval of the water operator, available after initialisation
+     */
+    WaterRetrieval getWaterRetrieval() {
+        return waterRetrieval;
+    }
+
+    /**
+     * @return the parameters the retrieval of the water operator depends on, available after initialisation
+     */
+    Map<String, Object> getWaterRetrievalParameters() {
+        return waterRetrievalParameters;
+    }
+
+    /**
+     * Lets the water operator use the given retrieval, see {@link MerisCase2BasisWaterOp#setRetrieval}.
+     * Must be called before initialisation.
+     *
+     * @param waterRetrieval           the retrieval of another instance with equal water parameters
+     * @param waterRetrievalParameters the parameters the retrieval depends on
+     */
+    void setWaterRetrieval(WaterRetrieval waterRetrieval, Map<String, Object> waterRetrievalParameters) {
+        this.waterRetrieval = waterRetrieval;
+        this.waterRetrievalParameters = waterRetrievalParameters;
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -7,12 +7,13 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.pointop.ProductConfigurer;
-import org.esa.beam.framework.gpf.pointop.SampleConfigurer;
 import org.esa.beam.meris.case2.fit.ChiSquareFitting;
 import org.esa.beam.meris.case2.fit.MerisGLM;
 import org.esa.beam.meris.case2.water.EutrophicWater;
 import org.esa.beam.meris.case2.water.WaterAlgorithm;
 
+import java.util.Map;
+
 @OperatorMetadata(alias = "Meris.EutrophicWater",
                   description = "Performs IOP retrieval on atmospherically corrected MERIS products.",
                   authors = "Roland Doerffer (GKSS); Marco Peters (Brockmann Consult)",
@@ -21,7 +22,7 @@ import org.esa.beam.meris.case2.water.WaterAlgorithm;
                   internal = true)
 public class EutrophicWaterOp extends MerisCase2BasisWaterOp {
 
-    private static final String BAND_NAME_A_BTSM = "a_btsm";
+    static final String BAND_NAME_A_BTSM = "a_btsm";
     private static final String PRODUCT_TYPE_SUFFIX = "EUT";
 
     @SourceProduct(alias = "acProduct", label = "Atmospherically corrected product")
@@ -45,9 +46,10 @@ public class EutrophicWaterOp extends MerisCase2BasisWaterOp {
     }
 
     @Override
-    protected void configureTargetSamples(SampleConfigurer configurator) {
-        super.configureTargetSamples(configurator);
-        configurator.defineSample(EutrophicWater.TARGET_A_BTSM_INDEX, BAND_NAME_A_BTSM);
+    protected Map<Integer, String> getTargetSampleNames() {
+        final Map<Integer, String> names = super.getTargetSampleNames();
+        names.put(EutrophicWater.TARGET_A_BTSM_INDEX, BAND_NAME_A_BTSM);
+        return names;
     }
 
     @Override
@@ -73,6 +75,21 @@ public class EutrophicWaterOp extends MerisCase2BasisWaterOp {
                                     chlConversionExponent, chlConversionFactor, new MerisGLM(11, 8));
     }
 
+    @Override
+    protected boolean isInverseNetStartSupported() {
+        return false;
+    }
+
+    @Override
+    protected Map<String, Object> getRetrievalParameters() {
+        final Map<String, Object> parameters = super.getRetrievalParameters();
+        parameters.put("tsmConversionExponent", tsmConversionExponent);
+        parameters.put("tsmConversionFactor", tsmConversionFactor);
+        parameters.put("chlConversionExponent", chlConversionExponent);
+        parameters.put("chlConversionFactor", chlConversionFactor);
+        return parameters;
+    }
+
     @Override
     protected String getProductTypeSuffix() {
         return PRODUCT_TYPE_SUFFIX;
@@ -0,0 +1,362 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGeoCoding;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.meris.case2.water.WaterKernel;
+import org.esa.beam.meris.case2.water.WaterRetrieval;
+import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Processes a product which grows while it is received, e.g. in near-real-time processing.
+ * <p/>
+ * The newly arrived scan lines are given as a chunk product by {@link #append(Product, ProgressMonitor)}.
+ * Only these lines are computed, and the results are appended to a working product, which is sized for the
+ * maximum number of lines expected. The retrieval of the first chunk, holding the neural nets and the kernels
+ * of the threads, is reused for all further chunks. On {@link #close()} the output product is written from
+ * the working product, truncated to the lines appended. Its tie-point grids are merged from those of the
+ * chunks, with the geometry of the grids of the first chunk, and a tie-point geo-coding of the first chunk
+ * is recreated on the merged grids.
+ *
+ * @author agent
+ */
+public class IncrementalWaterProcessor {
+
+    /**
+     * Creates the configured water operator for a chunk.
+     */
+    public interface OperatorFactory {
+
+        MerisCase2BasisWaterOp createOperator(Product chunkProduct);
+    }
+
+    private final OperatorFactory operatorFactory;
+    private final File outputFile;
+    private final String formatName;
+    private final int maxLineCount;
+    private final int stripeHeight;
+    private final File workingFile;
+    private final List<ChunkGrids> chunkGrids;
+    private WaterRetrieval retrieval;
+    private Map<String, Object> retrievalParameters;
+    private ProductWriter writer;
+    private Product workingProduct;
+    private TiePointGeoCoding geoCoding;
+    private ProductData.UTC endTime;
+    private int lineCount;
+
+    /**
+     * @param operatorFactory creates the operator of each chunk, all with the same parameters
+     * @param outputFile      the output file; the working product is written next to it with the prefix
+     *                        {@code "part_"}
+     * @param formatName      the name of the output format
+     * @param maxLineCount    the maximum number of lines of the output product
+     * @param stripeHeight    the number of lines computed at once
+     */
+    public IncrementalWaterProcessor(OperatorFactory operatorFactory, File outputFile, String formatName,
+                                     int maxLineCount, int stripeHeight) {
+        if (maxLineCount < 1 || stripeHeight < 1) {
+            throw new IllegalArgumentException("maxLineCount < 1 || stripeHeight < 1");
+        }
+        this.operatorFactory = operatorFactory;
+        this.outputFile = outputFile;
+        this.formatName = formatName;
+        this.maxLineCount = maxLineCount;
+        this.stripeHeight = stripeHeight;
+        workingFile = new File(outputFile.getAbsoluteFile().getParentFile(), "part_" + outputFile.getName());
+        chunkGrids = new ArrayList<ChunkGrids>();
+    }
+
+    /**
+     * @return the number of lines appended so far
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Computes the lines of a chunk and appends them to the working product.
+     *
+     * @param chunkProduct the newly arrived lines, as source product of the water operator
+     * @param pm           the progress monitor, the work is given in pixels
+     *
+     * @throws IOException       if reading or writing failed
+     * @throws OperatorException if the processing failed or was cancelled, or if the parameters of the
+     *                           operator differ from those of the first chunk
+     */
+    public synchronized void append(Product chunkProduct, ProgressMonitor pm) throws IOException {
+        final MerisCase2BasisWaterOp operator = operatorFactory.createOperator(chunkProduct);
+        if (retrieval != null) {
+            operator.setRetrieval(retrieval, retrievalParameters);
+        }
+        try {
+            final Product targetProduct = operator.getTargetProduct();
+            if (workingProduct == null) {
+                openOutput(targetProduct);
+                retrieval = operator.getRetrieval();
+                retrievalParameters = operator.getRetrievalParameters();
+            }
+            final int width = targetProduct.getSceneRasterWidth();
+            final int height = targetProduct.getSceneRasterHeight();
+            if (width != workingProduct.getSceneRasterWidth()) {
+                throw new OperatorException("Chunk width " + width + " differs from output width " +
+                                            workingProduct.getSceneRasterWidth() + ".");
+            }
+            if (lineCount + height > maxLineCount) {
+                throw new OperatorException("Chunk exceeds the maximum number of lines " + maxLineCount + ".");
+            }
+            final ChunkGrids grids = new ChunkGrids(lineCount, height, targetProduct);
+            if (!chunkGrids.isEmpty() && !chunkGrids.get(0).hasSameGrids(grids)) {
+                throw new OperatorException("Tie-point grids of the chunk differ from those of the first chunk.");
+            }
+            pm.beginTask("Computing water constituents", width * height);
+            try {
+                for (int y = 0; y < height; y += stripeHeight) {
+                    appendStripe(operator, targetProduct, new Rectangle(0, y, width, Math.min(stripeHeight,
+                                                                                             height - y)), pm);
+                }
+            } catch (CancellationException e) {
+                throw new OperatorException("Processing cancelled", e);
+            } finally {
+                pm.done();
+            }
+            lineCount += height;
+            chunkGrids.add(grids);
+            endTime = targetProduct.getEndTime();
+            writer.flush();
+        } finally {
+            operator.dispose();
+        }
+    }
+
+    /**
+     * Closes the working product and writes the output product from it, holding the lines appended so far.
+     * The working product is deleted afterwards.
+     *
+     * @throws IOException if the output could not be written
+     */
+    public synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        final ProductWriter workingWriter = writer;
+        writer = null;
+        workingWriter.close();
+        if (lineCount > 0) {
+            final Product product = ProductIO.readProduct(workingFile);
+            if (product == null) {
+                throw new IOException("No reader found for " + workingFile);
+            }
+            try {
+                final ProductSubsetDef subsetDef = new ProductSubsetDef();
+                subsetDef.setRegion(0, 0, product.getSceneRasterWidth(), lineCount);
+                final Product outputProduct = product.createSubset(subsetDef, product.getName(),
+                                                                   product.getDescription());
+                try {
+                    addTiePointGrids(outputProduct);
+                    outputProduct.setEndTime(endTime);
+                    ProductIO.writeProduct(outputProduct, outputFile, formatName, false);
+                } finally {
+                    outputProduct.dispose();
+                }
+            } finally {
+                product.dispose();
+            }
+        }
+        workingWriter.deleteOutput();
+    }
+
+    private void openOutput(Product targetProduct) throws IOException {
+        writer = ProductIO.getProductWriter(formatName);
+        if (writer == null) {
+            throw new IOException("No writer found for format '" + formatName + "'.");
+        }
+        workingProduct = new Product(targetProduct.getName(), targetProduct.getProductType(),
+                                     targetProduct.getSceneRasterWidth(), maxLineCount);
+        workingProduct.setStartTime(targetProduct.getStartTime());
+        ProductUtils.copyMetadata(targetProduct, workingProduct);
+        for (Band band : targetProduct.getBands()) {
+            if (band instanceof VirtualBand) {
+                continue;
+            }
+            final Band outputBand = workingProduct.addBand(band.getName(), band.getDataType());
+            ProductUtils.copyRasterDataNodeProperties(band, outputBand);
+            final FlagCoding flagCoding = band.getFlagCoding();
+            if (flagCoding != null) {
+                if (!workingProduct.getFlagCodingGroup().contains(flagCoding.getName())) {
+                    ProductUtils.copyFlagCoding(flagCoding, workingProduct);
+                }
+                outputBand.setSampleCoding(workingProduct.getFlagCodingGroup().get(flagCoding.getName()));
+            }
+        }
+        ProductUtils.copyMasks(targetProduct, workingProduct);
+        if (targetProduct.getGeoCoding() instanceof TiePointGeoCoding) {
+            geoCoding = (TiePointGeoCoding) targetProduct.getGeoCoding();
+        } else if (targetProduct.getGeoCoding() != null) {
+            BeamLogManager.getSystemLogger().warning("Only a tie-point geo-coding can be merged from the chunks, " +
+                                                     "the output product is not geo-coded.");
+        }
+        writer.writeProductNodes(workingProduct, workingFile);
+    }
+
+    private void appendStripe(MerisCase2BasisWaterOp operator, Product targetProduct, Rectangle stripeRect,
+                              ProgressMonitor pm) throws IOException {
+        final String[] sourceNames = operator.getSourceSampleNames();
+        final int pixelCount = stripeRect.width * stripeRect.height;
+        final float[][] sourceData = new float[sourceNames.length][];
+        for (int i = 0; i < sourceNames.length; i++) {
+            sourceData[i] = operator.getInputProduct().getRasterDataNode(sourceNames[i]).readPixels(
+                    stripeRect.x, stripeRect.y, stripeRect.width, stripeRect.height, new float[pixelCount],
+                    ProgressMonitor.NULL);
+        }
+        final float[][] targetData = new float[TARGET_COUNT][];
+        for (Band band : workingProduct.getBands()) {
+            final Integer index = operator.getComputedTargetIndex(band.getName());
+            if (index != null && index != TARGET_FLAG_INDEX) {
+                targetData[index] = new float[pixelCount];
+            }
+        }
+        final byte[] flags = new byte[pixelCount];
+        final WaterKernel.Output output = operator.computeStripe(stripeRect, sourceData, targetData, flags, pm);
+
+        final int outputY = lineCount + stripeRect.y;
+        final float[] derivedSamples = new float[pixelCount];
+        for (Band band : workingProduct.getBands()) {
+            final Integer index = operator.getComputedTargetIndex(band.getName());
+            final ProductData data = ProductData.createInstance(band.getDataType(), pixelCount);
+            if (index == null && operator.isDerivedBand(band.getName())) {
+                operator.computeDerivedSamples(band.getName(), output, pixelCount, derivedSamples);
+                setSamples(data, derivedSamples, band.isFloatingPointType());
+            } else if (index == null) {
+                targetProduct.getBand(band.getName()).readRasterData(stripeRect.x, stripeRect.y, stripeRect.width,
+                                                                      stripeRect.height, data, ProgressMonitor.NULL);
+            } else if (index == TARGET_FLAG_INDEX) {
+                for (int i = 0; i < pixelCount; i++) {
+                    data.setElemIntAt(i, flags[i] & 0xFF);
+                }
+            } else {
+                setSamples(data, targetData[index], band.isFloatingPointType());
+            }
+            band.writeRasterData(stripeRect.x, outputY, stripeRect.width, stripeRect.height, data,
+                                 ProgressMonitor.NULL);
+        }
+    }
+
+    private static void setSamples(ProductData data, float[] samples, boolean floatingPoint) {
+        for (int i = 0; i < data.getNumElems(); i++) {
+            if (floatingPoint) {
+                data.setElemFloatAt(i, samples[i]);
+            } else {
+                data.setElemIntAt(i, Math.round(samples[i]));
+            }
+        }
+    }
+
+    /**
+     * Adds the tie-point grids merged from the chunks, and the geo-coding on them.
+     */
+    private void addTiePointGrids(Product outputProduct) {
+        final ChunkGrids firstChunk = chunkGrids.get(0);
+        for (int k = 0; k < firstChunk.grids.length; k++) {
+            final TiePointGrid firstGrid = firstChunk.grids[k];
+            final float offsetX = firstGrid.getOffsetX();
+            final float offsetY = firstGrid.getOffsetY();
+            final float subSamplingX = firstGrid.getSubSamplingX();
+            final float subSamplingY = firstGrid.getSubSamplingY();
+            final int gridWidth = firstGrid.getRasterWidth();
+            // the last row lies at or below the centre of the last line
+            final int gridHeight = Math.max(2, (int) Math.ceil((lineCount - 0.5f - offsetY) / subSamplingY) + 1);
+            final float[] tiePoints = new float[gridWidth * gridHeight];
+            for (int j = 0; j < gridHeight; j++) {
+                final float y = offsetY + j * subSamplingY;
+                final ChunkGrids chunk = findChunk((int) Math.floor(y));
+                for (int i = 0; i < gridWidth; i++) {
+                    tiePoints[j * gridWidth + i] = chunk.grids[k].getPixelFloat(offsetX + i * subSamplingX,
+                                                                                 y - chunk.firstLine);
+                }
+            }
+            final TiePointGrid grid = new TiePointGrid(firstGrid.getName(), gridWidth, gridHeight, offsetX, offsetY,
+                                                       subSamplingX, subSamplingY, tiePoints,
+                                                       firstGrid.getDiscontinuity());
+            ProductUtils.copyRasterDataNodeProperties(firstGrid, grid);
+            outputProduct.addTiePointGrid(grid);
+        }
+        if (geoCoding != null) {
+            outputProduct.setGeoCoding(new TiePointGeoCoding(
+                    outputProduct.getTiePointGrid(geoCoding.getLatGrid().getName()),
+                    outputProduct.getTiePointGrid(geoCoding.getLonGrid().getName())));
+        }
+    }
+
+    /**
+     * @return the chunk holding the line, the first or last chunk for lines outside
+     */
+    private ChunkGrids findChunk(int line) {
+        for (ChunkGrids chunk : chunkGrids) {
+            if (line < chunk.firstLine + chunk.lineCount) {
+                return chunk;
+            }
+        }
+        return chunkGrids.get(chunkGrids.size() - 1);
+    }
+
+    /**
+     * The tie-point grids of a chunk, kept for merging them on close.
+     */
+    private static final class ChunkGrids {
+
+        private final int firstLine;
+        private final int lineCount;
+        private final TiePointGrid[] grids;
+
+        private ChunkGrids(int firstLine, int lineCount, Product chunkProduct) {
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+            final TiePointGrid[] chunkGrids = chunkProduct.getTiePointGrids();
+            grids = new TiePointGrid[chunkGrids.length];
+            for (int i = 0; i < chunkGrids.length; i++) {
+                final TiePointGrid chunkGrid = chunkGrids[i];
+                // the chunk product is disposed after appending it
+                grids[i] = new TiePointGrid(chunkGrid.getName(), chunkGrid.getRasterWidth(),
+                                            chunkGrid.getRasterHeight(), chunkGrid.getOffsetX(),
+                                            chunkGrid.getOffsetY(), chunkGrid.getSubSamplingX(),
+                                            chunkGrid.getSubSamplingY(), chunkGrid.getTiePoints().clone(),
+                                            chunkGrid.getDiscontinuity());
+                ProductUtils.copyRasterDataNodeProperties(chunkGrid, grids[i]);
+            }
+        }
+
+        private boolean hasSameGrids(ChunkGrids other) {
+            if (grids.length != other.grids.length) {
+                return false;
+            }
+            for (int i = 0; i < grids.length; i++) {
+                if (!grids[i].getName().equals(other.grids[i].getName()) ||
+                    grids[i].getRasterWidth() != other.grids[i].getRasterWidth()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.meris.case2.lakes.LakeExtractor;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Writes the IOPs of the lakes of a lake polygon file which are covered by a MERIS L1b product, one pixel
+ * table or subset product per lake, see {@link LakeExtractor}.
+ * <p/>
+ * The retrieval is performed by {@link LakesIOPOperator} restricted to the lakes. Only the bounding pixel
+ * regions of the lakes are requested from its target product, hence only the tiles covering lakes are
+ * computed; the full scene product is never written.
+ */
+public class LakeExtractionProcessor {
+
+    private final File outputDir;
+    private final String formatName;
+    private final Case2AlgorithmEnum algorithm;
+    private final Logger logger;
+
+    /**
+     * @param outputDir  the directory of the per-lake outputs
+     * @param formatName {@link LakeExtractor#FORMAT_CSV} or {@link LakeExtractor#FORMAT_DIMAP}
+     * @param algorithm  the water algorithm, BOREAL or EUTROPHIC
+     */
+    public LakeExtractionProcessor(File outputDir, String formatName, Case2AlgorithmEnum algorithm) {
+        if (!LakeExtractor.FORMAT_CSV.equals(formatName) && !LakeExtractor.FORMAT_DIMAP.equals(formatName)) {
+            throw new IllegalArgumentException("Unknown lake output format '" + formatName + "'.");
+        }
+        this.outputDir = outputDir;
+        this.formatName = formatName;
+        this.algorithm = algorithm;
+        logger = BeamLogManager.getSystemLogger();
+    }
+
+    /**
+     * Writes the lakes covered by the product.
+     *
+     * @param l1bProduct      the MERIS L1b product, must be geo-coded
+     * @param lakePolygonFile the lake polygon file, see {@link org.esa.beam.meris.case2.lakes.LakeCatalog}
+     *
+     * @return the files written, one per lake
+     *
+     * @throws IOException if the output directory cannot be created or writing failed
+     */
+    public List<File> process(Product l1bProduct, File lakePolygonFile) throws IOException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create lake output directory '" + outputDir + "'.");
+        }
+        final LakesIOPOperator operator = new LakesIOPOperator();
+        try {
+            operator.setParameterDefaultValues();
+            operator.setParameter("algorithm", algorithm);
+            operator.setParameter("lakePolygonFile", lakePolygonFile);
+            operator.setSourceProduct("source", l1bProduct);
+            final Product targetProduct = operator.getTargetProduct();
+
+            final LakeExtractor extractor = new LakeExtractor(operator.getLakeCatalog(),
+                                                              LakesIOPOperator.BAND_NAME_LAKE_INDEX);
+            final List<File> files = new ArrayList<File>();
+            for (LakeExtractor.LakeRegion lakeRegion : extractor.findLakeRegions(targetProduct)) {
+                try {
+                    files.add(extractor.write(targetProduct, lakeRegion, outputDir, formatName));
+                } catch (IOException e) {
+                    throw new IOException("Could not write lake '" + lakeRegion.getLake().getName() + "'.", e);
+                }
+            }
+            logger.info(String.format("%s: %d lakes written", l1bProduct.getName(), files.size()));
+            return files;
+        } finally {
+            operator.dispose();
+        }
+    }
+
+    /**
+     * Usage: <code>LakeExtractionProcessor &lt;l1bProduct&gt; &lt;lakePolygonFile&gt; [-o outputDir]
+     * [-f CSV|BEAM-DIMAP] [-a BOREAL|EUTROPHIC]</code>. The output directory defaults to the directory of
+     * the lake polygon file.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        final File lakePolygonFile = new File(args[1]);
+        File outputDir = lakePolygonFile.getAbsoluteFile().getParentFile();
+        String formatName = LakeExtractor.FORMAT_CSV;
+        Case2AlgorithmEnum algorithm = Case2AlgorithmEnum.BOREAL;
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            if ("-o".equals(args[i])) {
+                outputDir = new File(args[++i]);
+            } else if ("-f".equals(args[i])) {
+                formatName = args[++i];
+            } else if ("-a".equals(args[i])) {
+                algorithm = Case2AlgorithmEnum.valueOf(args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        final Product product = ProductIO.readProduct(new File(args[0]));
+        if (product == null) {
+            throw new IOException("No reader found for " + args[0]);
+        }
+        try {
+            new LakeExtractionProcessor(outputDir, formatName, algorithm).process(product, lakePolygonFile);
+        } finally {
+            product.dispose();
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: LakeExtractionProcessor <l1bProduct> <lakePolygonFile> [-o outputDir] " +
+                           "[-f CSV|BEAM-DIMAP] [-a BOREAL|EUTROPHIC]");
+    }
+}
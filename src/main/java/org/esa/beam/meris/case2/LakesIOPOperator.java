@@ -18,17 +18,24 @@ package org.esa.beam.meris.case2;
 
 import org.esa.beam.atmosphere.operator.GlintCorrectionOperator;
 import org.esa.beam.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.BasicPixelGeoCoding;
+import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.meris.case2.lakes.LakeCatalog;
+import org.esa.beam.meris.case2.lakes.LakeIndexOpImage;
 import org.esa.beam.util.ProductUtils;
 
 import java.io.File;
+import java.io.IOException;
 
 
 @OperatorMetadata(alias = "Meris.Lakes",
@@ -38,6 +45,8 @@ import java.io.File;
                   version = "1.6.1")
 public class LakesIOPOperator extends Operator {
 
+    static final String BAND_NAME_LAKE_INDEX = "lake_index";
+
     @SourceProduct(alias = "source", label = "Name", description = "The source product.")
     private Product sourceProduct;
 
@@ -139,9 +148,30 @@ public class LakesIOPOperator extends Operator {
                description = "The file of the forward water neural net to be used instead of the default.")
     private File forwardWaterNnFile;
 
+    ///////////  Multi-lake extraction  ///////////////////////////
+    ///////////
+
+    @Parameter(label = "Lake polygon file (optional)",
+               description = "A file with one lake per line, given as name and WKT polygon separated by a tab. " +
+                             "If set, IOPs are only computed for pixels inside the lakes and the band " +
+                             "'lake_index' is added. See LakeExtractionProcessor for writing the lakes.")
+    private File lakePolygonFile;
+
+    private LakeCatalog lakeCatalog;
+
     @Override
     public void initialize() throws OperatorException {
         Product inputProduct = sourceProduct;
+        if (lakePolygonFile != null) {
+            try {
+                lakeCatalog = LakeCatalog.read(lakePolygonFile);
+            } catch (IOException e) {
+                throw new OperatorException("Could not read lake polygon file.", e);
+            }
+            if (sourceProduct.getGeoCoding() == null) {
+                throw new OperatorException("Multi-lake extraction needs a geo-coded source product.");
+            }
+        }
 
         if (doAtmosphericCorrection) {
             Operator atmoCorOp = new GlintCorrectionOperator();
@@ -161,6 +191,13 @@ public class LakesIOPOperator extends Operator {
             inputProduct = atmoCorOp.getTargetProduct();
         }
 
+        String waterInvalidExpression = invalidPixelExpression;
+        if (lakeCatalog != null) {
+            inputProduct = addLakeIndexBand(inputProduct, lakeCatalog);
+            // pixels outside of the lakes are skipped by the water processor
+            waterInvalidExpression = "(" + invalidPixelExpression + ") || " + BAND_NAME_LAKE_INDEX + " == 0";
+        }
+
         Operator case2Op = algorithm.createOperatorInstance();
 
         initConversionDefaults();
@@ -172,7 +209,7 @@ public class LakesIOPOperator extends Operator {
         }
         case2Op.setParameter("inputReflecAre", outputReflecAs);
         case2Op.setParameter("spectrumOutOfScopeThreshold", spectrumOutOfScopeThreshold);
-        case2Op.setParameter("invalidPixelExpression", invalidPixelExpression);
+        case2Op.setParameter("invalidPixelExpression", waterInvalidExpression);
         case2Op.setParameter("inverseWaterNnFile", inverseWaterNnFile);
         case2Op.setParameter("forwardWaterNnFile", forwardWaterNnFile);
         case2Op.setSourceProduct("acProduct", inputProduct);
@@ -214,6 +251,31 @@ public class LakesIOPOperator extends Operator {
         setTargetProduct(targetProduct);
     }
 
+    /**
+     * @return the lakes of the lake polygon file, or {@code null} if none is given; available after
+     *         initialisation
+     */
+    LakeCatalog getLakeCatalog() {
+        return lakeCatalog;
+    }
+
+    private Product addLakeIndexBand(Product inputProduct, LakeCatalog lakeCatalog) {
+        Product product = inputProduct;
+        if (product == sourceProduct) {
+            // don't modify the source product, work on a view of it instead
+            try {
+                product = sourceProduct.createSubset(new ProductSubsetDef(), sourceProduct.getName(),
+                                                     sourceProduct.getDescription());
+            } catch (IOException e) {
+                throw new OperatorException(e);
+            }
+        }
+        final Band lakeIndexBand = product.addBand(BAND_NAME_LAKE_INDEX, ProductData.TYPE_INT16);
+        lakeIndexBand.setDescription("Index of the lake within the lake polygon file, 0 if outside of all lakes.");
+        lakeIndexBand.setSourceImage(new LakeIndexOpImage(product, lakeCatalog, ResolutionLevel.MAXRES));
+        return product;
+    }
+
     private void initConversionDefaults() {
         if (tsmConversionExponent == null) {
             tsmConversionExponent = algorithm.getDefaultTsmExponent();
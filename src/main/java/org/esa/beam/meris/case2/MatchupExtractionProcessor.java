@@ -0,0 +1,246 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.meris.case2.matchup.Matchup;
+import org.esa.beam.meris.case2.matchup.MatchupReader;
+import org.esa.beam.meris.case2.util.CsvWriter;
+import org.esa.beam.meris.case2.util.DoubleSample;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Computes the Case-2 retrieval only for small pixel windows around in-situ sample locations and writes
+ * the results as a CSV table, one record per pixel. The full target rasters of the water processor are never
+ * requested.
+ */
+public class MatchupExtractionProcessor {
+
+    private final Case2AlgorithmEnum algorithm;
+    private final Map<String, Object> waterParameters;
+    private final int windowRadius;
+    private final double maxTimeDifference;
+
+    /**
+     * @param algorithm         the water algorithm
+     * @param waterParameters   parameters of the water operator differing from its defaults; the Chi-Square
+     *                          fitting is performed unless disabled here
+     * @param windowRadius      the number of pixels around the match-up pixel, the window size is
+     *                          2 * radius + 1
+     * @param maxTimeDifference the maximum difference between sampling time and product time in hours;
+     *                          samples without time always match
+     */
+    public MatchupExtractionProcessor(Case2AlgorithmEnum algorithm, Map<String, Object> waterParameters,
+                                      int windowRadius, double maxTimeDifference) {
+        if (windowRadius < 0) {
+            throw new IllegalArgumentException("windowRadius < 0");
+        }
+        this.algorithm = algorithm;
+        this.waterParameters = waterParameters;
+        this.windowRadius = windowRadius;
+        this.maxTimeDifference = maxTimeDifference;
+    }
+
+    /**
+     * Extracts the match-ups covered by the product. The records are appended if the output file exists.
+     *
+     * @param acProduct  the atmospherically corrected product, must be geo-coded
+     * @param matchups   the match-up locations
+     * @param outputFile the output file
+     *
+     * @return the number of records written
+     *
+     * @throws IOException if the product is not geo-coded or writing failed
+     */
+    public int extract(Product acProduct, List<Matchup> matchups, File outputFile) throws IOException {
+        final GeoCoding geoCoding = acProduct.getGeoCoding();
+        if (geoCoding == null || !geoCoding.canGetPixelPos()) {
+            throw new IOException("Product '" + acProduct.getName() + "' is not geo-coded.");
+        }
+        final MerisCase2BasisWaterOp waterOp = createWaterOp(acProduct);
+        try {
+            // initialises the neural nets and the invalid mask, the target rasters are never requested
+            waterOp.getTargetProduct();
+            return extract(waterOp, acProduct, matchups, outputFile);
+        } finally {
+            waterOp.dispose();
+        }
+    }
+
+    private MerisCase2BasisWaterOp createWaterOp(Product acProduct) {
+        final MerisCase2BasisWaterOp waterOp = algorithm.createOperatorInstance();
+        waterOp.setParameterDefaultValues();
+        if (!Case2AlgorithmEnum.BOREAL.equals(algorithm)) {
+            waterOp.setParameter("tsmConversionExponent", algorithm.getDefaultTsmExponent());
+            waterOp.setParameter("tsmConversionFactor", algorithm.getDefaultTsmFactor());
+            waterOp.setParameter("chlConversionExponent", algorithm.getDefaultChlExponent());
+            waterOp.setParameter("chlConversionFactor", algorithm.getDefaultChlFactor());
+        }
+        waterOp.setParameter("performChiSquareFit", true);
+        for (Map.Entry<String, Object> entry : waterParameters.entrySet()) {
+            waterOp.setParameter(entry.getKey(), entry.getValue());
+        }
+        waterOp.setSourceProduct("acProduct", acProduct);
+        return waterOp;
+    }
+
+    private int extract(MerisCase2BasisWaterOp waterOp, Product acProduct, List<Matchup> matchups,
+                        File outputFile) throws IOException {
+        final GeoCoding geoCoding = acProduct.getGeoCoding();
+        final String[] sourceNames = waterOp.getSourceSampleNames();
+        final Map<Integer, String> targetNames = waterOp.getTargetSampleNames();
+        final DoubleSample[] sourceSamples = DoubleSample.createArray(sourceNames.length, Double.NaN);
+        final DoubleSample[] targetSamples = DoubleSample.createArray(TARGET_PARAM_CHANGE_FIT_INDEX + 1, Double.NaN);
+
+        final Rectangle sceneRect = new Rectangle(acProduct.getSceneRasterWidth(), acProduct.getSceneRasterHeight());
+        final Date startTime = toDate(acProduct.getStartTime());
+        final Date endTime = toDate(acProduct.getEndTime());
+        final long maxTimeDiffMillis = Math.round(maxTimeDifference * 60 * 60 * 1000);
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final boolean writeHeader = !outputFile.exists() || outputFile.length() == 0;
+        final CsvWriter writer = new CsvWriter(new FileWriter(outputFile, true));
+        int numRecords = 0;
+        try {
+            if (writeHeader) {
+                for (String column : new String[]{"product", "name", "lat", "lon", "time", "pixel_x", "pixel_y",
+                        "pixel_lat", "pixel_lon"}) {
+                    writer.write(column);
+                }
+                for (String targetName : targetNames.values()) {
+                    writer.write(targetName);
+                }
+                writer.endRecord();
+            }
+
+            final PixelPos pixelPos = new PixelPos();
+            final GeoPos geoPos = new GeoPos();
+            for (Matchup matchup : matchups) {
+                if (!matchup.isInTimeWindow(startTime, endTime, maxTimeDiffMillis)) {
+                    continue;
+                }
+                geoCoding.getPixelPos(new GeoPos((float) matchup.getLat(), (float) matchup.getLon()), pixelPos);
+                if (!pixelPos.isValid() || !sceneRect.contains(pixelPos)) {
+                    continue;
+                }
+                final int centerX = (int) Math.floor(pixelPos.x);
+                final int centerY = (int) Math.floor(pixelPos.y);
+                final int windowSize = 2 * windowRadius + 1;
+                final Rectangle window = new Rectangle(centerX - windowRadius, centerY - windowRadius,
+                                                       windowSize, windowSize).intersection(sceneRect);
+                final Raster[] sourceRasters = new Raster[sourceNames.length];
+                for (int i = 0; i < sourceNames.length; i++) {
+                    sourceRasters[i] = acProduct.getRasterDataNode(sourceNames[i]).getGeophysicalImage().getData(window);
+                }
+                final String time = matchup.getTime() != null ? dateFormat.format(matchup.getTime()) : "";
+                for (int y = window.y; y < window.y + window.height; y++) {
+                    for (int x = window.x; x < window.x + window.width; x++) {
+                        for (int i = 0; i < sourceSamples.length; i++) {
+                            sourceSamples[i].set(sourceRasters[i].getSampleDouble(x, y, 0));
+                        }
+                        for (DoubleSample targetSample : targetSamples) {
+                            targetSample.set(Double.NaN);
+                        }
+                        targetSamples[TARGET_FLAG_INDEX].set(0);
+                        waterOp.computePixel(x, y, sourceSamples, targetSamples);
+
+                        geoCoding.getGeoPos(new PixelPos(x + 0.5f, y + 0.5f), geoPos);
+                        writer.write(acProduct.getName());
+                        writer.write(matchup.getName());
+                        writer.write(matchup.getLat());
+                        writer.write(matchup.getLon());
+                        writer.write(time);
+                        writer.write(x);
+                        writer.write(y);
+                        writer.write(geoPos.lat);
+                        writer.write(geoPos.lon);
+                        for (int targetIndex : targetNames.keySet()) {
+                            if (targetIndex == TARGET_FLAG_INDEX || targetIndex == TARGET_N_ITER_FIT_INDEX) {
+                                writer.write(targetSamples[targetIndex].getInt());
+                            } else {
+                                writer.write(targetSamples[targetIndex].getDouble());
+                            }
+                        }
+                        writer.endRecord();
+                        numRecords++;
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return numRecords;
+    }
+
+    private static Date toDate(ProductData.UTC utc) {
+        return utc != null ? utc.getAsDate() : null;
+    }
+
+    /**
+     * Usage: <code>MatchupExtractionProcessor &lt;acProduct&gt; &lt;matchupFile&gt; &lt;outputFile&gt;
+     * [-a algorithm] [-r windowRadius] [-t maxTimeDifference]</code>, where the match-up file is read by
+     * {@link MatchupReader} and the time difference is given in hours.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            printUsage();
+            return;
+        }
+        Case2AlgorithmEnum algorithm = Case2AlgorithmEnum.REGIONAL;
+        int windowRadius = 1;
+        double maxTimeDifference = 3.0;
+        for (int i = 3; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            if ("-a".equals(args[i])) {
+                algorithm = Case2AlgorithmEnum.valueOf(args[++i]);
+            } else if ("-r".equals(args[i])) {
+                windowRadius = Integer.parseInt(args[++i]);
+            } else if ("-t".equals(args[i])) {
+                maxTimeDifference = Double.parseDouble(args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        final List<Matchup> matchups = MatchupReader.read(new File(args[1]));
+        final Product product = ProductIO.readProduct(new File(args[0]));
+        if (product == null) {
+            throw new IOException("No reader found for " + args[0]);
+        }
+        try {
+            final MatchupExtractionProcessor processor = new MatchupExtractionProcessor(
+                    algorithm, new HashMap<String, Object>(), windowRadius, maxTimeDifference);
+            final int numRecords = processor.extract(product, matchups, new File(args[2]));
+            BeamLogManager.getSystemLogger().info(String.format("%s: %d match-up records written",
+                                                                product.getName(), numRecords));
+        } finally {
+            product.dispose();
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: MatchupExtractionProcessor <acProduct> <matchupFile> <outputFile> " +
+                           "[-a algorithm] [-r windowRadius] [-t maxTimeDifference]");
+    }
+}
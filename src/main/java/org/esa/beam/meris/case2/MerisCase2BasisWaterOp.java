@@ -1,5 +1,8 @@
 package org.esa.beam.meris.case2;
 
+import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.core.ProgressMonitorWrapper;
+import com.bc.ceres.glevel.MultiLevelModel;
 import org.esa.beam.atmosphere.operator.MerisFlightDirection;
 import org.esa.beam.atmosphere.operator.ReflectanceEnum;
 import org.esa.beam.framework.datamodel.Band;
@@ -11,34 +14,50 @@ import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.datamodel.ProductNodeFilter;
 import org.esa.beam.framework.datamodel.ProductNodeGroup;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.framework.gpf.annotations.Parameter;
-import org.esa.beam.framework.gpf.pointop.PixelOperator;
 import org.esa.beam.framework.gpf.pointop.ProductConfigurer;
 import org.esa.beam.framework.gpf.pointop.Sample;
-import org.esa.beam.framework.gpf.pointop.SampleConfigurer;
 import org.esa.beam.framework.gpf.pointop.WritableSample;
+import org.esa.beam.jai.ImageManager;
 import org.esa.beam.jai.ResolutionLevel;
 import org.esa.beam.jai.VirtualBandOpImage;
 import org.esa.beam.meris.case2.fit.ChiSquareFitting;
+import org.esa.beam.meris.case2.util.CsvWriter;
+import org.esa.beam.meris.case2.util.StreamingHistogram;
+import org.esa.beam.meris.case2.util.StripedCounters;
 import org.esa.beam.meris.case2.water.WaterAlgorithm;
-import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.esa.beam.meris.case2.water.WaterKernel;
+import org.esa.beam.meris.case2.water.WaterRetrieval;
 
 import java.awt.Color;
 import java.awt.Rectangle;
-import java.io.BufferedReader;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
 import static org.esa.beam.dataio.envisat.EnvisatConstants.*;
 import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
 
 @SuppressWarnings({"UnusedDeclaration"})
-public abstract class MerisCase2BasisWaterOp extends PixelOperator {
+public abstract class MerisCase2BasisWaterOp extends Operator {
 
     // todo move to EnivsatConstants
     private static final String MERIS_ZONAL_WIND_DS_NAME = "zonal_wind";
@@ -50,37 +69,43 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
     private static final int OOTR = 0x01 << OOTR_BIT_INDEX;                 // out of training range == chi2 of measured and fwNN spectrum above threshold
     private static final int WHITECAPS = 0x01 << WHITECAPS_BIT_INDEX;       // risk for white caps
     private static final int FIT_FAILED = 0x01 << FIT_FAILED_INDEX;          // fit failed
+    private static final int INTERPOLATED = 0x01 << INTERPOLATED_BIT_INDEX; // interpolated from sparse grid
+    private static final int REFINED = 0x01 << REFINED_BIT_INDEX;           // computed in refined grid cell
     private static final int INVALID = 0x01 << INVALID_BIT_INDEX;           // not a usable water pixel
 
-    private static final String BAND_NAME_A_TOTAL = "a_total_443";
-    private static final String BAND_NAME_A_GELBSTOFF = "a_ys_443";
-    private static final String BAND_NAME_A_PIGMENT = "a_pig_443";
-    private static final String BAND_NAME_BB_SPM = "bb_spm_443";
+    static final String BAND_NAME_A_TOTAL = "a_total_443";
+    static final String BAND_NAME_A_GELBSTOFF = "a_ys_443";
+    static final String BAND_NAME_A_PIGMENT = "a_pig_443";
+    static final String BAND_NAME_BB_SPM = "bb_spm_443";
     private static final String BAND_NAME_A_GELBSTOFF_FIT = BAND_NAME_A_GELBSTOFF + "_Fit";
     private static final String BAND_NAME_A_GELBSTOFF_FIT_MAX = BAND_NAME_A_GELBSTOFF + "_Fit_max";
     private static final String BAND_NAME_A_GELBSTOFF_FIT_MIN = BAND_NAME_A_GELBSTOFF + "_Fit_min";
-    private static final String BAND_NAME_A_PIG_FIT = BAND_NAME_A_PIGMENT + "_Fit";
+    static final String BAND_NAME_A_PIG_FIT = BAND_NAME_A_PIGMENT + "_Fit";
     private static final String BAND_NAME_A_PIG_FIT_MAX = BAND_NAME_A_PIGMENT + "_Fit_max";
     private static final String BAND_NAME_A_PIG_FIT_MIN = BAND_NAME_A_PIGMENT + "_Fit_min";
-    private static final String BAND_NAME_B_TSM_FIT = BAND_NAME_BB_SPM + "_Fit";
+    static final String BAND_NAME_B_TSM_FIT = BAND_NAME_BB_SPM + "_Fit";
     private static final String BAND_NAME_B_TSM_FIT_MAX = BAND_NAME_BB_SPM + "_Fit_max";
     private static final String BAND_NAME_B_TSM_FIT_MIN = BAND_NAME_BB_SPM + "_Fit_min";
 
-    private static final String BAND_NAME_TSM = "tsm";
-    private static final String BAND_NAME_CHL_CONC = "chl_conc";
-    private static final String BAND_NAME_CHI_SQUARE = "chiSquare";
-    private static final String BAND_NAME_K_MIN = "K_min";
-    private static final String BAND_NAME_Z90_MAX = "Z90_max";
-    private static final String BAND_NAME_KD_490 = "Kd_490";
+    static final String BAND_NAME_TSM = "tsm";
+    static final String BAND_NAME_CHL_CONC = "chl_conc";
+    static final String BAND_NAME_CHI_SQUARE = "chiSquare";
+    static final String BAND_NAME_K_MIN = "K_min";
+    static final String BAND_NAME_Z90_MAX = "Z90_max";
+    static final String BAND_NAME_KD_490 = "Kd_490";
     private static final String BAND_NAME_TURBIDITY_INDEX = "turbidity_index";
-    private static final String BAND_NAME_CASE2_FLAGS = "case2_flags";
-    private static final String BAND_NAME_TSM_FIT = "tsmFit";
-    private static final String BAND_NAME_CHL_CONC_FIT = "chl_concFit";
+    static final String BAND_NAME_CASE2_FLAGS = "case2_flags";
+    static final String BAND_NAME_TSM_FIT = "tsmFit";
+    static final String BAND_NAME_CHL_CONC_FIT = "chl_concFit";
     private static final String BAND_NAME_CHI_SQUARE_FIT = "chiSquareFit";
     private static final String BAND_NAME_N_ITER = "nIter";
     private static final String BAND_NAME_PARAM_CHANGE = "paramChange";
 
-    private static final double WINDSPEED_THRESHOLD = 12.0;
+    // the level tiles hold all target values, so the cache is bounded by their size in bytes
+    private static final long LEVEL_TILE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String STATISTICS_METADATA_NAME = "Case2_Statistics";
+    private static final int STATISTICS_BIN_COUNT = 1000;
+    private static final double[] STATISTICS_QUANTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
 
     @Parameter(defaultValue = "RADIANCE_REFLECTANCES", valueSet = {"RADIANCE_REFLECTANCES", "IRRADIANCE_REFLECTANCES"},
                label = "Input water leaving reflectance is",
@@ -103,17 +128,87 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
     private File forwardWaterNnFile;
 
     @Parameter(label = "Perform Chi-Square fitting", defaultValue = "false",
-               description = "Whether or not to perform the Chi-Square fitting.")
+               description = "Whether or not to perform the Chi-Square fitting. The fits of the pixels of a " +
+                             "tile are advanced together, but the forward net is still evaluated pixel by " +
+                             "pixel, so this costs as many net evaluations as fitting each pixel on its own.")
     private boolean performChiSquareFit;
 
+    @Parameter(label = "Linearised fit uncertainty", defaultValue = "false",
+               description = "Whether to derive the fit uncertainty bands from the forward net Jacobian at the " +
+                             "inverse net solution instead of performing the iterative fit.")
+    private boolean linearisedFitUncertainty;
+
+    @Parameter(label = "Two-pass Chi-Square fitting", defaultValue = "false",
+               description = "Whether to fit all pixels with a small iteration budget first and to re-fit only " +
+                             "the pixels where the fit failed, with a larger budget and several start values.")
+    private boolean twoPassFit;
+
+    @Parameter(label = "First pass iterations", defaultValue = "20", interval = "[1,200]",
+               description = "The maximum number of iterations of the first pass of the two-pass fit.")
+    private int fitFirstPassMaxIter;
+
+    @Parameter(label = "Second pass iterations", defaultValue = "200", interval = "[1,1000]",
+               description = "The maximum number of iterations of each restart of the second pass of the " +
+                             "two-pass fit.")
+    private int fitSecondPassMaxIter;
+
+    @Parameter(label = "Aggregation factor", defaultValue = "1", interval = "[1,32]",
+               description = "The number of pixels in x and y direction averaged to one superpixel before the " +
+                             "retrieval. The target product is reduced in size by this factor.")
+    private int aggregationFactor;
+
+    @Parameter(label = "Adaptive subsampling", defaultValue = "false",
+               description = "Whether to perform the retrieval on a sparse grid and to interpolate in smooth areas.")
+    private boolean adaptiveSubsampling;
+
+    @Parameter(label = "Adaptive grid step", defaultValue = "4", interval = "[2,64]",
+               description = "The distance of the sparse grid nodes in pixels.")
+    private int adaptiveGridStep;
+
+    @Parameter(label = "Adaptive tolerance", defaultValue = "0.02", interval = "(0,1]",
+               description = "The maximum relative deviation of the results and of the input reflectances " +
+                             "within a grid cell which still allows interpolation.")
+    private double adaptiveTolerance;
+
+    @Parameter(label = "Inverse net cache size", defaultValue = "0", interval = "[0,1000000]",
+               description = "The number of cached outputs of the inverse water net per thread. " +
+                             "Zero disables the cache.")
+    private int inverseNetCacheSize;
+
+    @Parameter(label = "Inverse net cache precision", defaultValue = "1.0E-4", interval = "(0,0.1]",
+               description = "The quantisation of the inverse water net inputs used as cache key, " +
+                             "relative to the training range of each input.")
+    private double inverseNetCachePrecision;
+
+    @Parameter(label = "Compute statistics", defaultValue = "false",
+               description = "Whether to accumulate histograms and percentiles of chl_conc, tsm, a_ys_443 and " +
+                             "chiSquare and the counts of the case2_flags bits during the computation. They are " +
+                             "added to the metadata of the target product when the operator is disposed, hence " +
+                             "they are missing in a target product written before, see statisticsFile.")
+    private boolean computeStatistics;
+
+    @Parameter(label = "Statistics file (optional)",
+               description = "The CSV file the statistics are written to when the operator is disposed, one " +
+                             "record per statistics attribute.")
+    private File statisticsFile;
+
+    private Product inputProduct;
+    private AdaptiveGridRetrieval adaptiveRetrieval;
+    private Map<String, Integer> targetBandIndexes;
     private int centerPixel;
     private boolean isFullResolution;
     private org.esa.beam.meris.case2.water.WaterAlgorithm waterAlgorithm;
-    private String inverseWaterNnString;
-    private String forwardWaterNnString;
-    private ThreadLocal<NNffbpAlphaTabFast> threadLocalInverseWaterNet;
-    private ThreadLocal<NNffbpAlphaTabFast> threadLocalForwardWaterNet;
-    private VirtualBandOpImage invalidOpImage;
+    private WaterRetrieval retrieval;
+    private Map<String, Object> sharedRetrievalParameters;
+    private final AtomicLong computedTilePixels = new AtomicLong();
+    private final AtomicLong computeTileNanos = new AtomicLong();
+    private MultiLevelModel levelModel;
+    private Map<Integer, VirtualBandOpImage> levelInvalidImages;
+    private Map<String, WaterKernel.Output> levelTileCache;
+    private long levelTileCacheBytes;
+    private Map<Integer, StreamingHistogram> statistics;
+    private StripedCounters flagCounts;
+    private Set<String> accumulatedTiles;
     private final String[] requiredReflecBandNames = new String[]{
             MERIS_L2_REFLEC_1_BAND_NAME,
             MERIS_L2_REFLEC_2_BAND_NAME,
@@ -135,8 +230,50 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
     };
 
     @Override
+    public void initialize() throws OperatorException {
+        prepareInputs();
+        final Product targetProduct = createTargetProduct();
+        configureTargetProduct(new WaterProductConfigurer(inputProduct, targetProduct));
+        setTargetProduct(targetProduct);
+        initRetrieval();
+    }
+
+    protected void prepareInputs() throws OperatorException {
+        if (performChiSquareFit && (linearisedFitUncertainty || twoPassFit) && !isInverseNetStartSupported()) {
+            throw new OperatorException("The linearised fit uncertainty and the two-pass fit are not supported " +
+                                        "by this algorithm.");
+        }
+        final Product sourceProduct = getSourceProduct();
+        validateSourceProduct(sourceProduct);
+        isFullResolution = isFullResolution(sourceProduct);
+        centerPixel = MerisFlightDirection.findNadirColumnIndex(sourceProduct);
+        if (aggregationFactor > 1) {
+            inputProduct = createAggregatedProduct(sourceProduct);
+        } else {
+            inputProduct = sourceProduct;
+        }
+    }
+
+    protected Product createTargetProduct() throws OperatorException {
+        final Product sourceProduct = getSourceProduct();
+        return new Product(sourceProduct.getName(), getProductType(),
+                           inputProduct.getSceneRasterWidth(), inputProduct.getSceneRasterHeight());
+    }
+
+    private Product createAggregatedProduct(Product sourceProduct) {
+        final ReflectanceAggregationOp aggregationOp = new ReflectanceAggregationOp();
+        aggregationOp.setParameterDefaultValues();
+        aggregationOp.setParameter("aggregationFactor", aggregationFactor);
+        aggregationOp.setParameter("invalidPixelExpression", invalidPixelExpression);
+        aggregationOp.setParameter("bandNames", requiredReflecBandNames);
+        aggregationOp.setSourceProduct("acProduct", sourceProduct);
+        return aggregationOp.getTargetProduct();
+    }
+
     protected void configureTargetProduct(final ProductConfigurer productConfigurer) {
-        super.configureTargetProduct(productConfigurer);
+        productConfigurer.copyTimeCoding();
+        productConfigurer.copyTiePointGrids();
+        productConfigurer.copyGeoCoding();
         productConfigurer.copyMetadata();
 
         final Product sourceProduct = productConfigurer.getSourceProduct();
@@ -219,82 +356,218 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
         }
     }
 
-    @Override
-    protected void configureTargetSamples(SampleConfigurer configurator) {
-        configurator.defineSample(TARGET_A_GELBSTOFF_INDEX, BAND_NAME_A_GELBSTOFF);
-        configurator.defineSample(TARGET_A_PIGMENT_INDEX, BAND_NAME_A_PIGMENT);
-        configurator.defineSample(TARGET_A_TOTAL_INDEX, BAND_NAME_A_TOTAL);
-        configurator.defineSample(TARGET_BB_SPM_INDEX, BAND_NAME_BB_SPM);
-        configurator.defineSample(TARGET_TSM_INDEX, BAND_NAME_TSM);
-        configurator.defineSample(TARGET_CHL_CONC_INDEX, BAND_NAME_CHL_CONC);
-        configurator.defineSample(TARGET_CHI_SQUARE_INDEX, BAND_NAME_CHI_SQUARE);
-        configurator.defineSample(TARGET_K_MIN_INDEX, BAND_NAME_K_MIN);
-        configurator.defineSample(TARGET_Z90_MAX_INDEX, BAND_NAME_Z90_MAX);
-        configurator.defineSample(TARGET_KD_490_INDEX, BAND_NAME_KD_490);
-        configurator.defineSample(TARGET_TURBIDITY_INDEX_INDEX, BAND_NAME_TURBIDITY_INDEX);
-        configurator.defineSample(TARGET_FLAG_INDEX, BAND_NAME_CASE2_FLAGS);
+    /**
+     * @return the names of the target bands, keyed by the target sample index used by the {@link WaterAlgorithm}
+     */
+    protected Map<Integer, String> getTargetSampleNames() {
+        final Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+        names.put(TARGET_A_GELBSTOFF_INDEX, BAND_NAME_A_GELBSTOFF);
+        names.put(TARGET_A_PIGMENT_INDEX, BAND_NAME_A_PIGMENT);
+        names.put(TARGET_A_TOTAL_INDEX, BAND_NAME_A_TOTAL);
+        names.put(TARGET_BB_SPM_INDEX, BAND_NAME_BB_SPM);
+        names.put(TARGET_TSM_INDEX, BAND_NAME_TSM);
+        names.put(TARGET_CHL_CONC_INDEX, BAND_NAME_CHL_CONC);
+        names.put(TARGET_CHI_SQUARE_INDEX, BAND_NAME_CHI_SQUARE);
+        names.put(TARGET_K_MIN_INDEX, BAND_NAME_K_MIN);
+        names.put(TARGET_Z90_MAX_INDEX, BAND_NAME_Z90_MAX);
+        names.put(TARGET_KD_490_INDEX, BAND_NAME_KD_490);
+        names.put(TARGET_TURBIDITY_INDEX_INDEX, BAND_NAME_TURBIDITY_INDEX);
+        names.put(TARGET_FLAG_INDEX, BAND_NAME_CASE2_FLAGS);
         if (performChiSquareFit) {
-            configurator.defineSample(TARGET_A_GELBSTOFF_FIT_INDEX, BAND_NAME_A_GELBSTOFF_FIT);
-            configurator.defineSample(TARGET_A_GELBSTOFF_FIT_MAX_INDEX, BAND_NAME_A_GELBSTOFF_FIT_MAX);
-            configurator.defineSample(TARGET_A_GELBSTOFF_FIT_MIN_INDEX, BAND_NAME_A_GELBSTOFF_FIT_MIN);
+            names.put(TARGET_A_GELBSTOFF_FIT_INDEX, BAND_NAME_A_GELBSTOFF_FIT);
+            names.put(TARGET_A_GELBSTOFF_FIT_MAX_INDEX, BAND_NAME_A_GELBSTOFF_FIT_MAX);
+            names.put(TARGET_A_GELBSTOFF_FIT_MIN_INDEX, BAND_NAME_A_GELBSTOFF_FIT_MIN);
 
-            configurator.defineSample(TARGET_A_PIG_FIT_INDEX, BAND_NAME_A_PIG_FIT);
-            configurator.defineSample(TARGET_A_PIG_FIT_MAX_INDEX, BAND_NAME_A_PIG_FIT_MAX);
-            configurator.defineSample(TARGET_A_PIG_FIT_MIN_INDEX, BAND_NAME_A_PIG_FIT_MIN);
+            names.put(TARGET_A_PIG_FIT_INDEX, BAND_NAME_A_PIG_FIT);
+            names.put(TARGET_A_PIG_FIT_MAX_INDEX, BAND_NAME_A_PIG_FIT_MAX);
+            names.put(TARGET_A_PIG_FIT_MIN_INDEX, BAND_NAME_A_PIG_FIT_MIN);
 
-            configurator.defineSample(TARGET_B_TSM_FIT_INDEX, BAND_NAME_B_TSM_FIT);
-            configurator.defineSample(TARGET_B_TSM_FIT_MAX_INDEX, BAND_NAME_B_TSM_FIT_MAX);
-            configurator.defineSample(TARGET_B_TSM_FIT_MIN_INDEX, BAND_NAME_B_TSM_FIT_MIN);
+            names.put(TARGET_B_TSM_FIT_INDEX, BAND_NAME_B_TSM_FIT);
+            names.put(TARGET_B_TSM_FIT_MAX_INDEX, BAND_NAME_B_TSM_FIT_MAX);
+            names.put(TARGET_B_TSM_FIT_MIN_INDEX, BAND_NAME_B_TSM_FIT_MIN);
 
-            configurator.defineSample(TARGET_TSM_FIT_INDEX, BAND_NAME_TSM_FIT);
-            configurator.defineSample(TARGET_CHL_CONC_FIT_INDEX, BAND_NAME_CHL_CONC_FIT);
-            configurator.defineSample(TARGET_CHI_SQUARE_FIT_INDEX, BAND_NAME_CHI_SQUARE_FIT);
-            configurator.defineSample(TARGET_N_ITER_FIT_INDEX, BAND_NAME_N_ITER);
-            configurator.defineSample(TARGET_PARAM_CHANGE_FIT_INDEX, BAND_NAME_PARAM_CHANGE);
+            names.put(TARGET_TSM_FIT_INDEX, BAND_NAME_TSM_FIT);
+            names.put(TARGET_CHL_CONC_FIT_INDEX, BAND_NAME_CHL_CONC_FIT);
+            names.put(TARGET_CHI_SQUARE_FIT_INDEX, BAND_NAME_CHI_SQUARE_FIT);
+            names.put(TARGET_N_ITER_FIT_INDEX, BAND_NAME_N_ITER);
+            names.put(TARGET_PARAM_CHANGE_FIT_INDEX, BAND_NAME_PARAM_CHANGE);
         }
+        return names;
     }
 
-    @Override
-    protected void configureSourceSamples(SampleConfigurer configurator) {
-        final Product sourceProduct = getSourceProduct();
-        validateSourceProduct(sourceProduct);
-        isFullResolution = isFullResolution(sourceProduct);
-
-        for (int i = 0; i < requiredReflecBandNames.length; i++) {
-            configurator.defineSample(i, requiredReflecBandNames[i]);
+    /**
+     * @return the names of the source rasters, ordered by the source sample index used by the {@link WaterAlgorithm}
+     */
+    String[] getSourceSampleNames() {
+        final String[] names = new String[requiredReflecBandNames.length + requiredTPGNames.length];
+        System.arraycopy(requiredReflecBandNames, 0, names, 0, requiredReflecBandNames.length);
+        System.arraycopy(requiredTPGNames, 0, names, requiredReflecBandNames.length, requiredTPGNames.length);
+        return names;
+    }
 
+    private void initRetrieval() {
+        targetBandIndexes = new HashMap<String, Integer>();
+        for (Map.Entry<Integer, String> entry : getTargetSampleNames().entrySet()) {
+            targetBandIndexes.put(entry.getValue(), entry.getKey());
         }
-        for (int i = 0; i < requiredTPGNames.length; i++) {
-            configurator.defineSample(requiredReflecBandNames.length + i, requiredTPGNames[i]);
+        levelModel = ImageManager.getInstance().getMultiLevelModel(inputProduct.getBand(requiredReflecBandNames[0]));
+        levelInvalidImages = new HashMap<Integer, VirtualBandOpImage>();
+        levelTileCache = new LinkedHashMap<String, WaterKernel.Output>(16, 0.75f, true);
+        if (adaptiveSubsampling) {
+            adaptiveRetrieval = new AdaptiveGridRetrieval(adaptiveGridStep, adaptiveTolerance);
+        }
+        if (computeStatistics) {
+            initStatistics();
         }
-        invalidOpImage = VirtualBandOpImage.createMask(invalidPixelExpression,
-                                                       sourceProduct,
-                                                       ResolutionLevel.MAXRES);
 
-        centerPixel = MerisFlightDirection.findNadirColumnIndex(sourceProduct);
         waterAlgorithm = createAlgorithm();
-        inverseWaterNnString = readNeuralNetString(getDefaultInverseWaterNetResourcePath(), inverseWaterNnFile);
-        forwardWaterNnString = readNeuralNetString(getDefaultForwardWaterNetResourcePath(), forwardWaterNnFile);
-        threadLocalInverseWaterNet = new ThreadLocal<NNffbpAlphaTabFast>() {
-            @Override
-            protected NNffbpAlphaTabFast initialValue() {
-                try {
-                    return new NNffbpAlphaTabFast(inverseWaterNnString);
-                } catch (IOException e) {
-                    throw new OperatorException("Not able to init neural net", e);
+        if (retrieval != null) {
+            // shared with other instances, see setRetrieval()
+            if (!getRetrievalParameters().equals(sharedRetrievalParameters)) {
+                throw new OperatorException("The shared retrieval has been created with the parameters " +
+                                            sharedRetrievalParameters + " instead of " +
+                                            getRetrievalParameters() + ".");
+            }
+            return;
+        }
+        final String inverseWaterNnString = readNeuralNetString(getDefaultInverseWaterNetResourcePath(),
+                                                                inverseWaterNnFile);
+        final String forwardWaterNnString = readNeuralNetString(getDefaultForwardWaterNetResourcePath(),
+                                                                forwardWaterNnFile);
+        WaterRetrieval.FittingFactory fittingFactory = null;
+        if (performChiSquareFit) {
+            fittingFactory = new WaterRetrieval.FittingFactory() {
+                @Override
+                public ChiSquareFitting createFitting() {
+                    final ChiSquareFitting fitting = createChiSquareFitting();
+                    if (twoPassFit) {
+                        fitting.setTwoPass(fitFirstPassMaxIter, fitSecondPassMaxIter);
+                    }
+                    fitting.setLinearised(linearisedFitUncertainty);
+                    return fitting;
                 }
+            };
+        }
+        try {
+            retrieval = new WaterRetrieval(waterAlgorithm, inverseWaterNnString, forwardWaterNnString,
+                                           inputReflecAre, fittingFactory, inverseNetCacheSize,
+                                           inverseNetCachePrecision, WaterRetrieval.DEFAULT_BATCH_SIZE);
+        } catch (IllegalArgumentException e) {
+            throw new OperatorException(e.getMessage(), e);
+        }
+    }
+
+    private void initStatistics() {
+        // logarithmic bins of less than 1.5% relative width
+        statistics = new LinkedHashMap<Integer, StreamingHistogram>();
+        statistics.put(TARGET_CHL_CONC_INDEX, new StreamingHistogram(1.0e-3, 1.0e3, STATISTICS_BIN_COUNT, true));
+        statistics.put(TARGET_TSM_INDEX, new StreamingHistogram(1.0e-3, 1.0e3, STATISTICS_BIN_COUNT, true));
+        statistics.put(TARGET_A_GELBSTOFF_INDEX, new StreamingHistogram(1.0e-4, 1.0e2, STATISTICS_BIN_COUNT, true));
+        statistics.put(TARGET_CHI_SQUARE_INDEX, new StreamingHistogram(1.0e-4, 1.0e4, STATISTICS_BIN_COUNT, true));
+        // one counter per flag bit and the number of pixels
+        flagCounts = new StripedCounters(9);
+        accumulatedTiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Adds the results of a tile or stripe to the statistics. Called concurrently by the tile threads.
+     */
+    private void accumulateStatistics(WaterKernel.Output output, int pixelCount) {
+        for (Map.Entry<Integer, StreamingHistogram> entry : statistics.entrySet()) {
+            final float[] values = output.getValues(entry.getKey());
+            if (values != null) {
+                entry.getValue().accumulate(values, pixelCount);
             }
-        };
-        threadLocalForwardWaterNet = new ThreadLocal<NNffbpAlphaTabFast>() {
-            @Override
-            protected NNffbpAlphaTabFast initialValue() {
-                try {
-                    return new NNffbpAlphaTabFast(forwardWaterNnString);
-                } catch (IOException e) {
-                    throw new OperatorException("Not able to init neural net", e);
+        }
+        final byte[] flags = output.getFlags();
+        final long[] counts = new long[flagCounts.getSize()];
+        for (int i = 0; i < pixelCount; i++) {
+            final int flag = flags[i] & 0xFF;
+            for (int bitIndex = 0; bitIndex < 8; bitIndex++) {
+                if ((flag & (1 << bitIndex)) != 0) {
+                    counts[bitIndex]++;
                 }
             }
-        };
+        }
+        counts[8] = pixelCount;
+        flagCounts.addAll(counts);
+    }
+
+    private MetadataElement createStatisticsElement() {
+        final MetadataElement statisticsElement = new MetadataElement(STATISTICS_METADATA_NAME);
+        final Map<Integer, String> names = getTargetSampleNames();
+        for (Map.Entry<Integer, StreamingHistogram> entry : statistics.entrySet()) {
+            final StreamingHistogram histogram = entry.getValue();
+            final MetadataElement bandElement = new MetadataElement(names.get(entry.getKey()));
+            bandElement.setAttributeInt("count", (int) histogram.getCount());
+            bandElement.setAttributeDouble("mean", histogram.getMean());
+            bandElement.setAttributeDouble("min", histogram.getMinimum());
+            bandElement.setAttributeDouble("max", histogram.getMaximum());
+            for (double p : STATISTICS_QUANTILES) {
+                bandElement.setAttributeDouble(String.format("p%d", Math.round(p * 100)), histogram.getQuantile(p));
+            }
+            final MetadataElement histogramElement = new MetadataElement("histogram");
+            histogramElement.setAttributeDouble("min", histogram.getMin());
+            histogramElement.setAttributeDouble("max", histogram.getMax());
+            histogramElement.setAttributeString("scaling", histogram.isLogScaled() ? "log" : "linear");
+            histogramElement.setAttributeInt("underflow", (int) histogram.getUnderflowCount());
+            histogramElement.setAttributeInt("overflow", (int) histogram.getOverflowCount());
+            final long[] binCounts = histogram.getBinCounts();
+            final int[] bins = new int[binCounts.length];
+            for (int i = 0; i < bins.length; i++) {
+                bins[i] = (int) binCounts[i];
+            }
+            histogramElement.addAttribute(new MetadataAttribute("bins", ProductData.createInstance(bins), true));
+            bandElement.addElement(histogramElement);
+            statisticsElement.addElement(bandElement);
+        }
+        final MetadataElement flagElement = new MetadataElement(BAND_NAME_CASE2_FLAGS);
+        final long[] counts = flagCounts.getAll();
+        flagElement.setAttributeInt("count", (int) counts[8]);
+        final FlagCoding flagCoding = getTargetProduct().getFlagCodingGroup().get(BAND_NAME_CASE2_FLAGS);
+        for (String flagName : flagCoding.getFlagNames()) {
+            final int bitIndex = Integer.numberOfTrailingZeros(flagCoding.getFlagMask(flagName));
+            flagElement.setAttributeInt(flagName, (int) counts[bitIndex]);
+        }
+        statisticsElement.addElement(flagElement);
+        return statisticsElement;
+    }
+
+    /**
+     * Writes the statistics as a CSV table with the columns element, attribute and value. The element is given
+     * by its path below the statistics element, e.g. "chl_conc/histogram"; the elements of array values are
+     * separated by blanks.
+     */
+    private static void writeStatistics(MetadataElement statisticsElement, File file) throws IOException {
+        final CsvWriter writer = new CsvWriter(new FileWriter(file));
+        try {
+            writer.write("element");
+            writer.write("attribute");
+            writer.write("value");
+            writer.endRecord();
+            for (MetadataElement element : statisticsElement.getElements()) {
+                writeStatistics(writer, element.getName(), element);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeStatistics(CsvWriter writer, String path, MetadataElement element) {
+        for (MetadataAttribute attribute : element.getAttributes()) {
+            final ProductData data = attribute.getData();
+            final StringBuilder value = new StringBuilder(data.getElemStringAt(0));
+            for (int i = 1; i < data.getNumElems(); i++) {
+                value.append(' ').append(data.getElemStringAt(i));
+            }
+            writer.write(path);
+            writer.write(attribute.getName());
+            writer.write(value.toString());
+            writer.endRecord();
+        }
+        for (MetadataElement child : element.getElements()) {
+            writeStatistics(writer, path + "/" + child.getName(), child);
+        }
     }
 
     static boolean isFullResolution(Product product) {
@@ -343,35 +616,434 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
     }
 
     @Override
-    protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
-        final double solazi = sourceSamples[SOURCE_SOLAZI_INDEX].getDouble();
-        final double satazi = sourceSamples[SOURCE_SATAZI_INDEX].getDouble();
-        double azi_diff_deg = getAzimuthDifference(satazi, solazi);
-        double solzen = sourceSamples[SOURCE_SOLZEN_INDEX].getDouble();
-        double satzen = sourceSamples[SOURCE_SATZEN_INDEX].getDouble();
-        satzen = correctViewAngle(satzen, x, centerPixel, isFullResolution);
-        double zonalWind = sourceSamples[SOURCE_ZONAL_WIND_INDEX].getDouble();
-        double meridWind = sourceSamples[SOURCE_MERID_WIND_INDEX].getDouble();
-        double windspeed = Math.sqrt(zonalWind * zonalWind + meridWind * meridWind);
-
-        if (invalidOpImage.getData(new Rectangle(x, y, 1, 1)).getSample(x, y, 0) != 0) {
-            targetSamples[TARGET_FLAG_INDEX].set(INVALID_BIT_INDEX, true);
-            return;
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        final int pixelCount = targetRectangle.width * targetRectangle.height;
+        final long startTime = System.nanoTime();
+        final WaterKernel.Output output;
+        pm.beginTask("Computing water constituents", pixelCount);
+        try {
+            output = computeTileData(ResolutionLevel.MAXRES, targetRectangle, new TileProgressMonitor(pm));
+        } catch (CancellationException e) {
+            throw new OperatorException("Computation of tile " + targetRectangle + " cancelled", e);
+        } finally {
+            pm.done();
+        }
+        computeTileNanos.addAndGet(System.nanoTime() - startTime);
+        computedTilePixels.addAndGet(pixelCount);
+        // a tile computed again, e.g. after it has been removed from the tile cache, is not counted twice
+        if (statistics != null && accumulatedTiles.add(targetRectangle.x + "," + targetRectangle.y)) {
+            accumulateStatistics(output, pixelCount);
         }
+        for (Map.Entry<Band, Tile> entry : targetTiles.entrySet()) {
+            checkForCancellation();
+            final String bandName = entry.getKey().getName();
+            final Integer targetIndex = targetBandIndexes.get(bandName);
+            if (targetIndex != null) {
+                writeTile(entry.getValue(), targetIndex, output);
+            } else if (isDerivedBand(bandName)) {
+                final float[] samples = new float[pixelCount];
+                computeDerivedSamples(bandName, output, pixelCount, samples);
+                entry.getValue().setSamples(samples);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a target band is not computed by the retrieval but derived from its results, see
+     * {@link #computeDerivedSamples(String, WaterKernel.Output, int, float[])}. No band is derived by default.
+     *
+     * @param bandName the name of the target band
+     *
+     * @return whether the band is derived
+     */
+    protected boolean isDerivedBand(String bandName) {
+        return false;
+    }
+
+    /**
+     * Computes the samples of a derived target band from the results of the retrieval, so the retrieval is
+     * performed once for all bands. Used for tiles as well as for the stripes of the
+     * {@link StreamingWaterProcessor}.
+     *
+     * @param bandName   the name of the derived band
+     * @param output     the results of the retrieval; its arrays may be longer than the pixel count
+     * @param pixelCount the number of pixels to compute
+     * @param samples    receives the samples, also those of integer bands
+     */
+    protected void computeDerivedSamples(String bandName, WaterKernel.Output output, int pixelCount,
+                                         float[] samples) {
+    }
 
-        if (windspeed > WINDSPEED_THRESHOLD) {
-            targetSamples[TARGET_FLAG_INDEX].set(WHITECAPS_BIT_INDEX, true);
+    private static void writeTile(Tile tile, int targetIndex, WaterKernel.Output output) {
+        final int width = tile.getWidth();
+        final int height = tile.getHeight();
+        final int offset = tile.getScanlineOffset();
+        final int stride = tile.getScanlineStride();
+        if (targetIndex == TARGET_FLAG_INDEX) {
+            final byte[] buffer = tile.getDataBufferByte();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(output.getFlags(), y * width, buffer, offset + y * stride, width);
+            }
+        } else if (tile.getRasterDataNode().getDataType() == ProductData.TYPE_FLOAT32) {
+            final float[] buffer = tile.getDataBufferFloat();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(output.getValues(targetIndex), y * width, buffer, offset + y * stride, width);
+            }
+        } else {
+            tile.setSamples(output.getValues(targetIndex));
         }
+    }
 
-        NNffbpAlphaTabFast inverseWaterNet = threadLocalInverseWaterNet.get();
-        NNffbpAlphaTabFast forwardWaterNet = threadLocalForwardWaterNet.get();
-        double[] RLw_cut = waterAlgorithm.perform(inverseWaterNet, forwardWaterNet,
-                                                  solzen, satzen, azi_diff_deg, sourceSamples, targetSamples,
-                                                  inputReflecAre);
-        if (performChiSquareFit) {
-            final ChiSquareFitting fitting = createChiSquareFitting();
-            fitting.perform(forwardWaterNet, RLw_cut, solzen, satzen, azi_diff_deg, targetSamples);
+    /**
+     * Computes a single pixel. Used for extracting match-ups; tiles are computed by
+     * {@link #computeTileStack(Map, Rectangle, ProgressMonitor)}.
+     *
+     * @param x             the x-coordinate of the pixel
+     * @param y             the y-coordinate of the pixel
+     * @param sourceSamples the source samples, ordered as given by {@link #getSourceSampleNames()}
+     * @param targetSamples the target samples, indexed by target sample index
+     */
+    void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
+        final VirtualBandOpImage invalidImage = getLevelInvalidImage(ResolutionLevel.MAXRES);
+        final boolean invalid = invalidImage.getData(new Rectangle(x, y, 1, 1)).getSample(x, y, 0) != 0;
+        final float[][] reflec = new float[requiredReflecBandNames.length][1];
+        for (int i = 0; i < reflec.length; i++) {
+            reflec[i][0] = sourceSamples[i].getFloat();
+        }
+        final double[] viewAngleCorrection = {
+                TileGeometry.getViewAngleCorrection(getSceneX(x, aggregationFactor), centerPixel, isFullResolution)
+        };
+        final TileGeometry geometry = new TileGeometry(1,
+                                                       new float[]{sourceSamples[SOURCE_SOLAZI_INDEX].getFloat()},
+                                                       new float[]{sourceSamples[SOURCE_SOLZEN_INDEX].getFloat()},
+                                                       new float[]{sourceSamples[SOURCE_SATAZI_INDEX].getFloat()},
+                                                       new float[]{sourceSamples[SOURCE_SATZEN_INDEX].getFloat()},
+                                                       new float[]{sourceSamples[SOURCE_ZONAL_WIND_INDEX].getFloat()},
+                                                       new float[]{sourceSamples[SOURCE_MERID_WIND_INDEX].getFloat()},
+                                                       viewAngleCorrection);
+        final WaterKernel.Input input = new WaterKernel.Input(reflec, geometry.solzen, geometry.satzen,
+                                                              geometry.aziDiff, geometry.windSpeed,
+                                                              new boolean[]{invalid});
+        final WaterKernel.Output output = new WaterKernel.Output(1);
+        final WaterKernel kernel = retrieval.getKernel();
+        kernel.compute(input, output);
+        for (int index : kernel.getTargetIndexes()) {
+            if (targetSamples[index] != null) {
+                targetSamples[index].set(output.getValues(index)[0]);
+            }
+        }
+        setFlags(targetSamples[TARGET_FLAG_INDEX], output.getFlags()[0] & 0xFF);
+    }
+
+    @Override
+    public void dispose() {
+        if (adaptiveRetrieval != null) {
+            final long computed = adaptiveRetrieval.getComputedPixelCount();
+            final long interpolated = adaptiveRetrieval.getInterpolatedPixelCount();
+            if (computed + interpolated > 0) {
+                getLogger().info(String.format("Adaptive subsampling: %d pixels computed, %d interpolated (%.1f%%)",
+                                               computed, interpolated,
+                                               100.0 * interpolated / (computed + interpolated)));
+            }
+        }
+        final long tilePixels = computedTilePixels.get();
+        final long tileNanos = computeTileNanos.get();
+        if (tilePixels > 0 && tileNanos > 0) {
+            // summed over all threads, hence the throughput of a single thread
+            getLogger().info(String.format("Tile computation: %d pixels, %.0f pixels/s per thread",
+                                           tilePixels, tilePixels * 1.0e9 / tileNanos));
+        }
+        if (statistics != null && flagCounts.get(8) > 0) {
+            final MetadataElement statisticsElement = createStatisticsElement();
+            getTargetProduct().getMetadataRoot().addElement(statisticsElement);
+            if (statisticsFile != null) {
+                try {
+                    writeStatistics(statisticsElement, statisticsFile);
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Could not write statistics file '" + statisticsFile + "'.", e);
+                }
+            }
+            final StreamingHistogram chlStatistics = statistics.get(TARGET_CHL_CONC_INDEX);
+            getLogger().info(String.format("Statistics: %d pixels, chl_conc mean %.4g, median %.4g",
+                                           flagCounts.get(8), chlStatistics.getMean(),
+                                           chlStatistics.getQuantile(0.5)));
+        }
+        if (retrieval != null) {
+            final long hits = retrieval.getInverseNetCacheHitCount();
+            final long misses = retrieval.getInverseNetCacheMissCount();
+            if (hits + misses > 0) {
+                getLogger().info(String.format("Inverse net cache: %d hits, %d misses (hit rate %.1f%%)",
+                                               hits, misses, 100.0 * hits / (hits + misses)));
+            }
+        }
+        super.dispose();
+    }
+
+    private String getInputInvalidExpression() {
+        if (aggregationFactor > 1) {
+            // the invalid pixel expression has already been applied during aggregation
+            return ReflectanceAggregationOp.BAND_NAME_VALID_COUNT + " == 0";
+        }
+        return invalidPixelExpression;
+    }
+
+    /**
+     * @return the retrieval of the operator, available after initialisation
+     */
+    WaterRetrieval getRetrieval() {
+        return retrieval;
+    }
+
+    /**
+     * Lets the operator use the retrieval of another instance instead of creating its own, so the neural nets
+     * are not read again and the kernels of the threads stay warm. Must be called before initialisation; the
+     * initialisation fails if the parameters affecting the retrieval differ from those of the other instance.
+     *
+     * @param retrieval           the retrieval to use
+     * @param retrievalParameters the {@link #getRetrievalParameters() retrieval parameters} of the other instance
+     */
+    void setRetrieval(WaterRetrieval retrieval, Map<String, Object> retrievalParameters) {
+        this.retrieval = retrieval;
+        sharedRetrievalParameters = retrievalParameters;
+    }
+
+    /**
+     * Returns the parameters the retrieval is created from. Subclasses passing further parameters to the
+     * algorithm or the fitting add them.
+     *
+     * @return the parameters affecting the retrieval, valid after the parameters have been injected
+     */
+    protected Map<String, Object> getRetrievalParameters() {
+        final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        parameters.put("operator", getClass().getName());
+        parameters.put("inputReflecAre", inputReflecAre);
+        parameters.put("spectrumOutOfScopeThreshold", spectrumOutOfScopeThreshold);
+        parameters.put("inverseWaterNnFile", inverseWaterNnFile);
+        parameters.put("forwardWaterNnFile", forwardWaterNnFile);
+        parameters.put("performChiSquareFit", performChiSquareFit);
+        parameters.put("linearisedFitUncertainty", linearisedFitUncertainty);
+        parameters.put("twoPassFit", twoPassFit);
+        parameters.put("fitFirstPassMaxIter", fitFirstPassMaxIter);
+        parameters.put("fitSecondPassMaxIter", fitSecondPassMaxIter);
+        parameters.put("inverseNetCacheSize", inverseNetCacheSize);
+        parameters.put("inverseNetCachePrecision", inverseNetCachePrecision);
+        return parameters;
+    }
+
+    /**
+     * @param bandName the name of a target band
+     *
+     * @return the target sample index of the band, or {@code null} if the band is not computed by the retrieval
+     */
+    Integer getComputedTargetIndex(String bandName) {
+        return targetBandIndexes.get(bandName);
+    }
+
+    /**
+     * @return the product the retrieval is performed on, which is the aggregated source product if
+     *         aggregation is enabled
+     */
+    Product getInputProduct() {
+        return inputProduct;
+    }
+
+    MultiLevelModel getLevelModel() {
+        return levelModel;
+    }
+
+    int getTargetSampleIndex(String bandName) {
+        for (Map.Entry<Integer, String> entry : getTargetSampleNames().entrySet()) {
+            if (entry.getValue().equals(bandName)) {
+                return entry.getKey();
+            }
         }
+        throw new IllegalArgumentException("Unknown target band '" + bandName + "'.");
+    }
+
+    /**
+     * Computes all target samples of a tile at the given resolution level. The retrieval is performed on the
+     * source reflectances and angles as provided by the source images at that level, so the result is not
+     * derived from the full resolution data. The tiles are shared by the images of all target bands.
+     *
+     * @param level    the resolution level
+     * @param tileRect the tile rectangle in the coordinates of the level
+     *
+     * @return the target samples of the tile
+     */
+    WaterKernel.Output computeLevelTile(ResolutionLevel level, Rectangle tileRect) {
+        final String key = level.getIndex() + ":" + tileRect.x + "," + tileRect.y + "," +
+                           tileRect.width + "," + tileRect.height;
+        WaterKernel.Output tileData;
+        synchronized (levelTileCache) {
+            tileData = levelTileCache.get(key);
+        }
+        if (tileData == null) {
+            tileData = computeTileData(level, tileRect, ProgressMonitor.NULL);
+            putLevelTile(key, tileData);
+        }
+        return tileData;
+    }
+
+    /**
+     * Adds a level tile to the cache and evicts the least recently used tiles while the cache exceeds
+     * {@link #LEVEL_TILE_CACHE_MAX_BYTES}. The tile just added is kept in any case.
+     */
+    private void putLevelTile(String key, WaterKernel.Output tileData) {
+        synchronized (levelTileCache) {
+            final WaterKernel.Output previous = levelTileCache.put(key, tileData);
+            if (previous != null) {
+                levelTileCacheBytes -= previous.getByteSize();
+            }
+            levelTileCacheBytes += tileData.getByteSize();
+            final Iterator<Map.Entry<String, WaterKernel.Output>> iterator = levelTileCache.entrySet().iterator();
+            while (levelTileCacheBytes > LEVEL_TILE_CACHE_MAX_BYTES && levelTileCache.size() > 1) {
+                final Map.Entry<String, WaterKernel.Output> eldest = iterator.next();
+                levelTileCacheBytes -= eldest.getValue().getByteSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Computes all target samples of a tile. The source data is read as arrays once per tile and
+     * passed to the {@link WaterKernel} of the current thread. If adaptive subsampling is enabled,
+     * the retrieval is performed on a sparse grid and refined where needed. The monitor receives the number
+     * of pixels computed and is checked for cancellation, also within the fits.
+     */
+    private WaterKernel.Output computeTileData(ResolutionLevel level, Rectangle tileRect, ProgressMonitor pm) {
+        final String[] sourceNames = getSourceSampleNames();
+        final float[][] sourceData = new float[sourceNames.length][];
+        for (int i = 0; i < sourceNames.length; i++) {
+            sourceData[i] = getSourceData(inputProduct.getRasterDataNode(sourceNames[i]), level, tileRect);
+        }
+        final int pixelCount = tileRect.width * tileRect.height;
+        final float[][] targetData = new float[TARGET_COUNT][];
+        for (int index : targetBandIndexes.values()) {
+            if (index != TARGET_FLAG_INDEX) {
+                targetData[index] = new float[pixelCount];
+            }
+        }
+        final byte[] flags = new byte[pixelCount];
+        return computeData(level, tileRect, sourceData, targetData, flags, pm);
+    }
+
+    /**
+     * Computes all target samples of a stripe of full resolution lines from the given source data.
+     * Used by the {@link StreamingWaterProcessor}.
+     *
+     * @param stripeRect the stripe rectangle
+     * @param sourceData the source data, ordered as given by {@link #getSourceSampleNames()}; the arrays may be
+     *                   longer than the stripe
+     * @param targetData receives the target samples, indexed by target sample index; {@code null} for samples
+     *                   not needed
+     * @param flags      receives the flags
+     * @param pm         the progress monitor, see {@link WaterKernel#setProgressMonitor(ProgressMonitor)}
+     *
+     * @return the results of the retrieval, backed by the target data and the flags
+     */
+    WaterKernel.Output computeStripe(Rectangle stripeRect, float[][] sourceData, float[][] targetData,
+                                     byte[] flags, ProgressMonitor pm) {
+        final WaterKernel.Output output = computeData(ResolutionLevel.MAXRES, stripeRect, sourceData, targetData,
+                                                      flags, pm);
+        if (statistics != null) {
+            accumulateStatistics(output, stripeRect.width * stripeRect.height);
+        }
+        return output;
+    }
+
+    private WaterKernel.Output computeData(ResolutionLevel level, Rectangle tileRect, float[][] sourceData,
+                                           float[][] targetData, byte[] flags, ProgressMonitor pm) {
+        final Raster invalidRaster = getLevelInvalidImage(level).getData(tileRect);
+        final int pixelCount = tileRect.width * tileRect.height;
+        final boolean[] invalid = new boolean[pixelCount];
+        int pixelIndex = 0;
+        for (int y = tileRect.y; y < tileRect.y + tileRect.height; y++) {
+            for (int x = tileRect.x; x < tileRect.x + tileRect.width; x++) {
+                invalid[pixelIndex++] = invalidRaster.getSample(x, y, 0) != 0;
+            }
+        }
+
+        final float[][] reflec = new float[requiredReflecBandNames.length][];
+        System.arraycopy(sourceData, 0, reflec, 0, reflec.length);
+        final TileGeometry geometry = createTileGeometry(level, tileRect, sourceData);
+        final WaterKernel.Input input = new WaterKernel.Input(reflec, geometry.solzen, geometry.satzen,
+                                                              geometry.aziDiff, geometry.windSpeed, invalid);
+        final WaterKernel.Output output = new WaterKernel.Output(targetData, flags);
+        final WaterKernel kernel = retrieval.getKernel();
+        kernel.setProgressMonitor(pm);
+        try {
+            if (adaptiveRetrieval != null) {
+                kernel.startTile();
+                final AdaptiveGridRetrieval.PixelRetrieval retrieval = new AdaptiveGridRetrieval.PixelRetrieval() {
+                    @Override
+                    public void compute(int x, int y, int pixelIndex) {
+                        kernel.compute(input, output, pixelIndex);
+                    }
+                };
+                adaptiveRetrieval.compute(tileRect.x, tileRect.y, tileRect.width, tileRect.height, reflec, invalid,
+                                          retrieval, targetData, flags);
+                pm.worked(pixelCount);
+            } else {
+                kernel.compute(input, output);
+            }
+        } finally {
+            kernel.setProgressMonitor(ProgressMonitor.NULL);
+        }
+        return output;
+    }
+
+    private float[] getSourceData(RasterDataNode sourceNode, ResolutionLevel level, Rectangle rect) {
+        if (level.getIndex() == 0) {
+            return getSourceTile(sourceNode, rect).getSamplesFloat();
+        }
+        final Raster raster = sourceNode.getGeophysicalImage().getImage(level.getIndex()).getData(rect);
+        return getPixels(raster, rect);
+    }
+
+    private TileGeometry createTileGeometry(ResolutionLevel level, Rectangle tileRect, float[][] sourceData) {
+        final double scale = level.getScale() * aggregationFactor;
+        final double[] sceneX = new double[tileRect.width];
+        for (int i = 0; i < sceneX.length; i++) {
+            sceneX[i] = getSceneX(tileRect.x + i, scale);
+        }
+        final double[] viewAngleCorrection = TileGeometry.createViewAngleCorrectionProfile(sceneX, centerPixel,
+                                                                                           isFullResolution);
+        return new TileGeometry(tileRect.width, tileRect.width * tileRect.height,
+                                sourceData[SOURCE_SOLAZI_INDEX],
+                                sourceData[SOURCE_SOLZEN_INDEX],
+                                sourceData[SOURCE_SATAZI_INDEX],
+                                sourceData[SOURCE_SATZEN_INDEX],
+                                sourceData[SOURCE_ZONAL_WIND_INDEX],
+                                sourceData[SOURCE_MERID_WIND_INDEX],
+                                viewAngleCorrection);
+    }
+
+    private static float[] getPixels(Raster raster, Rectangle rect) {
+        return raster.getPixels(rect.x, rect.y, rect.width, rect.height, new float[rect.width * rect.height]);
+    }
+
+    /**
+     * Returns the full resolution x-coordinate of a pixel, used for the view angle correction. As for the
+     * nadir column, pixel coordinates are column indexes, so a pixel covering several full resolution columns
+     * is located at the mean index of these columns. At full resolution this is the column index itself.
+     *
+     * @param x     the x-coordinate of the pixel
+     * @param scale the number of full resolution columns per pixel
+     *
+     * @return the full resolution x-coordinate
+     */
+    static double getSceneX(int x, double scale) {
+        return (x + 0.5) * scale - 0.5;
+    }
+
+    private synchronized VirtualBandOpImage getLevelInvalidImage(ResolutionLevel level) {
+        VirtualBandOpImage invalidImage = levelInvalidImages.get(level.getIndex());
+        if (invalidImage == null) {
+            invalidImage = VirtualBandOpImage.createMask(getInputInvalidExpression(), inputProduct, level);
+            levelInvalidImages.put(level.getIndex(), invalidImage);
+        }
+        return invalidImage;
     }
 
     protected abstract String getDefaultForwardWaterNetResourcePath();
@@ -384,6 +1056,16 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
 
     protected abstract String getProductTypeSuffix();
 
+    /**
+     * The linearised fit uncertainty and the restarts of the two-pass fit start from the inverse net solution,
+     * which {@link ChiSquareFitting} converts into the parameters of the regional forward net.
+     *
+     * @return whether the forward net of this algorithm takes these parameters
+     */
+    protected boolean isInverseNetStartSupported() {
+        return true;
+    }
+
     protected double getSpectrumOutOfScopeThreshold() {
         return spectrumOutOfScopeThreshold;
     }
@@ -413,13 +1095,6 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
         return type + getProductTypeSuffix();
     }
 
-    private double correctViewAngle(double satelliteZenith, int pixelX, int nadirPixelX, boolean isFullResolution) {
-        final double ang_coef_1 = -0.004793;
-        final double ang_coef_2 = isFullResolution ? 0.0093247 / 4 : 0.0093247;
-        satelliteZenith = satelliteZenith + Math.abs(pixelX - nadirPixelX) * ang_coef_2 + ang_coef_1;
-        return satelliteZenith;
-    }
-
     private void addFlagsAndMasks(Product targetProduct) {
         final FlagCoding case2FlagCoding = new FlagCoding(BAND_NAME_CASE2_FLAGS);
         case2FlagCoding.addFlag("WLR_OOR", WLR_OOR, "WLR out of scope");
@@ -427,9 +1102,14 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
         case2FlagCoding.addFlag("OOTR", OOTR, "RLw out of training range");
         case2FlagCoding.addFlag("WHITECAPS", WHITECAPS, "Whitecaps pixels");
         case2FlagCoding.addFlag("FIT_FAILED", FIT_FAILED, "Fit failed");
+        case2FlagCoding.addFlag("INTERPOLATED", INTERPOLATED, "Interpolated from sparse grid");
+        case2FlagCoding.addFlag("REFINED", REFINED, "Computed in refined grid cell");
         case2FlagCoding.addFlag("INVALID", INVALID, "not valid");
         targetProduct.getFlagCodingGroup().add(case2FlagCoding);
-        final Band case2Flags = targetProduct.addBand(BAND_NAME_CASE2_FLAGS, ProductData.TYPE_UINT8);
+        final Band case2Flags = new MultiLevelTargetBand(BAND_NAME_CASE2_FLAGS, ProductData.TYPE_UINT8,
+                                                         targetProduct.getSceneRasterWidth(),
+                                                         targetProduct.getSceneRasterHeight(), this);
+        targetProduct.addBand(case2Flags);
         case2Flags.setSampleCoding(case2FlagCoding);
 
         final ProductNodeGroup<Mask> maskGroup = targetProduct.getMaskGroup();
@@ -439,6 +1119,12 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
         addMask(maskGroup, "case2_ootr", "RLw out of training range", "case2_flags.OOTR", Color.ORANGE, 0.5f);
         addMask(maskGroup, "case2_whitecaps", "Whitecaps pixels", "case2_flags.WHITECAPS", Color.PINK, 0.5f);
         addMask(maskGroup, "case2_fit_failed", "Fit failed", "case2_flags.FIT_FAILED", Color.MAGENTA, 0.5f);
+        if (adaptiveSubsampling) {
+            addMask(maskGroup, "case2_interpolated", "Interpolated from sparse grid", "case2_flags.INTERPOLATED",
+                    Color.BLUE, 0.5f);
+            addMask(maskGroup, "case2_refined", "Computed in refined grid cell", "case2_flags.REFINED",
+                    Color.GREEN, 0.5f);
+        }
         addMask(maskGroup, "case2_invalid", "invalid case2 pixel", "case2_flags.INVALID", Color.RED, 0.0f);
     }
 
@@ -453,7 +1139,10 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
     protected final void addTargetBand(ProductConfigurer productConfigurer, String bandName, String unit,
                                        String description,
                                        boolean log10Scaled, int dataType) {
-        final Band band = productConfigurer.addBand(bandName, dataType);
+        final Product targetProduct = productConfigurer.getTargetProduct();
+        final Band band = new MultiLevelTargetBand(bandName, dataType, targetProduct.getSceneRasterWidth(),
+                                                   targetProduct.getSceneRasterHeight(), this);
+        targetProduct.addBand(band);
         band.setDescription(description);
         band.setUnit(unit);
         band.setLog10Scaled(log10Scaled);
@@ -473,23 +1162,30 @@ public abstract class MerisCase2BasisWaterOp extends PixelOperator {
             }
         }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(neuralNetStream));
         try {
-            String line = reader.readLine();
-            final StringBuilder sb = new StringBuilder();
-            while (line != null) {
-                // have to append line terminator, cause it's not included in line
-                sb.append(line).append('\n');
-                line = reader.readLine();
-            }
-            return sb.toString();
+            return WaterRetrieval.readNeuralNet(neuralNetStream);
         } catch (IOException ioe) {
             throw new OperatorException("Could not initialize neural net", ioe);
-        } finally {
+        }
+    }
+
+    /**
+     * Reports a tile as cancelled if either the wrapped monitor or the processing of the operator is cancelled.
+     */
+    private class TileProgressMonitor extends ProgressMonitorWrapper {
+
+        private TileProgressMonitor(ProgressMonitor pm) {
+            super(pm);
+        }
+
+        @Override
+        public boolean isCanceled() {
             try {
-                reader.close();
-            } catch (IOException ignore) {
+                checkForCancellation();
+            } catch (OperatorException e) {
+                return true;
             }
+            return super.isCanceled();
         }
     }
 }
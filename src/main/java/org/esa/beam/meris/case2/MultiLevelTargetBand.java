@@ -0,0 +1,77 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.glevel.MultiLevelImage;
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.jai.ResolutionLevel;
+
+import java.awt.image.RenderedImage;
+
+/**
+ * A target band of the {@link MerisCase2BasisWaterOp} which computes its lower resolution levels
+ * natively instead of down-sampling the full resolution image.
+ * <p/>
+ * The full resolution level is the image set by GPF. The images of all other levels perform the
+ * retrieval on the source data of the same level, which makes quick-looks and overviews
+ * considerably cheaper to compute.
+ *
+ * @author agent
+ */
+class MultiLevelTargetBand extends Band {
+
+    private final MerisCase2BasisWaterOp operator;
+
+    MultiLevelTargetBand(String name, int dataType, int width, int height, MerisCase2BasisWaterOp operator) {
+        super(name, dataType, width, height);
+        this.operator = operator;
+    }
+
+    @Override
+    public synchronized void setSourceImage(RenderedImage sourceImage) {
+        if (sourceImage == null || sourceImage instanceof MultiLevelImage) {
+            setSourceImage((MultiLevelImage) sourceImage);
+        } else {
+            super.setSourceImage(createMultiLevelImage(sourceImage));
+        }
+    }
+
+    @Override
+    public synchronized void setSourceImage(MultiLevelImage sourceImage) {
+        if (sourceImage == null || sourceImage instanceof WaterMultiLevelImage) {
+            super.setSourceImage(sourceImage);
+        } else {
+            super.setSourceImage(createMultiLevelImage(sourceImage.getImage(0)));
+        }
+    }
+
+    private MultiLevelImage createMultiLevelImage(RenderedImage levelZeroImage) {
+        return new WaterMultiLevelImage(new WaterMultiLevelSource(levelZeroImage));
+    }
+
+    private static class WaterMultiLevelImage extends DefaultMultiLevelImage {
+
+        private WaterMultiLevelImage(WaterMultiLevelSource source) {
+            super(source);
+        }
+    }
+
+    private class WaterMultiLevelSource extends AbstractMultiLevelSource {
+
+        private final RenderedImage levelZeroImage;
+
+        private WaterMultiLevelSource(RenderedImage levelZeroImage) {
+            super(operator.getLevelModel());
+            this.levelZeroImage = levelZeroImage;
+        }
+
+        @Override
+        protected RenderedImage createImage(int level) {
+            if (level == 0) {
+                return levelZeroImage;
+            }
+            return new WaterLevelOpImage(MultiLevelTargetBand.this, operator,
+                                         ResolutionLevel.create(getModel(), level));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGeoCoding;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.VirtualBandOpImage;
+import org.esa.beam.util.ProductUtils;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * Aggregates the reflectances of a product over blocks of NxN pixels ("superpixels").
+ * <p/>
+ * The aggregated reflectance is the mean of all valid pixels of a block. Pixels matching the
+ * invalid pixel expression or having a no-data reflectance are excluded. The number of pixels
+ * contributing to the mean is written to the band {@value #BAND_NAME_VALID_COUNT}.
+ * The tie-point grids are rescaled to the aggregated raster, so their value at the centre of a
+ * superpixel equals the mean of the block as long as the grid is linear across the block.
+ *
+ * @author agent
+ */
+@OperatorMetadata(alias = "Meris.Case2Aggregation",
+                  description = "Aggregates reflectances of MERIS products over blocks of NxN pixels.",
+                  authors = "agent",
+                  copyright = "(c) 2010 by Brockmann Consult",
+                  version = "1.0",
+                  internal = true)
+public class ReflectanceAggregationOp extends Operator {
+
+    public static final String BAND_NAME_VALID_COUNT = "aggregation_count";
+
+    @SourceProduct(alias = "acProduct", label = "Atmospherically corrected product")
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(defaultValue = "3", interval = "[1,32]",
+               description = "The number of pixels in x and y direction aggregated to one superpixel.")
+    private int aggregationFactor;
+
+    @Parameter(defaultValue = "agc_flags.INVALID",
+               description = "Expression defining pixels not considered for aggregation")
+    private String invalidPixelExpression;
+
+    @Parameter(description = "The names of the bands to aggregate.", notNull = true)
+    private String[] bandNames;
+
+    private VirtualBandOpImage invalidOpImage;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final int width = (sourceProduct.getSceneRasterWidth() + aggregationFactor - 1) / aggregationFactor;
+        final int height = (sourceProduct.getSceneRasterHeight() + aggregationFactor - 1) / aggregationFactor;
+        targetProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(), width, height);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+
+        for (String bandName : bandNames) {
+            final Band sourceBand = sourceProduct.getBand(bandName);
+            if (sourceBand == null) {
+                throw new OperatorException(String.format("Missing required band '%s'.", bandName));
+            }
+            final Band targetBand = targetProduct.addBand(bandName, ProductData.TYPE_FLOAT32);
+            targetBand.setDescription(sourceBand.getDescription());
+            targetBand.setUnit(sourceBand.getUnit());
+            targetBand.setSpectralBandIndex(sourceBand.getSpectralBandIndex());
+            targetBand.setSpectralWavelength(sourceBand.getSpectralWavelength());
+            targetBand.setNoDataValue(Double.NaN);
+            targetBand.setNoDataValueUsed(true);
+        }
+        final Band countBand = targetProduct.addBand(BAND_NAME_VALID_COUNT, ProductData.TYPE_INT16);
+        countBand.setDescription("Number of valid pixels aggregated to the superpixel");
+
+        for (TiePointGrid sourceGrid : sourceProduct.getTiePointGrids()) {
+            targetProduct.addTiePointGrid(rescaleTiePointGrid(sourceGrid));
+        }
+        final TiePointGrid latGrid = targetProduct.getTiePointGrid("latitude");
+        final TiePointGrid lonGrid = targetProduct.getTiePointGrid("longitude");
+        if (latGrid != null && lonGrid != null) {
+            targetProduct.setGeoCoding(new TiePointGeoCoding(latGrid, lonGrid));
+        }
+
+        invalidOpImage = VirtualBandOpImage.createMask(invalidPixelExpression, sourceProduct,
+                                                       ResolutionLevel.MAXRES);
+    }
+
+    @Override
+    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+        final Rectangle targetRect = targetTile.getRectangle();
+        final Rectangle sceneRect = new Rectangle(0, 0, sourceProduct.getSceneRasterWidth(),
+                                                  sourceProduct.getSceneRasterHeight());
+        final Rectangle sourceRect = sceneRect.intersection(new Rectangle(targetRect.x * aggregationFactor,
+                                                                          targetRect.y * aggregationFactor,
+                                                                          targetRect.width * aggregationFactor,
+                                                                          targetRect.height * aggregationFactor));
+        final Raster invalidRaster = invalidOpImage.getData(sourceRect);
+        final boolean isCountBand = BAND_NAME_VALID_COUNT.equals(targetBand.getName());
+        final Band sourceBand = isCountBand ? null : sourceProduct.getBand(targetBand.getName());
+        final Tile sourceTile = isCountBand ? null : getSourceTile(sourceBand, sourceRect);
+
+        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
+            checkForCancellation();
+            final int y0 = y * aggregationFactor;
+            final int y1 = Math.min(y0 + aggregationFactor, sourceRect.y + sourceRect.height);
+            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
+                final int x0 = x * aggregationFactor;
+                final int x1 = Math.min(x0 + aggregationFactor, sourceRect.x + sourceRect.width);
+                int count = 0;
+                double sum = 0.0;
+                for (int sy = y0; sy < y1; sy++) {
+                    for (int sx = x0; sx < x1; sx++) {
+                        if (invalidRaster.getSample(sx, sy, 0) != 0) {
+                            continue;
+                        }
+                        if (sourceTile != null) {
+                            if (!sourceTile.isSampleValid(sx, sy)) {
+                                continue;
+                            }
+                            sum += sourceTile.getSampleDouble(sx, sy);
+                        }
+                        count++;
+                    }
+                }
+                if (isCountBand) {
+                    targetTile.setSample(x, y, count);
+                } else {
+                    targetTile.setSample(x, y, count > 0 ? sum / count : Double.NaN);
+                }
+            }
+        }
+    }
+
+    private TiePointGrid rescaleTiePointGrid(TiePointGrid sourceGrid) {
+        final float[] tiePoints = sourceGrid.getTiePoints();
+        final TiePointGrid grid = new TiePointGrid(sourceGrid.getName(),
+                                                   sourceGrid.getRasterWidth(),
+                                                   sourceGrid.getRasterHeight(),
+                                                   sourceGrid.getOffsetX() / aggregationFactor,
+                                                   sourceGrid.getOffsetY() / aggregationFactor,
+                                                   sourceGrid.getSubSamplingX() / aggregationFactor,
+                                                   sourceGrid.getSubSamplingY() / aggregationFactor,
+                                                   tiePoints.clone(),
+                                                   sourceGrid.getDiscontinuity());
+        grid.setUnit(sourceGrid.getUnit());
+        grid.setDescription(sourceGrid.getDescription());
+        return grid;
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(ReflectanceAggregationOp.class);
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package org.esa.beam.meris.case2;
 
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
 import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.pointop.ProductConfigurer;
 import org.esa.beam.meris.case2.fit.ChiSquareFitting;
 import org.esa.beam.meris.case2.fit.MerisGLM;
 import org.esa.beam.meris.case2.water.RegionalWater;
 import org.esa.beam.meris.case2.water.WaterAlgorithm;
+import org.esa.beam.meris.case2.water.WaterKernel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
 
 @OperatorMetadata(alias = "Meris.RegionalWater",
                   description = "Performs IOP retrieval on atmospherically corrected MERIS products.",
@@ -19,6 +31,8 @@ import org.esa.beam.meris.case2.water.WaterAlgorithm;
 public class RegionalWaterOp extends MerisCase2BasisWaterOp {
 
     private static final String PRODUCT_TYPE_SUFFIX = "REG";
+    private static final String SWEEP_METADATA_NAME = "Parameter_Sweep";
+    private static final int OOTR = 1 << OOTR_BIT_INDEX;
 
     @SourceProduct(alias = "acProduct", label = "Atmospherically corrected product")
     private Product source;
@@ -31,7 +45,13 @@ public class RegionalWaterOp extends MerisCase2BasisWaterOp {
     private double chlConversionExponent;
     @Parameter(defaultValue = "21.0", description = "Factor for conversion from A_PIG to CHL_CONC")
     private double chlConversionFactor;
+    @Parameter(label = "Parameter sweep",
+               description = "Additional parameter sets 'chlConversionFactor:tsmConversionExponent:" +
+                             "spectrumOutOfScopeThreshold' applied to the same net outputs. For the n-th set the " +
+                             "bands tsm_n, chl_conc_n and case2_flags_n are added.")
+    private String[] parameterSweep;
 
+    private Map<String, SweepBand> sweepBands;
 
     @Override
     protected String getDefaultForwardWaterNetResourcePath() {
@@ -56,12 +76,148 @@ public class RegionalWaterOp extends MerisCase2BasisWaterOp {
                                     chlConversionExponent, chlConversionFactor, new MerisGLM(11, 8));
     }
 
+    @Override
+    protected Map<String, Object> getRetrievalParameters() {
+        final Map<String, Object> parameters = super.getRetrievalParameters();
+        parameters.put("tsmConversionExponent", tsmConversionExponent);
+        parameters.put("tsmConversionFactor", tsmConversionFactor);
+        parameters.put("chlConversionExponent", chlConversionExponent);
+        parameters.put("chlConversionFactor", chlConversionFactor);
+        return parameters;
+    }
+
+    @Override
+    protected void configureTargetProduct(ProductConfigurer productConfigurer) {
+        super.configureTargetProduct(productConfigurer);
+        sweepBands = new HashMap<String, SweepBand>();
+        if (parameterSweep == null || parameterSweep.length == 0) {
+            return;
+        }
+        final Product targetProduct = productConfigurer.getTargetProduct();
+        final MetadataElement sweepElement = new MetadataElement(SWEEP_METADATA_NAME);
+        for (int i = 0; i < parameterSweep.length; i++) {
+            final String suffix = "_" + (i + 1);
+            final double[] values = parseSweepSet(parameterSweep[i]);
+            final double chlFactor = values[0];
+            final double tsmExponent = values[1];
+            final double threshold = values[2];
+
+            addSweepBand(targetProduct, BAND_NAME_TSM + suffix, ProductData.TYPE_FLOAT32,
+                         new SweepBand(TARGET_TSM_INDEX, tsmConversionFactor, tsmExponent, threshold));
+            addSweepBand(targetProduct, BAND_NAME_CHL_CONC + suffix, ProductData.TYPE_FLOAT32,
+                         new SweepBand(TARGET_CHL_CONC_INDEX, chlFactor, chlConversionExponent, threshold));
+            final Band flagBand = addSweepBand(targetProduct, BAND_NAME_CASE2_FLAGS + suffix, ProductData.TYPE_UINT8,
+                                               new SweepBand(TARGET_FLAG_INDEX, Double.NaN, Double.NaN, threshold));
+            flagBand.setSampleCoding(targetProduct.getBand(BAND_NAME_CASE2_FLAGS).getFlagCoding());
+
+            final MetadataElement setElement = new MetadataElement("Set" + suffix);
+            setElement.addAttribute(createAttribute("chlConversionFactor", chlFactor));
+            setElement.addAttribute(createAttribute("tsmConversionExponent", tsmExponent));
+            setElement.addAttribute(createAttribute("spectrumOutOfScopeThreshold", threshold));
+            sweepElement.addElement(setElement);
+        }
+        targetProduct.getMetadataRoot().addElement(sweepElement);
+    }
+
+    @Override
+    protected boolean isDerivedBand(String bandName) {
+        return sweepBands.containsKey(bandName);
+    }
+
+    @Override
+    protected void computeDerivedSamples(String bandName, WaterKernel.Output output, int pixelCount,
+                                         float[] samples) {
+        sweepBands.get(bandName).computeSamples(output, pixelCount, samples);
+    }
+
+    private Band addSweepBand(Product targetProduct, String name, int dataType, SweepBand sweepBand) {
+        final Band band = targetProduct.addBand(name, dataType);
+        final Band sourceBand = targetProduct.getBand(name.substring(0, name.lastIndexOf('_')));
+        band.setUnit(sourceBand.getUnit());
+        band.setDescription(sourceBand.getDescription());
+        band.setValidPixelExpression(sourceBand.getValidPixelExpression());
+        if (dataType == ProductData.TYPE_FLOAT32) {
+            band.setNoDataValue(Double.NaN);
+            band.setNoDataValueUsed(true);
+        }
+        sweepBands.put(name, sweepBand);
+        return band;
+    }
+
+    private static double[] parseSweepSet(String set) {
+        final String[] tokens = set.trim().split(":");
+        if (tokens.length != 3) {
+            throw new OperatorException("Invalid parameter set '" + set + "', expected " +
+                                        "'chlConversionFactor:tsmConversionExponent:spectrumOutOfScopeThreshold'.");
+        }
+        final double[] values = new double[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                values[i] = Double.parseDouble(tokens[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new OperatorException("Invalid parameter set '" + set + "'.", e);
+        }
+        return values;
+    }
+
+    private static MetadataAttribute createAttribute(String name, double value) {
+        return new MetadataAttribute(name, ProductData.createInstance(new double[]{value}), true);
+    }
+
     @Override
     protected String getProductTypeSuffix() {
         return PRODUCT_TYPE_SUFFIX;
     }
 
 
+    /**
+     * A band of the parameter sweep, derived from the retrieval results with the conversion parameters and
+     * the threshold of its set.
+     */
+    static final class SweepBand {
+
+        private final int targetIndex;
+        private final double factor;
+        private final double exponent;
+        private final double threshold;
+
+        /**
+         * @param targetIndex the target sample index of tsm, chl_conc or the flags
+         * @param factor      the conversion factor, not used for the flags
+         * @param exponent    the conversion exponent, not used for the flags
+         * @param threshold   the threshold of the chi-square raising the OOTR flag
+         */
+        SweepBand(int targetIndex, double factor, double exponent, double threshold) {
+            this.targetIndex = targetIndex;
+            this.factor = factor;
+            this.exponent = exponent;
+            this.threshold = threshold;
+        }
+
+        void computeSamples(WaterKernel.Output output, int pixelCount, float[] samples) {
+            final float[] chiSquare = output.getValues(TARGET_CHI_SQUARE_INDEX);
+            if (targetIndex == TARGET_FLAG_INDEX) {
+                final byte[] flags = output.getFlags();
+                for (int i = 0; i < pixelCount; i++) {
+                    int flag = flags[i] & 0xFF & ~OOTR;
+                    if (chiSquare[i] > threshold) {
+                        flag |= OOTR;
+                    }
+                    samples[i] = flag;
+                }
+            } else {
+                final boolean isTsm = targetIndex == TARGET_TSM_INDEX;
+                final float[] values = output.getValues(isTsm ? TARGET_BB_SPM_INDEX : TARGET_A_PIGMENT_INDEX);
+                final double logFactor = Math.log(factor);
+                for (int i = 0; i < pixelCount; i++) {
+                    final float value = isTsm ? (float) (values[i] / BTSM_TO_SPM_FACTOR) : values[i];
+                    samples[i] = (float) Math.exp(logFactor + Math.log(value) * exponent);
+                }
+            }
+        }
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
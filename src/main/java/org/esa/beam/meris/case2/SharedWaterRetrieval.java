@@ -0,0 +1,45 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.meris.case2.water.WaterRetrieval;
+
+import java.util.Map;
+
+/**
+ * Holds the water retrieval shared by the {@link Case2IOPOperator}s of a long-running process, so the neural
+ * nets are read once and the kernels of the tile threads stay warm. The operators must be configured with
+ * equal water parameters, otherwise their initialisation fails.
+ *
+ * @author agent
+ */
+final class SharedWaterRetrieval {
+
+    private WaterRetrieval retrieval;
+    private Map<String, Object> retrievalParameters;
+
+    /**
+     * Initialises the operator with the shared retrieval. The first operator initialised creates it.
+     *
+     * @param operator the operator, configured but not initialised
+     *
+     * @return the target product of the operator
+     *
+     * @throws org.esa.beam.framework.gpf.OperatorException if the water parameters of the operator differ from
+     *                                                      those of the shared retrieval
+     */
+    Product createTargetProduct(Case2IOPOperator operator) {
+        synchronized (this) {
+            operator.setWaterRetrieval(retrieval, retrievalParameters);
+        }
+        final Product targetProduct = operator.getTargetProduct();
+        set(operator.getWaterRetrieval(), operator.getWaterRetrievalParameters());
+        return targetProduct;
+    }
+
+    private synchronized void set(WaterRetrieval retrieval, Map<String, Object> retrievalParameters) {
+        if (this.retrieval == null) {
+            this.retrieval = retrieval;
+            this.retrievalParameters = retrievalParameters;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.meris.case2.util.RasterBlockMap;
+import org.esa.beam.meris.case2.water.WaterKernel;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Writes the target product of a water operator in horizontal stripes of full width, bypassing the tile
+ * computation and tile cache of GPF.
+ * <p/>
+ * The source data of a stripe is read into a {@link RasterBlockMap}, all target bands of the stripe are
+ * computed at once and written, and the stripe buffers are reused for the next stripe. The memory needed is
+ * bounded by the stripe height times the number of bands, independent of the scene height. The bands derived
+ * from the results of the retrieval, e.g. those of a parameter sweep, are computed from the results of the
+ * stripe, so the retrieval is performed once per stripe. The other bands of the target product, e.g. the
+ * copied flag bands, are passed through stripe-wise. Virtual bands are not written.
+ *
+ * @author agent
+ */
+public class StreamingWaterProcessor {
+
+    public static final int DEFAULT_STRIPE_HEIGHT = 64;
+
+    private final MerisCase2BasisWaterOp operator;
+    private final int stripeHeight;
+    private ExecutorService ioExecutor;
+    private int maxStripesInFlight;
+
+    /**
+     * @param operator     the water operator, its target product is initialised if not done yet
+     * @param stripeHeight the number of lines of a stripe
+     */
+    public StreamingWaterProcessor(MerisCase2BasisWaterOp operator, int stripeHeight) {
+        if (stripeHeight < 1) {
+            throw new IllegalArgumentException("stripeHeight < 1");
+        }
+        this.operator = operator;
+        this.stripeHeight = stripeHeight;
+    }
+
+    /**
+     * Overlaps reading and writing with the computation, see {@link RasterBlockMap}. Each stripe in flight
+     * needs the memory of one more stripe.
+     *
+     * @param ioExecutor         the executor performing the I/O, or {@code null} for synchronous I/O
+     * @param maxStripesInFlight the maximum number of stripes being read or written in the background
+     */
+    public void setAsyncIO(ExecutorService ioExecutor, int maxStripesInFlight) {
+        this.ioExecutor = ioExecutor;
+        this.maxStripesInFlight = maxStripesInFlight;
+    }
+
+    /**
+     * Writes the target product of the operator.
+     *
+     * @param outputFile the output file
+     * @param formatName the name of the output format
+     * @param pm         the progress monitor, the work is given in pixels
+     *
+     * @throws IOException       if reading or writing failed
+     * @throws OperatorException if the processing was cancelled
+     */
+    public void writeProduct(File outputFile, String formatName, ProgressMonitor pm) throws IOException {
+        final ProductWriter writer = ProductIO.getProductWriter(formatName);
+        if (writer == null) {
+            throw new IOException("No writer found for format '" + formatName + "'.");
+        }
+        final Product targetProduct = operator.getTargetProduct();
+        writer.writeProductNodes(targetProduct, outputFile);
+        try {
+            writeStripes(targetProduct, pm);
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the bands of the target product, whose nodes have been written already.
+     */
+    void writeStripes(Product targetProduct, ProgressMonitor pm) throws IOException {
+        final Product inputProduct = operator.getInputProduct();
+        // the target product is derived from the input product, so the I/O of all maps is serialised
+        final Object ioLock = new Object();
+        final RasterBlockMap sourceBlocks = createBlockMap(ioLock);
+        final String[] sourceNames = operator.getSourceSampleNames();
+        final int[] sourceHandles = new int[sourceNames.length];
+        for (int i = 0; i < sourceNames.length; i++) {
+            final RasterDataNode sourceRaster = inputProduct.getRasterDataNode(sourceNames[i]);
+            if (!sourceRaster.isFloatingPointType()) {
+                throw new OperatorException("Source raster '" + sourceNames[i] + "' is not of floating point type.");
+            }
+            sourceBlocks.addRaster(sourceRaster);
+            sourceHandles[i] = sourceBlocks.getHandle(sourceNames[i]);
+        }
+
+        final RasterBlockMap targetBlocks = createBlockMap(ioLock);
+        final RasterBlockMap passThroughBlocks = createBlockMap(ioLock);
+        final List<Band> computedBands = new ArrayList<Band>();
+        final List<Band> derivedBands = new ArrayList<Band>();
+        for (Band band : targetProduct.getBands()) {
+            if (band instanceof VirtualBand) {
+                continue;
+            }
+            if (operator.getComputedTargetIndex(band.getName()) != null) {
+                targetBlocks.addRaster(band, Float.NaN);
+                computedBands.add(band);
+            } else if (operator.isDerivedBand(band.getName())) {
+                targetBlocks.addRaster(band, Float.NaN);
+                derivedBands.add(band);
+            } else {
+                passThroughBlocks.addRaster(band);
+            }
+        }
+
+        final int width = targetProduct.getSceneRasterWidth();
+        final int height = targetProduct.getSceneRasterHeight();
+        final int[] targetIndexes = new int[computedBands.size()];
+        final int[] targetHandles = new int[computedBands.size()];
+        // integer target bands are computed into a float buffer and converted
+        final float[][] conversionBuffers = new float[computedBands.size()][];
+        for (int i = 0; i < targetIndexes.length; i++) {
+            final Band band = computedBands.get(i);
+            targetIndexes[i] = operator.getComputedTargetIndex(band.getName());
+            targetHandles[i] = targetBlocks.getHandle(band.getName());
+            if (targetIndexes[i] != TARGET_FLAG_INDEX && !band.isFloatingPointType()) {
+                conversionBuffers[i] = new float[width * stripeHeight];
+            }
+        }
+        final int[] derivedHandles = new int[derivedBands.size()];
+        final float[][] derivedBuffers = new float[derivedBands.size()][];
+        for (int i = 0; i < derivedHandles.length; i++) {
+            final Band band = derivedBands.get(i);
+            derivedHandles[i] = targetBlocks.getHandle(band.getName());
+            if (!band.isFloatingPointType()) {
+                derivedBuffers[i] = new float[width * stripeHeight];
+            }
+        }
+        final float[][] sourceData = new float[sourceNames.length][];
+        final float[][] targetData = new float[TARGET_COUNT][];
+        final byte[] flags = new byte[width * stripeHeight];
+
+        pm.beginTask("Computing water constituents", width * height);
+        try {
+            for (int y = 0; y < height; y += stripeHeight) {
+                final int lines = sourceBlocks.readBlock(y);
+                passThroughBlocks.readBlock(y);
+                for (int i = 0; i < sourceHandles.length; i++) {
+                    sourceData[i] = sourceBlocks.getFloatData(sourceHandles[i]);
+                }
+                for (int i = 0; i < targetIndexes.length; i++) {
+                    if (targetIndexes[i] != TARGET_FLAG_INDEX) {
+                        targetData[targetIndexes[i]] = conversionBuffers[i] != null
+                                                       ? conversionBuffers[i]
+                                                       : targetBlocks.getFloatData(targetHandles[i]);
+                    }
+                }
+                final WaterKernel.Output output = operator.computeStripe(new Rectangle(0, y, width, lines),
+                                                                         sourceData, targetData, flags, pm);
+                final int pixelCount = width * lines;
+                for (int i = 0; i < targetIndexes.length; i++) {
+                    if (targetIndexes[i] == TARGET_FLAG_INDEX) {
+                        final int[] flagData = targetBlocks.getIntData(targetHandles[i]);
+                        for (int k = 0; k < pixelCount; k++) {
+                            flagData[k] = flags[k] & 0xFF;
+                        }
+                    } else if (conversionBuffers[i] != null) {
+                        final int[] intData = targetBlocks.getIntData(targetHandles[i]);
+                        for (int k = 0; k < pixelCount; k++) {
+                            intData[k] = Math.round(conversionBuffers[i][k]);
+                        }
+                    }
+                }
+                for (int i = 0; i < derivedHandles.length; i++) {
+                    final String bandName = derivedBands.get(i).getName();
+                    if (derivedBuffers[i] != null) {
+                        operator.computeDerivedSamples(bandName, output, pixelCount, derivedBuffers[i]);
+                        final int[] intData = targetBlocks.getIntData(derivedHandles[i]);
+                        for (int k = 0; k < pixelCount; k++) {
+                            intData[k] = Math.round(derivedBuffers[i][k]);
+                        }
+                    } else {
+                        operator.computeDerivedSamples(bandName, output, pixelCount,
+                                                       targetBlocks.getFloatData(derivedHandles[i]));
+                    }
+                }
+                targetBlocks.writeBlock(y);
+                passThroughBlocks.writeBlock(y);
+            }
+        } catch (CancellationException e) {
+            throw new OperatorException("Processing cancelled", e);
+        } finally {
+            pm.done();
+            try {
+                targetBlocks.clear();
+                passThroughBlocks.clear();
+            } finally {
+                sourceBlocks.clear();
+            }
+        }
+    }
+
+    private RasterBlockMap createBlockMap(Object ioLock) {
+        return new RasterBlockMap(stripeHeight, ioExecutor, ioExecutor != null ? maxStripesInFlight : 0, ioLock);
+    }
+
+    /**
+     * Usage: <code>StreamingWaterProcessor &lt;acProduct&gt; &lt;outputFile&gt; [-f format] [-s stripeHeight]
+     * [-i stripesInFlight]</code>, where the input is an atmospherically corrected product processed by
+     * {@link RegionalWaterOp} with its default parameters. With stripes in flight the reading and writing
+     * overlap with the computation.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        String formatName = ProductIO.DEFAULT_FORMAT_NAME;
+        int stripeHeight = DEFAULT_STRIPE_HEIGHT;
+        int stripesInFlight = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            if ("-f".equals(args[i])) {
+                formatName = args[++i];
+            } else if ("-s".equals(args[i])) {
+                stripeHeight = Integer.parseInt(args[++i]);
+            } else if ("-i".equals(args[i])) {
+                stripesInFlight = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        final Product product = ProductIO.readProduct(new File(args[0]));
+        if (product == null) {
+            throw new IOException("No reader found for " + args[0]);
+        }
+        final RegionalWaterOp operator = new RegionalWaterOp();
+        // one thread for each of the source, target and pass-through block maps
+        final ExecutorService ioExecutor = stripesInFlight > 0 ? Executors.newFixedThreadPool(3) : null;
+        try {
+            operator.setParameterDefaultValues();
+            operator.setSourceProduct("acProduct", product);
+            final StreamingWaterProcessor processor = new StreamingWaterProcessor(operator, stripeHeight);
+            processor.setAsyncIO(ioExecutor, stripesInFlight);
+            processor.writeProduct(new File(args[1]), formatName, ProgressMonitor.NULL);
+        } finally {
+            if (ioExecutor != null) {
+                ioExecutor.shutdown();
+            }
+            operator.dispose();
+            product.dispose();
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: StreamingWaterProcessor <acProduct> <outputFile> [-f format] [-s stripeHeight] " +
+                           "[-i stripesInFlight]");
+    }
+}
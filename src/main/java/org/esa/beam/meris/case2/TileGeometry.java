@@ -0,0 +1,80 @@
+package org.esa.beam.meris.case2;
+
+/**
+ * The observation geometry and wind speed of a tile, prepared for the retrieval.
+ * <p/>
+ * The view zenith correction depends only on the column, so it is computed once per tile column
+ * as a profile. The azimuth difference and the wind speed are computed for each pixel from the interpolated
+ * tie-point values, once per tile instead of inside the per-pixel retrieval.
+ *
+ * @author agent
+ */
+class TileGeometry {
+
+    private static final double ANG_COEF_1 = -0.004793;
+    private static final double ANG_COEF_2 = 0.0093247;
+
+    final double[] solzen;
+    final double[] satzen;
+    final double[] aziDiff;
+    final double[] windSpeed;
+
+    /**
+     * Creates the geometry of a tile. The given arrays hold the interpolated tie-point values of the tile
+     * in row-major order.
+     *
+     * @param width               the width of the tile
+     * @param solazi              the sun azimuth
+     * @param solzen              the sun zenith
+     * @param satazi              the view azimuth
+     * @param satzen              the view zenith
+     * @param zonalWind           the zonal wind
+     * @param meridWind           the meridional wind
+     * @param viewAngleCorrection the view zenith correction profile, one value per tile column
+     */
+    TileGeometry(int width, float[] solazi, float[] solzen, float[] satazi, float[] satzen,
+                 float[] zonalWind, float[] meridWind, double[] viewAngleCorrection) {
+        this(width, solzen.length, solazi, solzen, satazi, satzen, zonalWind, meridWind, viewAngleCorrection);
+    }
+
+    /**
+     * Creates the geometry of the first <code>pixelCount</code> pixels of the given arrays, which may be longer.
+     */
+    TileGeometry(int width, int pixelCount, float[] solazi, float[] solzen, float[] satazi, float[] satzen,
+                 float[] zonalWind, float[] meridWind, double[] viewAngleCorrection) {
+        this.solzen = new double[pixelCount];
+        this.satzen = new double[pixelCount];
+        aziDiff = new double[pixelCount];
+        windSpeed = new double[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+            this.solzen[i] = solzen[i];
+            this.satzen[i] = satzen[i] + viewAngleCorrection[i % width];
+            aziDiff[i] = MerisCase2BasisWaterOp.getAzimuthDifference(satazi[i], solazi[i]);
+            final double zonal = zonalWind[i];
+            final double merid = meridWind[i];
+            windSpeed[i] = Math.sqrt(zonal * zonal + merid * merid);
+        }
+    }
+
+    /**
+     * Computes the correction of the view zenith angle for a range of columns.
+     *
+     * @param sceneX           the full resolution x-coordinate of each column
+     * @param nadirPixelX      the full resolution x-coordinate of the nadir column
+     * @param isFullResolution whether the product is a full resolution product
+     *
+     * @return the correction to be added to the view zenith, for each column
+     */
+    static double[] createViewAngleCorrectionProfile(double[] sceneX, int nadirPixelX, boolean isFullResolution) {
+        final double[] correction = new double[sceneX.length];
+        for (int i = 0; i < sceneX.length; i++) {
+            correction[i] = getViewAngleCorrection(sceneX[i], nadirPixelX, isFullResolution);
+        }
+        return correction;
+    }
+
+    static double getViewAngleCorrection(double sceneX, int nadirPixelX, boolean isFullResolution) {
+        final double angCoef2 = isFullResolution ? ANG_COEF_2 / 4 : ANG_COEF_2;
+        return Math.abs(sceneX - nadirPixelX) * angCoef2 + ANG_COEF_1;
+    }
+}
@@ -0,0 +1,226 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.media.jai.JAI;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-running processor of the products arriving in an input directory, using the IOP retrieval of
+ * {@link Case2IOPOperator} with its default parameters.
+ * <p/>
+ * The JVM, the operator registry and the JIT-compiled code stay warm between products. The neural nets of
+ * the water retrieval are read once and shared by all products, and so are the kernels of the tile threads.
+ * The products present at start-up are processed first, then the directory is watched for new products.
+ * A file is processed once its size has not changed for a while. Several products can be processed at the
+ * same time; the tiles of each product are computed by the JAI tile scheduler.
+ *
+ * @author agent
+ */
+public class WatchFolderProcessor {
+
+    public static final String OUTPUT_NAME_SUFFIX = "_C2R";
+    private static final long STABLE_CHECK_INTERVAL = 2000;
+
+    private final File inputDir;
+    private final File outputDir;
+    private final String formatName;
+    private final ExecutorService productExecutor;
+    private final Set<String> submittedNames;
+    private final Logger logger;
+    private final SharedWaterRetrieval sharedRetrieval;
+    private WatchService watchService;
+
+    /**
+     * @param inputDir           the directory to watch
+     * @param outputDir          the directory of the output products
+     * @param formatName         the name of the output format
+     * @param productParallelism the number of products processed at the same time
+     */
+    public WatchFolderProcessor(File inputDir, File outputDir, String formatName, int productParallelism) {
+        if (productParallelism < 1) {
+            throw new IllegalArgumentException("productParallelism < 1");
+        }
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.formatName = formatName;
+        productExecutor = Executors.newFixedThreadPool(productParallelism);
+        submittedNames = Collections.synchronizedSet(new HashSet<String>());
+        sharedRetrieval = new SharedWaterRetrieval();
+        logger = BeamLogManager.getSystemLogger();
+    }
+
+    /**
+     * Processes the products of the input directory until {@link #stop()} is called.
+     *
+     * @throws IOException          if the input directory cannot be watched
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        synchronized (this) {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        final Path inputPath = inputDir.toPath();
+        inputPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        final File[] files = inputDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                submit(file);
+            }
+        }
+        logger.info("Watching " + inputDir + " for products");
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        submit(inputPath.resolve((Path) event.context()).toFile());
+                    }
+                }
+                if (!key.reset()) {
+                    logger.warning("Input directory " + inputDir + " is no longer accessible");
+                    break;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } finally {
+            productExecutor.shutdown();
+            productExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops watching; the products already submitted are completed.
+     */
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close the watch service", e);
+            }
+        }
+    }
+
+    private void submit(final File file) {
+        if (file.isDirectory() || file.getName().startsWith(".") || !submittedNames.add(file.getName())) {
+            return;
+        }
+        productExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waitUntilComplete(file);
+                    process(file);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Failed to process " + file, e);
+                }
+            }
+        });
+    }
+
+    private static void waitUntilComplete(File file) throws InterruptedException {
+        long length = -1;
+        while (file.length() != length) {
+            length = file.length();
+            Thread.sleep(STABLE_CHECK_INTERVAL);
+        }
+    }
+
+    private void process(File file) throws IOException {
+        final Product sourceProduct = ProductIO.readProduct(file);
+        if (sourceProduct == null) {
+            logger.warning("No reader found for " + file + ", skipped");
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final Case2IOPOperator operator = new Case2IOPOperator();
+        try {
+            operator.setParameterDefaultValues();
+            operator.setSourceProduct("source", sourceProduct);
+            final Product targetProduct = sharedRetrieval.createTargetProduct(operator);
+            final File outputFile = new File(outputDir, sourceProduct.getName() + OUTPUT_NAME_SUFFIX);
+            GPF.writeProduct(targetProduct, outputFile, formatName, false, ProgressMonitor.NULL);
+            logger.info(String.format("Processed %s in %.1f s", file.getName(),
+                                      (System.currentTimeMillis() - startTime) / 1000.0));
+        } finally {
+            operator.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    /**
+     * Usage: <code>WatchFolderProcessor &lt;inputDir&gt; &lt;outputDir&gt; [-f format] [-p products]
+     * [-t tiles]</code>, where <code>products</code> is the number of products processed at the same time and
+     * <code>tiles</code> the number of tiles computed at the same time.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        String formatName = ProductIO.DEFAULT_FORMAT_NAME;
+        int productParallelism = 1;
+        int tileParallelism = Runtime.getRuntime().availableProcessors();
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            if ("-f".equals(args[i])) {
+                formatName = args[++i];
+            } else if ("-p".equals(args[i])) {
+                productParallelism = Integer.parseInt(args[++i]);
+            } else if ("-t".equals(args[i])) {
+                tileParallelism = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        JAI.getDefaultInstance().getTileScheduler().setParallelism(tileParallelism);
+        final WatchFolderProcessor processor = new WatchFolderProcessor(new File(args[0]), new File(args[1]),
+                                                                        formatName, productParallelism);
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                processor.stop();
+                try {
+                    // let the products submitted be completed
+                    mainThread.join();
+                } catch (InterruptedException ignored) {
+                    // exit immediately
+                }
+            }
+        });
+        processor.run();
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: WatchFolderProcessor <inputDir> <outputDir> [-f format] [-p products] [-t tiles]");
+    }
+}
@@ -0,0 +1,57 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.jai.ImageManager;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+import org.esa.beam.meris.case2.water.WaterAlgorithm;
+import org.esa.beam.meris.case2.water.WaterKernel;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Rectangle;
+import java.awt.image.WritableRaster;
+
+/**
+ * The image of a target band at a lower resolution level. The retrieval is delegated to
+ * {@link MerisCase2BasisWaterOp#computeLevelTile(ResolutionLevel, Rectangle)}, which computes
+ * all target samples of a tile at once.
+ *
+ * @author agent
+ */
+class WaterLevelOpImage extends SingleBandedOpImage {
+
+    private final MerisCase2BasisWaterOp operator;
+    private final int targetIndex;
+
+    WaterLevelOpImage(Band band, MerisCase2BasisWaterOp operator, ResolutionLevel level) {
+        super(ImageManager.getDataBufferType(band.getDataType()),
+              band.getSceneRasterWidth(),
+              band.getSceneRasterHeight(),
+              ImageManager.getPreferredTileSize(band.getProduct()),
+              null,
+              level);
+        this.operator = operator;
+        this.targetIndex = operator.getTargetSampleIndex(band.getName());
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        final WaterKernel.Output output = operator.computeLevelTile(getLevel(), destRect);
+        int index = 0;
+        if (targetIndex == WaterAlgorithm.TARGET_FLAG_INDEX) {
+            final byte[] flags = output.getFlags();
+            for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+                for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                    tile.setSample(x, y, 0, flags[index++] & 0xFF);
+                }
+            }
+        } else {
+            final float[] data = output.getValues(targetIndex);
+            for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+                for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                    tile.setSample(x, y, 0, data[index++]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductNodeFilter;
+import org.esa.beam.framework.gpf.pointop.ProductConfigurer;
+import org.esa.beam.util.ProductUtils;
+
+/**
+ * Configures the target product of a {@link MerisCase2BasisWaterOp}, as the point operators do.
+ *
+ * @author agent
+ */
+class WaterProductConfigurer implements ProductConfigurer {
+
+    private Product sourceProduct;
+    private final Product targetProduct;
+
+    WaterProductConfigurer(Product sourceProduct, Product targetProduct) {
+        this.sourceProduct = sourceProduct;
+        this.targetProduct = targetProduct;
+    }
+
+    @Override
+    public Product getSourceProduct() {
+        return sourceProduct;
+    }
+
+    @Override
+    public void setSourceProduct(Product sourceProduct) {
+        this.sourceProduct = sourceProduct;
+    }
+
+    @Override
+    public Product getTargetProduct() {
+        return targetProduct;
+    }
+
+    @Override
+    public void copyMetadata() {
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+    }
+
+    @Override
+    public void copyTimeCoding() {
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+    }
+
+    @Override
+    public void copyGeoCoding() {
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+    }
+
+    @Override
+    public void copyMasks() {
+        ProductUtils.copyMasks(sourceProduct, targetProduct);
+    }
+
+    @Override
+    public void copyTiePointGrids(String... gridName) {
+        if (gridName.length == 0) {
+            ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+            return;
+        }
+        for (String name : gridName) {
+            if (sourceProduct.containsTiePointGrid(name) && !targetProduct.containsTiePointGrid(name)) {
+                ProductUtils.copyTiePointGrid(name, sourceProduct, targetProduct);
+            }
+        }
+    }
+
+    @Override
+    public void copyBands(String... bandName) {
+        for (String name : bandName) {
+            copyBand(sourceProduct.getBand(name));
+        }
+    }
+
+    @Override
+    public void copyBands(ProductNodeFilter<Band> filter) {
+        for (Band band : sourceProduct.getBands()) {
+            if (filter.accept(band)) {
+                copyBand(band);
+            }
+        }
+    }
+
+    @Override
+    public void copyVectorData() {
+        ProductUtils.copyVectorData(sourceProduct, targetProduct);
+    }
+
+    @Override
+    public Band addBand(String name, int dataType) {
+        return targetProduct.addBand(name, dataType);
+    }
+
+    @Override
+    public Band addBand(String name, int dataType, double noDataValue) {
+        final Band band = targetProduct.addBand(name, dataType);
+        band.setNoDataValue(noDataValue);
+        band.setNoDataValueUsed(true);
+        return band;
+    }
+
+    @Override
+    public Band addBand(String name, String expression) {
+        return targetProduct.addBand(name, expression);
+    }
+
+    @Override
+    public Band addBand(String name, String expression, double noDataValue) {
+        final Band band = targetProduct.addBand(name, expression);
+        band.setNoDataValue(noDataValue);
+        band.setNoDataValueUsed(true);
+        return band;
+    }
+
+    private void copyBand(Band sourceBand) {
+        if (sourceBand == null) {
+            return;
+        }
+        final Band targetBand = ProductUtils.copyBand(sourceBand.getName(), sourceProduct, targetProduct, true);
+        final FlagCoding flagCoding = sourceBand.getFlagCoding();
+        if (flagCoding != null) {
+            if (!targetProduct.getFlagCodingGroup().contains(flagCoding.getName())) {
+                ProductUtils.copyFlagCoding(flagCoding, targetProduct);
+            }
+            targetBand.setSampleCoding(targetProduct.getFlagCodingGroup().get(flagCoding.getName()));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.esa.beam.meris.case2.fit;
+
+/**
+ * The results of a {@link BatchLM} fit, one value per pixel for each field.
+ *
+ * @author agent
+ */
+public class BatchFitResult {
+
+    public final int[] niter;
+    public final double[] ChiSq;
+    public final double[] startChiSq;
+    /**
+     * The fitted parameters, indexed by parameter and pixel.
+     */
+    public final double[][] parsfit;
+    /**
+     * The covariance of the parameters, indexed by <code>row * numPars + column</code> and pixel.
+     */
+    public final double[][] CovPars;
+
+    public BatchFitResult(int numPars, int capacity) {
+        niter = new int[capacity];
+        ChiSq = new double[capacity];
+        startChiSq = new double[capacity];
+        parsfit = new double[numPars][capacity];
+        CovPars = new double[numPars * numPars][capacity];
+    }
+
+    public int getCapacity() {
+        return niter.length;
+    }
+}
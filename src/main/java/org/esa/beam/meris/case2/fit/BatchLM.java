@@ -0,0 +1,343 @@
+package org.esa.beam.meris.case2.fit;
+
+import com.bc.ceres.core.ProgressMonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A Levenberg-Marquardt fit of many pixels advanced in lock-step.
+ * <p/>
+ * Each iteration performs a single call of the model evaluation for all pixels which still need one; whether
+ * this saves work depends on the model, {@link MerisBatchGLM} still evaluates the net pixel by pixel. Every pixel keeps its own damping state (<code>mu</code>, <code>nu</code>), so the
+ * sequence of steps of a pixel is the same as with {@link GenLM}. Converged pixels leave the active set and
+ * are not evaluated any more. The state is held as structure of arrays, see {@link BatchModel4LM}.
+ * <p/>
+ * The measurement errors are assumed to be uncorrelated, so the measurement covariance is given by its
+ * diagonal. Instances are not thread-safe.
+ *
+ * @author agent
+ */
+public class BatchLM {
+
+    public int nitermax = 200;
+    public double nu = 2.0;
+    public double tau = 1.0e-4;
+    public double eps1 = 1.0e-6;
+    public double eps2 = 1.0e-16;
+    /**
+     * Checked for cancellation before each iteration; a cancelled fit throws a {@link CancellationException}.
+     */
+    public ProgressMonitor pm = ProgressMonitor.NULL;
+
+    private final BatchModel4LM model;
+    private final int npars;
+    private final int nmeas;
+    private final int capacity;
+
+    private final double[][] pars;
+    private final double[][] newpars;
+    private final double[][] parStep;
+    private final double[][] gradient;
+    private final double[][] normal;
+    private final double[][] modelRes;
+    private final double[][] jacobian;
+    private final double[] chiSq;
+    private final double[] mus;
+    private final double[] nus;
+    private final boolean[] done;
+    private final int[] active;
+    private final int[] evaluate;
+    private final double[][] system;
+    private final double[] rhs;
+    private final double[][] inverse;
+    private final Covariance covariance;
+
+    /**
+     * @param model    the model to fit
+     * @param capacity the maximum number of pixels fitted at once
+     */
+    public BatchLM(BatchModel4LM model, int capacity) {
+        this.model = model;
+        this.capacity = capacity;
+        npars = model.getNumPars();
+        nmeas = model.getNumMeas();
+        pars = new double[npars][capacity];
+        newpars = new double[npars][capacity];
+        parStep = new double[npars][capacity];
+        gradient = new double[npars][capacity];
+        normal = new double[npars * npars][capacity];
+        modelRes = new double[nmeas][capacity];
+        jacobian = new double[nmeas * npars][capacity];
+        chiSq = new double[capacity];
+        mus = new double[capacity];
+        nus = new double[capacity];
+        done = new boolean[capacity];
+        active = new int[capacity];
+        evaluate = new int[capacity];
+        system = new double[npars][npars];
+        rhs = new double[npars];
+        inverse = new double[npars][npars];
+        covariance = new Covariance(npars);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Fits the model to the measurements of the pixels <code>0</code> to <code>count - 1</code>.
+     *
+     * @param count        the number of pixels
+     * @param startPars    the start parameters, indexed by parameter and pixel
+     * @param measurements the measurements, indexed by measurement and pixel
+     * @param measVariance the variance of each measurement
+     * @param result       receives the results
+     */
+    public void fit(int count, double[][] startPars, double[][] measurements, double[] measVariance,
+                    BatchFitResult result) {
+        if (count > capacity || count > result.getCapacity()) {
+            throw new IllegalArgumentException("count exceeds capacity");
+        }
+        final double[] invVariance = new double[nmeas];
+        for (int m = 0; m < nmeas; m++) {
+            invVariance[m] = 1.0 / measVariance[m];
+        }
+
+        for (int p = 0; p < npars; p++) {
+            System.arraycopy(startPars[p], 0, pars[p], 0, count);
+            Arrays.fill(newpars[p], 0, count, 0.0);
+        }
+        for (int i = 0; i < count; i++) {
+            active[i] = i;
+            result.niter[i] = 0;
+            // as GenLM does, the parameters of the last evaluation become the fit result
+            if (clip(pars, i)) {
+                copyPars(pars, newpars, i);
+            }
+        }
+        model.modelAndJacobian(active, count, pars, modelRes, jacobian);
+        int activeCount = 0;
+        for (int i = 0; i < count; i++) {
+            chiSq[i] = computeChiSq(i, measurements, invVariance);
+            result.startChiSq[i] = chiSq[i];
+            updateNormalEquations(i, measurements, invVariance);
+            double mxdiag = Double.MIN_VALUE;
+            for (int p = 0; p < npars; p++) {
+                if (normal[p * npars + p][i] > mxdiag) {
+                    mxdiag = normal[p * npars + p][i];
+                }
+            }
+            mus[i] = tau * mxdiag;
+            nus[i] = nu;
+            done[i] = normInf(gradient, i) < eps1;
+            if (!done[i] && nitermax > 0) {
+                active[activeCount++] = i;
+            }
+        }
+
+        while (activeCount > 0) {
+            if (pm.isCanceled()) {
+                throw new CancellationException("Fit cancelled");
+            }
+            int evaluateCount = 0;
+            for (int k = 0; k < activeCount; k++) {
+                final int i = active[k];
+                result.niter[i]++;
+                if (!computeParStep(i) || norm2(parStep, i) < eps2 * norm2(pars, i) + eps2) {
+                    done[i] = true;
+                } else {
+                    for (int p = 0; p < npars; p++) {
+                        newpars[p][i] = pars[p][i] + parStep[p][i];
+                    }
+                    clip(newpars, i);
+                    evaluate[evaluateCount++] = i;
+                }
+            }
+            if (evaluateCount > 0) {
+                model.modelAndJacobian(evaluate, evaluateCount, newpars, modelRes, jacobian);
+            }
+            for (int k = 0; k < evaluateCount; k++) {
+                final int i = evaluate[k];
+                final double newChiSq = computeChiSq(i, measurements, invVariance);
+                double denominator = 0.0;
+                for (int p = 0; p < npars; p++) {
+                    denominator += parStep[p][i] * (parStep[p][i] * mus[i] - gradient[p][i]);
+                }
+                final double rho = 2.0 * (chiSq[i] - newChiSq) / denominator;
+                if (rho > 0.0) {
+                    copyPars(newpars, pars, i);
+                    chiSq[i] = newChiSq;
+                    updateNormalEquations(i, measurements, invVariance);
+                    done[i] = normInf(gradient, i) < eps1;
+                    double dh = 2.0 * rho - 1;
+                    dh = 1.0 - dh * dh * dh;
+                    mus[i] *= Math.max(0.33333, dh);
+                    nus[i] = 2.0;
+                } else {
+                    mus[i] *= nus[i];
+                    nus[i] *= 2.0;
+                }
+            }
+            int remaining = 0;
+            for (int k = 0; k < activeCount; k++) {
+                final int i = active[k];
+                if (!done[i] && result.niter[i] < nitermax) {
+                    active[remaining++] = i;
+                }
+            }
+            activeCount = remaining;
+        }
+
+        for (int i = 0; i < count; i++) {
+            result.ChiSq[i] = chiSq[i];
+            for (int p = 0; p < npars; p++) {
+                result.parsfit[p][i] = newpars[p][i];
+            }
+            invertNormalMatrix(i, result.CovPars);
+        }
+    }
+
+    private boolean clip(double[][] values, int i) {
+        boolean clipped = false;
+        for (int p = 0; p < npars; p++) {
+            final double min = model.getParMin(p);
+            final double max = model.getParMax(p);
+            if (values[p][i] < min) {
+                values[p][i] = min;
+                clipped = true;
+            }
+            if (values[p][i] > max) {
+                values[p][i] = max;
+                clipped = true;
+            }
+        }
+        return clipped;
+    }
+
+    private void copyPars(double[][] source, double[][] target, int i) {
+        for (int p = 0; p < npars; p++) {
+            target[p][i] = source[p][i];
+        }
+    }
+
+    private double computeChiSq(int i, double[][] measurements, double[] invVariance) {
+        double sum = 0.0;
+        for (int m = 0; m < nmeas; m++) {
+            final double err = modelRes[m][i] - measurements[m][i];
+            sum += err * err * invVariance[m];
+        }
+        return sum;
+    }
+
+    /**
+     * Computes <code>J^T C^-1 J</code> and the gradient <code>J^T C^-1 (model - measurements)</code>
+     * from the current model evaluation.
+     */
+    private void updateNormalEquations(int i, double[][] measurements, double[] invVariance) {
+        for (int p = 0; p < npars; p++) {
+            double g = 0.0;
+            for (int m = 0; m < nmeas; m++) {
+                g += jacobian[m * npars + p][i] * invVariance[m] * (modelRes[m][i] - measurements[m][i]);
+            }
+            gradient[p][i] = g;
+            for (int q = 0; q < npars; q++) {
+                double a = 0.0;
+                for (int m = 0; m < nmeas; m++) {
+                    a += jacobian[m * npars + p][i] * invVariance[m] * jacobian[m * npars + q][i];
+                }
+                normal[p * npars + q][i] = a;
+            }
+        }
+    }
+
+    /**
+     * Solves <code>(J^T C^-1 J + mu I) step = -gradient</code> by Gaussian elimination with partial pivoting.
+     *
+     * @return false, if the system is singular
+     */
+    private boolean computeParStep(int i) {
+        for (int p = 0; p < npars; p++) {
+            for (int q = 0; q < npars; q++) {
+                system[p][q] = normal[p * npars + q][i];
+            }
+            system[p][p] += mus[i];
+            rhs[p] = -gradient[p][i];
+        }
+        for (int col = 0; col < npars; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < npars; row++) {
+                if (Math.abs(system[row][col]) > Math.abs(system[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (system[pivot][col] == 0.0) {
+                return false;
+            }
+            if (pivot != col) {
+                final double[] tmpRow = system[pivot];
+                system[pivot] = system[col];
+                system[col] = tmpRow;
+                final double tmp = rhs[pivot];
+                rhs[pivot] = rhs[col];
+                rhs[col] = tmp;
+            }
+            for (int row = col + 1; row < npars; row++) {
+                final double factor = system[row][col] / system[col][col];
+                for (int k = col; k < npars; k++) {
+                    system[row][k] -= factor * system[col][k];
+                }
+                rhs[row] -= factor * rhs[col];
+            }
+        }
+        for (int row = npars - 1; row >= 0; row--) {
+            double sum = rhs[row];
+            for (int k = row + 1; k < npars; k++) {
+                sum -= system[row][k] * parStep[k][i];
+            }
+            parStep[row][i] = sum / system[row][row];
+        }
+        return true;
+    }
+
+    /**
+     * Computes the pseudo-inverse of the normal matrix as {@link GenLM} does.
+     */
+    private void invertNormalMatrix(int i, double[][] covPars) {
+        for (int p = 0; p < npars; p++) {
+            for (int q = 0; q < npars; q++) {
+                system[p][q] = normal[p * npars + q][i];
+            }
+        }
+        try {
+            covariance.pseudoInverse(system, 1.0e-9, inverse);
+        } catch (RuntimeException e) {
+            // no usable covariance, e.g. for NaN measurements
+            for (double[] cov : covPars) {
+                cov[i] = Double.NaN;
+            }
+            return;
+        }
+        for (int p = 0; p < npars; p++) {
+            for (int q = 0; q < npars; q++) {
+                covPars[p * npars + q][i] = inverse[p][q];
+            }
+        }
+    }
+
+    private double normInf(double[][] values, int i) {
+        double max = 0.0;
+        for (int p = 0; p < npars; p++) {
+            max = Math.max(max, Math.abs(values[p][i]));
+        }
+        return max;
+    }
+
+    private double norm2(double[][] values, int i) {
+        double sum = 0.0;
+        for (int p = 0; p < npars; p++) {
+            sum += values[p][i] * values[p][i];
+        }
+        return Math.sqrt(sum);
+    }
+}
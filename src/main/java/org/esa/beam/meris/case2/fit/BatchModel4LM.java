@@ -0,0 +1,37 @@
+package org.esa.beam.meris.case2.fit;
+
+/**
+ * A model fitted by the {@link BatchLM} to many pixels at once.
+ * <p/>
+ * All arrays are organised as structure of arrays: the first index selects the parameter, measurement or
+ * Jacobian element, the second index the pixel.
+ *
+ * @author agent
+ */
+public interface BatchModel4LM {
+
+    int getNumPars();
+
+    int getNumMeas();
+
+    /**
+     * @return the lower bound of a parameter; parameters are clipped to it before the model is evaluated
+     */
+    double getParMin(int parIndex);
+
+    /**
+     * @return the upper bound of a parameter; parameters are clipped to it before the model is evaluated
+     */
+    double getParMax(int parIndex);
+
+    /**
+     * Evaluates the model and its Jacobian for a set of pixels in one pass.
+     *
+     * @param pixels   the indexes of the pixels to evaluate
+     * @param count    the number of valid entries in <code>pixels</code>
+     * @param pars     the parameters, indexed by parameter and pixel
+     * @param model    receives the model values, indexed by measurement and pixel
+     * @param jacobian receives the Jacobian, indexed by <code>meas * numPars + par</code> and pixel
+     */
+    void modelAndJacobian(int[] pixels, int count, double[][] pars, double[][] model, double[][] jacobian);
+}
@@ -1,8 +1,12 @@
 package org.esa.beam.meris.case2.fit;
 
+import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.framework.gpf.pointop.WritableSample;
+import org.esa.beam.meris.case2.water.WaterAlgorithm;
 import org.esa.beam.nn.NNffbpAlphaTabFast;
 
+import java.util.Arrays;
+
 import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
 
 /**
@@ -13,13 +17,65 @@ import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
  */
 public class ChiSquareFitting {
 
+    /**
+     * The iteration budget of a single pass fit.
+     */
+    public static final int DEFAULT_MAX_ITER = 200;
+
+    private static final double WATER_REFL_LOG_VARIANCE = 1.5;
+
     private double tsmExponent;
     private double tsmFactor;
     private double chlExponent;
     private double chlFactor;
     private MerisGLM myFitLvMq;
+    private NNffbpAlphaTabFast setOfFitsNet;
     private Data4SingleFitInitialization initSingleFit;
     private double fitFailedThreshold;
+    private MerisBatchGLM batchModel;
+    private BatchLM batchLM;
+    private BatchFitResult batchResult;
+    private double[][] startPars;
+    private double[][] inverseNetPars;
+    private double[][] measurements;
+    private double[] measVariance;
+    private final double[] wlRefl = new double[8];
+    private final double[] pixelPars = new double[3];
+    // the buffers of the linearised uncertainty estimate
+    private int[] pixels;
+    private double[][] model;
+    private double[][] jacobian;
+    private double[][] normal;
+    private double[][] covPars;
+    private Covariance covariance;
+    private final double[][] singleRLw = new double[1][];
+    private final double[] singleSun = new double[1];
+    private final double[] singleView = new double[1];
+    private final double[] singleAzi = new double[1];
+    private final double[][] singleTargetValues = new double[1][];
+    // the buffers of the second pass of the two-pass fit
+    private BatchLM refitLM;
+    private BatchFitResult refitResult;
+    private boolean[] failed;
+    private int[] neighbours;
+    private double[][] firstPassPars;
+    private int[] subset;
+    private double[][] refitStart;
+    private double[][] refitMeasurements;
+    private double[] refitSun;
+    private double[] refitView;
+    private double[] refitAzi;
+    private boolean twoPass;
+    private int firstPassMaxIter;
+    private int secondPassMaxIter;
+    private double[] lastSuccessfulPars;
+    private boolean linearised;
+    private boolean diagnostic;
+    private ProgressMonitor pm = ProgressMonitor.NULL;
+    private FitResult lastFitResult;
+    private FitResult currentFitResult;
+    private final FitSummary fitSummary = new FitSummary(3);
+    private final FitSummary refitSummary = new FitSummary(3);
 
     public ChiSquareFitting(double tsmConversionExponent, double tsmConversionFactor, double chlConversionExponent,
                             double chlConversionFactor, MerisGLM glm) {
@@ -36,19 +92,82 @@ public class ChiSquareFitting {
         initSingleFit.ln_b_SPM_b_White = 0.0;
     }
 
+    /**
+     * Enables the two-pass fit. All pixels are fitted with a small iteration budget first. Pixels whose
+     * Chi-square exceeds the fit failed threshold are fitted again with a larger budget, starting from the
+     * inverse net result, from a neighbouring successful fit and from the centre of the training range.
+     * The fit with the smallest Chi-square is kept.
+     *
+     * @param firstPassMaxIter  the iteration budget of the first pass
+     * @param secondPassMaxIter the iteration budget of each restart of the second pass
+     */
+    public void setTwoPass(int firstPassMaxIter, int secondPassMaxIter) {
+        twoPass = true;
+        this.firstPassMaxIter = firstPassMaxIter;
+        this.secondPassMaxIter = secondPassMaxIter;
+        // the buffers of the second pass are created with the batch buffers
+        batchLM = null;
+    }
+
+    /**
+     * Enables the linearised uncertainty estimate. Instead of iterating, the forward net and its Jacobian
+     * are evaluated once at the inverse net solution. The covariance of the parameters and the min/max
+     * values are derived from the linearised model. The fit values are the inverse net solution, clipped
+     * to the training range, and the number of iterations is zero.
+     * <p/>
+     * Like the restarts of the two-pass fit, the estimate starts from the inverse net solution, see
+     * {@link #getInverseNetPars}, so it is only valid for forward nets taking these parameters.
+     */
+    public void setLinearised(boolean linearised) {
+        this.linearised = linearised;
+        // the buffers of the estimate are created with the batch buffers
+        batchLM = null;
+    }
+
     public void perform(NNffbpAlphaTabFast forwardWaterNet, double[] RLw_cut,
                         double teta_sun_deg, double teta_view_deg, double azi_diff_deg,
                         WritableSample[] targetSamples) {
+        final double[] targetValues = new double[TARGET_COUNT];
+        targetValues[TARGET_A_PIGMENT_INDEX] = targetSamples[TARGET_A_PIGMENT_INDEX].getDouble();
+        targetValues[TARGET_A_GELBSTOFF_INDEX] = targetSamples[TARGET_A_GELBSTOFF_INDEX].getDouble();
+        targetValues[TARGET_BB_SPM_INDEX] = targetSamples[TARGET_BB_SPM_INDEX].getDouble();
+        perform(forwardWaterNet, RLw_cut, teta_sun_deg, teta_view_deg, azi_diff_deg, targetValues);
+        for (int index = TARGET_A_GELBSTOFF_FIT_INDEX; index < TARGET_COUNT; index++) {
+            targetSamples[index].set(targetValues[index]);
+        }
+        WaterAlgorithm.setFlags(targetSamples[TARGET_FLAG_INDEX], (int) targetValues[TARGET_FLAG_INDEX]);
+    }
 
-        final double waterReflLogVariance = 1.5;
-        myFitLvMq.initSetOfFits(forwardWaterNet, waterReflLogVariance);
+    /**
+     * Performs the fit for a single pixel on primitive values. The start values are taken from the
+     * target values of the inverse net retrieval, the fit results are written to the fit target values.
+     *
+     * @param targetValues the target values, indexed by the target sample index
+     */
+    public void perform(NNffbpAlphaTabFast forwardWaterNet, double[] RLw_cut,
+                        double teta_sun_deg, double teta_view_deg, double azi_diff_deg,
+                        double[] targetValues) {
+        if (linearised) {
+            singleRLw[0] = RLw_cut;
+            singleSun[0] = teta_sun_deg;
+            singleView[0] = teta_view_deg;
+            singleAzi[0] = azi_diff_deg;
+            singleTargetValues[0] = targetValues;
+            perform(forwardWaterNet, 1, singleRLw, singleSun, singleView, singleAzi, singleTargetValues);
+            return;
+        }
+
+        if (forwardWaterNet != setOfFitsNet) {
+            myFitLvMq.initSetOfFits(forwardWaterNet, WATER_REFL_LOG_VARIANCE);
+            setOfFitsNet = forwardWaterNet;
+        }
 
         initSingleFit.theta_sun_grad = teta_sun_deg;
         initSingleFit.theta_view_grad = teta_view_deg;
         initSingleFit.azi_diff_grad = azi_diff_deg;
-        initSingleFit.ln_a_Chlor = targetSamples[TARGET_A_PIGMENT_INDEX].getDouble();
-        initSingleFit.ln_a_Yellow_a_SPM = targetSamples[TARGET_A_GELBSTOFF_INDEX].getDouble();
-        initSingleFit.ln_b_SPM_b_White = targetSamples[TARGET_BB_SPM_INDEX].getDouble();
+        initSingleFit.ln_a_Chlor = targetValues[TARGET_A_PIGMENT_INDEX];
+        initSingleFit.ln_a_Yellow_a_SPM = targetValues[TARGET_A_GELBSTOFF_INDEX];
+        initSingleFit.ln_b_SPM_b_White = targetValues[TARGET_BB_SPM_INDEX];
 
         for (int k = 0; k < 7; k++) {
             initSingleFit.wlRefl[k] = Math.log(RLw_cut[k]);
@@ -56,42 +175,407 @@ public class ChiSquareFitting {
         initSingleFit.wlRefl[7] = Math.log(RLw_cut[8]);
 
         myFitLvMq.initSingleFit(initSingleFit);
-        FitResult fitRes = myFitLvMq.getMyLM().LMFit();
+        final GenLM lm = myFitLvMq.getMyLM();
+        lm.pm = pm;
+        lm.nitermax = twoPass ? firstPassMaxIter : DEFAULT_MAX_ITER;
+        FitSummary fitRes = fit(lm, fitSummary);
+        lastFitResult = currentFitResult;
+        final double startChiSq = fitRes.startChiSq;
+        if (twoPass) {
+            fitRes = refitFailedPixel(fitRes, forwardWaterNet, targetValues);
+        }
 
-        targetSamples[TARGET_TSM_FIT_INDEX].set(Math.exp(Math.log(tsmFactor) + fitRes.parsfit[0] * tsmExponent));
-        targetSamples[TARGET_CHL_CONC_FIT_INDEX].set(Math.exp(Math.log(chlFactor) + fitRes.parsfit[1] * chlExponent));
+        final double[] covPars = fitRes.covParsDiagonal;
+        setFitResults(forwardWaterNet, fitRes.parsfit[0], fitRes.parsfit[1], fitRes.parsfit[2],
+                      covPars[0], covPars[1], covPars[2],
+                      fitRes.ChiSq, fitRes.niter, startChiSq, targetValues);
+    }
+
+    /**
+     * Forgets the last successful fit, which is the neighbour start of the two-pass fit of a single pixel.
+     * Must be called at the start of each tile, so that the neighbour start is taken from the current tile
+     * only and does not depend on the tiles computed earlier by the same thread.
+     */
+    public void resetNeighbourStart() {
+        lastSuccessfulPars = null;
+    }
+
+    /**
+     * Sets the monitor checked for cancellation at the iteration boundaries of the fits. A cancelled fit
+     * throws a {@link java.util.concurrent.CancellationException}.
+     */
+    public void setProgressMonitor(ProgressMonitor pm) {
+        this.pm = pm;
+    }
+
+    /**
+     * Enables the diagnostic mode. In this mode the full {@link FitResult} of each single pixel fit is kept
+     * and can be obtained by {@link #getLastFitResult()}. By default only the values needed for the
+     * target values are computed.
+     */
+    public void setDiagnostic(boolean diagnostic) {
+        this.diagnostic = diagnostic;
+    }
+
+    /**
+     * @return the full result of the last single pixel fit in diagnostic mode, otherwise {@code null};
+     *         for the two-pass fit it is the result of the best fit
+     */
+    public FitResult getLastFitResult() {
+        return lastFitResult;
+    }
+
+    private FitSummary fit(GenLM lm, FitSummary summary) {
+        if (!diagnostic) {
+            lm.LMFit(summary);
+            return summary;
+        }
+        final FitResult fitResult = lm.LMFit();
+        summary.niter = fitResult.niter;
+        summary.ChiSq = fitResult.ChiSq;
+        summary.startChiSq = fitResult.startChiSq;
+        summary.returnReason = fitResult.returnReason;
+        for (int i = 0; i < summary.parsfit.length; i++) {
+            summary.parsfit[i] = fitResult.parsfit[i];
+            summary.covParsDiagonal[i] = fitResult.CovPars.get(i, i);
+        }
+        currentFitResult = fitResult;
+        return summary;
+    }
+
+    /**
+     * Re-fits a pixel whose first pass failed with the larger iteration budget, starting from the inverse
+     * net result, from the last successful fit and from the centre of the training range.
+     *
+     * @return the fit with the smallest Chi-square
+     */
+    private FitSummary refitFailedPixel(FitSummary firstPass, NNffbpAlphaTabFast forwardWaterNet,
+                                        double[] targetValues) {
+        if (!(firstPass.ChiSq > fitFailedThreshold)) {
+            lastSuccessfulPars = firstPass.parsfit.clone();
+            return firstPass;
+        }
+        final double[] inmin = forwardWaterNet.getInmin();
+        final double[] inmax = forwardWaterNet.getInmax();
+        getInverseNetPars(targetValues, pixelPars);
+        final double[][] restarts = {
+                pixelPars,
+                lastSuccessfulPars,
+                {(inmin[3] + inmax[3]) / 2, (inmin[4] + inmax[4]) / 2, (inmin[5] + inmax[5]) / 2}
+        };
+        FitSummary best = firstPass;
+        FitSummary next = refitSummary;
+        for (double[] start : restarts) {
+            if (start == null) {
+                continue;
+            }
+            initSingleFit.ln_b_SPM_b_White = start[0];
+            initSingleFit.ln_a_Chlor = start[1];
+            initSingleFit.ln_a_Yellow_a_SPM = start[2];
+            myFitLvMq.initSingleFit(initSingleFit);
+            final GenLM lm = myFitLvMq.getMyLM();
+            lm.pm = pm;
+            lm.nitermax = secondPassMaxIter;
+            final FitSummary fitRes = fit(lm, next);
+            if (fitRes.ChiSq < best.ChiSq || Double.isNaN(best.ChiSq)) {
+                next = best;
+                best = fitRes;
+                lastFitResult = currentFitResult;
+            }
+            if (best.ChiSq <= fitFailedThreshold) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Performs the fit for many pixels at once. The pixels are advanced in lock-step by a {@link BatchLM},
+     * the results equal those of {@link #perform(NNffbpAlphaTabFast, double[], double, double, double, double[])}
+     * for each pixel up to rounding.
+     *
+     * @param count         the number of pixels
+     * @param RLw_cut       the reflectances of each pixel, as passed to the single pixel fit
+     * @param teta_sun_deg  the sun zenith of each pixel
+     * @param teta_view_deg the view zenith of each pixel
+     * @param azi_diff_deg  the azimuth difference of each pixel
+     * @param targetValues  the target values of each pixel, indexed by pixel and target sample index
+     */
+    public void perform(NNffbpAlphaTabFast forwardWaterNet, int count, double[][] RLw_cut,
+                        double[] teta_sun_deg, double[] teta_view_deg, double[] azi_diff_deg,
+                        double[][] targetValues) {
+        ensureCapacity(count);
+        final int nmeas = batchModel.getNumMeas();
+        for (int i = 0; i < count; i++) {
+            startPars[0][i] = targetValues[i][TARGET_BB_SPM_INDEX];
+            startPars[1][i] = targetValues[i][TARGET_A_PIGMENT_INDEX];
+            startPars[2][i] = targetValues[i][TARGET_A_GELBSTOFF_INDEX];
+            getInverseNetPars(targetValues[i], pixelPars);
+            for (int p = 0; p < pixelPars.length; p++) {
+                inverseNetPars[p][i] = pixelPars[p];
+            }
+            for (int k = 0; k < 7; k++) {
+                wlRefl[k] = Math.log(RLw_cut[i][k]);
+            }
+            wlRefl[7] = Math.log(RLw_cut[i][8]);
+            for (int m = 0; m < nmeas; m++) {
+                measurements[m][i] = wlRefl[m];
+            }
+        }
+        batchModel.init(forwardWaterNet, teta_sun_deg, teta_view_deg, azi_diff_deg);
+        if (linearised) {
+            estimateLinearisedUncertainty(forwardWaterNet, count, targetValues);
+            return;
+        }
+        batchLM.nitermax = twoPass ? firstPassMaxIter : DEFAULT_MAX_ITER;
+        batchLM.pm = pm;
+        batchLM.fit(count, startPars, measurements, measVariance, batchResult);
+        if (twoPass) {
+            refitFailedPixels(forwardWaterNet, count, teta_sun_deg, teta_view_deg, azi_diff_deg);
+        }
+
+        final double[][] parsfit = batchResult.parsfit;
+        final double[][] covPars = batchResult.CovPars;
+        for (int i = 0; i < count; i++) {
+            setFitResults(forwardWaterNet, parsfit[0][i], parsfit[1][i], parsfit[2][i],
+                          covPars[0][i], covPars[4][i], covPars[8][i],
+                          batchResult.ChiSq[i], batchResult.niter[i], batchResult.startChiSq[i], targetValues[i]);
+        }
+    }
+
+    /**
+     * Creates the batch buffers, and those of the linearised estimate and the two-pass fit if enabled, unless
+     * they hold enough pixels already.
+     */
+    private void ensureCapacity(int count) {
+        if (batchLM != null && batchLM.getCapacity() >= count) {
+            return;
+        }
+        batchModel = new MerisBatchGLM(myFitLvMq.getNumNnIn(), myFitLvMq.getNumMeas());
+        final int npars = batchModel.getNumPars();
+        final int nmeas = batchModel.getNumMeas();
+        batchLM = new BatchLM(batchModel, count);
+        batchResult = new BatchFitResult(npars, count);
+        startPars = new double[npars][count];
+        inverseNetPars = new double[npars][count];
+        measurements = new double[nmeas][count];
+        measVariance = new double[nmeas];
+        Arrays.fill(measVariance, WATER_REFL_LOG_VARIANCE);
+        if (linearised) {
+            pixels = new int[count];
+            model = new double[nmeas][count];
+            jacobian = new double[nmeas * npars][count];
+            normal = new double[npars][npars];
+            covPars = new double[npars][npars];
+            covariance = new Covariance(npars);
+        }
+        if (twoPass) {
+            refitLM = new BatchLM(batchModel, count);
+            refitResult = new BatchFitResult(npars, count);
+            failed = new boolean[count];
+            neighbours = new int[count];
+            firstPassPars = new double[npars][count];
+            subset = new int[count];
+            refitStart = new double[npars][count];
+            refitMeasurements = new double[nmeas][count];
+            refitSun = new double[count];
+            refitView = new double[count];
+            refitAzi = new double[count];
+        }
+    }
+
+    /**
+     * Converts the inverse net solution in the target values into the parameters of the forward net, which
+     * are ln b_tsm, ln a_pig and ln a_gelbstoff. This holds for the regional and the boreal forward nets, but
+     * not for the eutrophic one, which takes ln a_gelbstoff, ln a_btsm, ln a_pig and ln b_tsm, and whose
+     * a_pig_443 includes the chl conversion factor.
+     *
+     * @param targetValues the target values of the inverse net retrieval
+     * @param pars         receives the parameters
+     */
+    static void getInverseNetPars(double[] targetValues, double[] pars) {
+        pars[0] = Math.log(targetValues[TARGET_BB_SPM_INDEX] / BTSM_TO_SPM_FACTOR);
+        pars[1] = Math.log(targetValues[TARGET_A_PIGMENT_INDEX]);
+        pars[2] = Math.log(targetValues[TARGET_A_GELBSTOFF_INDEX]);
+    }
+
+    /**
+     * Evaluates the forward net and its Jacobian once at the inverse net solution and derives the covariance of
+     * the parameters from the linearised model, <code>(J^T C^-1 J)^-1</code>. The inverse net solution,
+     * clipped to the training range, is reported as fit result.
+     */
+    private void estimateLinearisedUncertainty(NNffbpAlphaTabFast forwardWaterNet, int count,
+                                               double[][] targetValues) {
+        final int npars = batchModel.getNumPars();
+        final int nmeas = batchModel.getNumMeas();
+        final double[][] pars = inverseNetPars;
+        for (int i = 0; i < count; i++) {
+            pixels[i] = i;
+            for (int p = 0; p < npars; p++) {
+                pars[p][i] = Math.min(batchModel.getParMax(p), Math.max(batchModel.getParMin(p), pars[p][i]));
+            }
+        }
+        batchModel.modelAndJacobian(pixels, count, pars, model, jacobian);
+
+        for (int i = 0; i < count; i++) {
+            double chiSq = 0.0;
+            for (int m = 0; m < nmeas; m++) {
+                final double err = model[m][i] - measurements[m][i];
+                chiSq += err * err / measVariance[m];
+            }
+            for (int p = 0; p < npars; p++) {
+                for (int q = 0; q < npars; q++) {
+                    double a = 0.0;
+                    for (int m = 0; m < nmeas; m++) {
+                        a += jacobian[m * npars + p][i] * jacobian[m * npars + q][i] / measVariance[m];
+                    }
+                    normal[p][q] = a;
+                }
+            }
+            try {
+                covariance.pseudoInverse(normal, 1.0e-9, covPars);
+            } catch (RuntimeException e) {
+                for (double[] row : covPars) {
+                    Arrays.fill(row, Double.NaN);
+                }
+            }
+            setFitResults(forwardWaterNet, pars[0][i], pars[1][i], pars[2][i],
+                          covPars[0][0], covPars[1][1], covPars[2][2],
+                          chiSq, 0, chiSq, targetValues[i]);
+        }
+    }
+
+    /**
+     * The batched counterpart of {@link #refitFailedPixel}. The neighbour start is taken from the nearest
+     * pixel of the batch whose first pass succeeded.
+     */
+    private void refitFailedPixels(NNffbpAlphaTabFast forwardWaterNet, int count,
+                                   double[] teta_sun_deg, double[] teta_view_deg, double[] azi_diff_deg) {
+        final int npars = batchModel.getNumPars();
+        int failedCount = 0;
+        for (int i = 0; i < count; i++) {
+            failed[i] = batchResult.ChiSq[i] > fitFailedThreshold;
+            if (failed[i]) {
+                failedCount++;
+            }
+        }
+        if (failedCount == 0) {
+            return;
+        }
+        findSuccessfulNeighbours(count);
+        for (int p = 0; p < npars; p++) {
+            System.arraycopy(batchResult.parsfit[p], 0, firstPassPars[p], 0, count);
+        }
+
+        refitLM.nitermax = secondPassMaxIter;
+        refitLM.pm = pm;
+        for (int restart = 0; restart < 3; restart++) {
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (!failed[i] || restart == 1 && neighbours[i] < 0) {
+                    continue;
+                }
+                for (int p = 0; p < npars; p++) {
+                    if (restart == 0) {
+                        refitStart[p][n] = inverseNetPars[p][i];
+                    } else if (restart == 1) {
+                        refitStart[p][n] = firstPassPars[p][neighbours[i]];
+                    } else {
+                        refitStart[p][n] = (batchModel.getParMin(p) + batchModel.getParMax(p)) / 2;
+                    }
+                }
+                for (int m = 0; m < measurements.length; m++) {
+                    refitMeasurements[m][n] = measurements[m][i];
+                }
+                refitSun[n] = teta_sun_deg[i];
+                refitView[n] = teta_view_deg[i];
+                refitAzi[n] = azi_diff_deg[i];
+                subset[n++] = i;
+            }
+            if (n == 0) {
+                continue;
+            }
+            batchModel.init(forwardWaterNet, refitSun, refitView, refitAzi);
+            refitLM.fit(n, refitStart, refitMeasurements, measVariance, refitResult);
+            for (int k = 0; k < n; k++) {
+                final int i = subset[k];
+                if (refitResult.ChiSq[k] < batchResult.ChiSq[i] || Double.isNaN(batchResult.ChiSq[i])) {
+                    copyResult(refitResult, k, batchResult, i);
+                }
+                failed[i] = batchResult.ChiSq[i] > fitFailedThreshold;
+            }
+        }
+    }
+
+    /**
+     * Sets for each failed pixel the index of the nearest successful pixel, or -1 if there is none.
+     */
+    private void findSuccessfulNeighbours(int count) {
+        for (int i = 0; i < count; i++) {
+            neighbours[i] = -1;
+            if (failed[i]) {
+                for (int d = 1; d < count; d++) {
+                    if (i - d >= 0 && !failed[i - d]) {
+                        neighbours[i] = i - d;
+                        break;
+                    }
+                    if (i + d < count && !failed[i + d]) {
+                        neighbours[i] = i + d;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copyResult(BatchFitResult source, int sourceIndex, BatchFitResult target, int targetIndex) {
+        target.niter[targetIndex] = source.niter[sourceIndex];
+        target.ChiSq[targetIndex] = source.ChiSq[sourceIndex];
+        for (int p = 0; p < source.parsfit.length; p++) {
+            target.parsfit[p][targetIndex] = source.parsfit[p][sourceIndex];
+        }
+        for (int c = 0; c < source.CovPars.length; c++) {
+            target.CovPars[c][targetIndex] = source.CovPars[c][sourceIndex];
+        }
+    }
+
+    private void setFitResults(NNffbpAlphaTabFast forwardWaterNet, double lnBtsm, double lnApig,
+                               double lnGelbstoff, double covBtsm, double covApig, double covGelbstoff,
+                               double chiSq, int niter, double startChiSq, double[] targetValues) {
+        targetValues[TARGET_TSM_FIT_INDEX] = Math.exp(Math.log(tsmFactor) + lnBtsm * tsmExponent);
+        targetValues[TARGET_CHL_CONC_FIT_INDEX] = Math.exp(Math.log(chlFactor) + lnApig * chlExponent);
 
         final double[] inmax = forwardWaterNet.getInmax();
         final double[] inmin = forwardWaterNet.getInmin();
 
-        double deltaBtsm = getDelta(fitRes.CovPars.get(0, 0));
-        final double bTsmMax = Math.exp(getMax(fitRes.parsfit[0], deltaBtsm, inmax[3]));
-        final double bTsmMin = Math.exp(getMin(fitRes.parsfit[0], deltaBtsm, inmin[3]));
-        targetSamples[TARGET_B_TSM_FIT_INDEX].set(Math.exp(fitRes.parsfit[0]));
-        targetSamples[TARGET_B_TSM_FIT_MAX_INDEX].set(bTsmMax);
-        targetSamples[TARGET_B_TSM_FIT_MIN_INDEX].set(bTsmMin);
-
-        double deltaApig = getDelta(fitRes.CovPars.get(1, 1));
-        double apigMax = Math.exp(getMax(fitRes.parsfit[1], deltaApig, inmax[4]));
-        double apigMin = Math.exp(getMin(fitRes.parsfit[1], deltaApig, inmin[4]));
-        targetSamples[TARGET_A_PIG_FIT_INDEX].set(Math.exp(fitRes.parsfit[1]));
-        targetSamples[TARGET_A_PIG_FIT_MAX_INDEX].set(apigMax);
-        targetSamples[TARGET_A_PIG_FIT_MIN_INDEX].set(apigMin);
-
-        double deltaGelbstoff = getDelta(fitRes.CovPars.get(2, 2));
-        double gelbstoffMax = Math.exp(getMax(fitRes.parsfit[2], deltaGelbstoff, inmax[5]));
-        double gelbstoffMin = Math.exp(getMin(fitRes.parsfit[2], deltaGelbstoff, inmin[5]));
-        targetSamples[TARGET_A_GELBSTOFF_FIT_INDEX].set(Math.exp(fitRes.parsfit[2]));
-        targetSamples[TARGET_A_GELBSTOFF_FIT_MAX_INDEX].set(gelbstoffMax);
-        targetSamples[TARGET_A_GELBSTOFF_FIT_MIN_INDEX].set(gelbstoffMin);
-
-        targetSamples[TARGET_CHI_SQUARE_FIT_INDEX].set(fitRes.ChiSq);
-        if (fitRes.ChiSq > fitFailedThreshold) {
-            targetSamples[TARGET_FLAG_INDEX].set(FIT_FAILED_INDEX, true);
-        }
-
-        targetSamples[TARGET_N_ITER_FIT_INDEX].set(fitRes.niter);
-        targetSamples[TARGET_PARAM_CHANGE_FIT_INDEX].set(fitRes.startChiSq);
+        double deltaBtsm = getDelta(covBtsm);
+        final double bTsmMax = Math.exp(getMax(lnBtsm, deltaBtsm, inmax[3]));
+        final double bTsmMin = Math.exp(getMin(lnBtsm, deltaBtsm, inmin[3]));
+        targetValues[TARGET_B_TSM_FIT_INDEX] = Math.exp(lnBtsm);
+        targetValues[TARGET_B_TSM_FIT_MAX_INDEX] = bTsmMax;
+        targetValues[TARGET_B_TSM_FIT_MIN_INDEX] = bTsmMin;
+
+        double deltaApig = getDelta(covApig);
+        double apigMax = Math.exp(getMax(lnApig, deltaApig, inmax[4]));
+        double apigMin = Math.exp(getMin(lnApig, deltaApig, inmin[4]));
+        targetValues[TARGET_A_PIG_FIT_INDEX] = Math.exp(lnApig);
+        targetValues[TARGET_A_PIG_FIT_MAX_INDEX] = apigMax;
+        targetValues[TARGET_A_PIG_FIT_MIN_INDEX] = apigMin;
+
+        double deltaGelbstoff = getDelta(covGelbstoff);
+        double gelbstoffMax = Math.exp(getMax(lnGelbstoff, deltaGelbstoff, inmax[5]));
+        double gelbstoffMin = Math.exp(getMin(lnGelbstoff, deltaGelbstoff, inmin[5]));
+        targetValues[TARGET_A_GELBSTOFF_FIT_INDEX] = Math.exp(lnGelbstoff);
+        targetValues[TARGET_A_GELBSTOFF_FIT_MAX_INDEX] = gelbstoffMax;
+        targetValues[TARGET_A_GELBSTOFF_FIT_MIN_INDEX] = gelbstoffMin;
+
+        targetValues[TARGET_CHI_SQUARE_FIT_INDEX] = chiSq;
+        if (chiSq > fitFailedThreshold) {
+            WaterAlgorithm.setFlag(targetValues, FIT_FAILED_INDEX);
+        }
+
+        targetValues[TARGET_N_ITER_FIT_INDEX] = niter;
+        targetValues[TARGET_PARAM_CHANGE_FIT_INDEX] = startChiSq;
     }
 
     private double getMax(double value, double delta, double absMax) {
@@ -0,0 +1,102 @@
+package org.esa.beam.meris.case2.fit;
+
+import Jama.Matrix;
+import Jama.SingularValueDecomposition;
+
+/**
+ * Computes the covariance of the fit parameters as pseudo-inverse of the normal matrix
+ * <code>J^T C^-1 J</code>, with singular values below a threshold treated as zero.
+ * <p/>
+ * The normal matrix is symmetric, so it is inverted by a Cholesky decomposition first. If the Frobenius
+ * norm of the inverse is below <code>1 / eps</code>, all singular values are above <code>eps</code> and the
+ * inverse equals the pseudo-inverse. Only otherwise the singular value decomposition is computed.
+ * <p/>
+ * An instance holds the work arrays of the decomposition for a fixed matrix size, so it must not be used by
+ * several threads at once.
+ *
+ * @author agent
+ */
+final class Covariance {
+
+    private final double[][] l;
+    private final double[][] li;
+
+    /**
+     * @param n the number of rows and columns of the matrices
+     */
+    Covariance(int n) {
+        l = new double[n][n];
+        li = new double[n][n];
+    }
+
+    /**
+     * @param a       the symmetric matrix, not modified
+     * @param eps     the threshold of the singular values
+     * @param inverse receives the pseudo-inverse
+     */
+    void pseudoInverse(double[][] a, double eps, double[][] inverse) {
+        if (!invertPositiveDefinite(a, eps, inverse)) {
+            final Matrix result = svdPseudoInverse(new Matrix(a), eps);
+            for (int i = 0; i < a.length; i++) {
+                for (int j = 0; j < a.length; j++) {
+                    inverse[i][j] = result.get(i, j);
+                }
+            }
+        }
+    }
+
+    static Matrix svdPseudoInverse(Matrix a, double eps) {
+        final SingularValueDecomposition svd = new SingularValueDecomposition(a);
+        final Matrix s = svd.getS();
+        final double[] sg = svd.getSingularValues();
+        for (int k = 0; k < sg.length; k++) {
+            s.set(k, k, sg[k] < eps ? 0.0 : 1.0 / sg[k]);
+        }
+        return svd.getV().times(s).times(svd.getU().transpose());
+    }
+
+    private boolean invertPositiveDefinite(double[][] a, double eps, double[][] inverse) {
+        final int n = a.length;
+        for (int j = 0; j < n; j++) {
+            double d = a[j][j];
+            for (int k = 0; k < j; k++) {
+                d -= l[j][k] * l[j][k];
+            }
+            if (!(d > 0.0)) {
+                return false;
+            }
+            l[j][j] = Math.sqrt(d);
+            for (int i = j + 1; i < n; i++) {
+                double s = a[i][j];
+                for (int k = 0; k < j; k++) {
+                    s -= l[i][k] * l[j][k];
+                }
+                l[i][j] = s / l[j][j];
+            }
+        }
+        // inverse of L by forward substitution, then A^-1 = L^-T L^-1; only the lower triangles are used
+        for (int j = 0; j < n; j++) {
+            li[j][j] = 1.0 / l[j][j];
+            for (int i = j + 1; i < n; i++) {
+                double s = 0.0;
+                for (int k = j; k < i; k++) {
+                    s -= l[i][k] * li[k][j];
+                }
+                li[i][j] = s / l[i][i];
+            }
+        }
+        double norm2 = 0.0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double s = 0.0;
+                for (int k = i; k < n; k++) {
+                    s += li[k][i] * li[k][j];
+                }
+                inverse[i][j] = s;
+                inverse[j][i] = s;
+                norm2 += i == j ? s * s : 2 * s * s;
+            }
+        }
+        return Math.sqrt(norm2) < 1.0 / eps;
+    }
+}
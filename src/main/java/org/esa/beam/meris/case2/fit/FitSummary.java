@@ -0,0 +1,26 @@
+package org.esa.beam.meris.case2.fit;
+
+/**
+ * The values of a fit needed to derive the fit results, written into a caller-owned instance by
+ * {@link GenLM#LMFit(FitSummary)}. In contrast to {@link FitResult}, no model values, Jacobian or full
+ * covariance are kept.
+ *
+ * @author agent
+ */
+public class FitSummary {
+
+    public int niter;
+    public double ChiSq;
+    public double startChiSq;
+    public String returnReason;
+    public final double[] parsfit;
+    /**
+     * The diagonal of the covariance of the parameters.
+     */
+    public final double[] covParsDiagonal;
+
+    public FitSummary(int npars) {
+        parsfit = new double[npars];
+        covParsDiagonal = new double[npars];
+    }
+}
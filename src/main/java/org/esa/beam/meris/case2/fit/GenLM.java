@@ -2,6 +2,9 @@ package org.esa.beam.meris.case2.fit;
 
 import Jama.Matrix;
 import Jama.SingularValueDecomposition;
+import com.bc.ceres.core.ProgressMonitor;
+
+import java.util.concurrent.CancellationException;
 
 /**
  * @author Schiller
@@ -28,8 +31,14 @@ public class GenLM {
     public Matrix Gradient;
     public Matrix ParStep;
     private int npars, nmeas;
+    private double[][] covPars;
+    private Covariance covariance;
 
     public double mu, nu, tau, eps1, eps2;
+    /**
+     * Checked for cancellation before each iteration; a cancelled fit throws a {@link CancellationException}.
+     */
+    public ProgressMonitor pm = ProgressMonitor.NULL;
 
     public void setNmeasNpars(int nmeas, int npars) {
         this.npars = npars;
@@ -46,36 +55,81 @@ public class GenLM {
         modelRes = new double[nmeas];
         Jacobian = new Matrix(nmeas, npars);
         CovMeas = new Matrix(nmeas, nmeas);
+        covPars = new double[npars][npars];
+        covariance = new Covariance(npars);
     }
 
 
+    /**
+     * Performs the fit and keeps the full record: model values at start and end, Jacobian and the full
+     * covariance of the parameters.
+     */
     public FitResult LMFit() {
         FitResult res = new FitResult();
         res.startModelRes = new double[nmeas];
         res.finalModelRes = new double[nmeas];
+        final FitSummary summary = new FitSummary(npars);
+        final Matrix normal = iterate(summary, res.startModelRes);
+        res.niter = summary.niter;
+        res.ChiSq = summary.ChiSq;
+        res.startChiSq = summary.startChiSq;
+        res.returnReason = summary.returnReason;
+        //res.CovPars.print(15, 10);
+        res.CovPars = svdinv2(normal, 1.e-9);
+        res.Jacobian = Jacobian.copy();
+        res.parsfit = summary.parsfit;
+        System.arraycopy(modelRes, 0, res.finalModelRes, 0, nmeas);
+        //System.out.println(res.niter+" iters, "+res.returnReason);
+        return res;
+    }
+
+    /**
+     * Performs the fit and writes only the values needed to derive the fit results into the given summary.
+     * The full covariance is computed into a buffer of this instance, without the singular value
+     * decomposition if the normal matrix is well conditioned; only its diagonal is written to the summary.
+     *
+     * @param summary receives the results
+     */
+    public void LMFit(FitSummary summary) {
+        final Matrix normal = iterate(summary, null);
+        covariance.pseudoInverse(normal.getArray(), 1.e-9, covPars);
+        for (int i = 0; i < npars; i++) {
+            summary.covParsDiagonal[i] = covPars[i][i];
+        }
+    }
+
+    /**
+     * @return the normal matrix <code>J^T C^-1 J</code> of the last accepted step
+     */
+    private Matrix iterate(FitSummary res, double[] startModelRes) {
         InvCovMeas = CovMeas.inverse();
         res.returnReason = "skipped the while: gradient / eps1";
         res.niter = 0;
         System.arraycopy(startPars, 0, pars, 0, npars);
         theFitproblem.modelAndJacobian(pars);
-        System.arraycopy(modelRes, 0, res.startModelRes, 0, nmeas);
+        if (startModelRes != null) {
+            System.arraycopy(modelRes, 0, startModelRes, 0, nmeas);
+        }
         res.ChiSq = chiSq();
         res.startChiSq = res.ChiSq;
         Gradient = Jacobian.transpose().times(InvCovMeas.times(ModErr));  //28.11.06
         boolean finito = (Gradient.normInf() < eps1);
-        res.CovPars = (Jacobian.transpose().times(InvCovMeas)).times(Jacobian);
+        Matrix normal = (Jacobian.transpose().times(InvCovMeas)).times(Jacobian);
         double mxdiag = Double.MIN_VALUE;
         for (int i = 0; i < npars; i++) {
-            if (res.CovPars.get(i, i) > mxdiag) {
-                mxdiag = res.CovPars.get(i, i);
+            if (normal.get(i, i) > mxdiag) {
+                mxdiag = normal.get(i, i);
             }
         }
         mu = tau * mxdiag;
         while (!finito && (res.niter < nitermax)) {
+            if (pm.isCanceled()) {
+                throw new CancellationException("Fit cancelled");
+            }
             res.returnReason = "mitermax reached ";
             res.niter++;
             //SingularValueDecomposition SVD = new SingularValueDecomposition(res.CovPars.plus(Matrix.identity(npars, npars).times(mu)));
-            ParStep = (res.CovPars.plus(Matrix.identity(npars, npars).times(mu))).inverse().times(Gradient).uminus();
+            ParStep = (normal.plus(Matrix.identity(npars, npars).times(mu))).inverse().times(Gradient).uminus();
             if (ParStep.norm2() < eps2 * (new Matrix(pars, 1)).norm2() + eps2) {
                 finito = true;
                 res.returnReason = "small parameter step / eps2";
@@ -90,7 +144,7 @@ public class GenLM {
                 if (rho > 0.) {
                     System.arraycopy(newpars, 0, pars, 0, npars);
                     res.ChiSq = newChiSq;
-                    res.CovPars = (Jacobian.transpose().times(InvCovMeas)).times(Jacobian);
+                    normal = (Jacobian.transpose().times(InvCovMeas)).times(Jacobian);
                     Gradient = Jacobian.transpose().times(InvCovMeas.times(ModErr)); //28.11.06
                     finito = (Gradient.normInf() < eps1);
                     res.returnReason = "small gradient / eps1";
@@ -113,14 +167,8 @@ public class GenLM {
         if (res.niter == nitermax) {
             res.returnReason = "nitermax iterations done";
         }
-        //res.CovPars.print(15, 10);
-        res.CovPars = svdinv2(res.CovPars, 1.e-9);
-        res.Jacobian = Jacobian.copy();
-        res.parsfit = new double[npars];
         System.arraycopy(newpars, 0, res.parsfit, 0, npars);
-        System.arraycopy(modelRes, 0, res.finalModelRes, 0, nmeas);
-        //System.out.println(res.niter+" iters, "+res.returnReason);
-        return res;
+        return normal;
     }
 
     Matrix svdinv2(Matrix A, double eps) {
@@ -0,0 +1,86 @@
+package org.esa.beam.meris.case2.fit;
+
+import org.esa.beam.nn.NNCalc;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+
+/**
+ * The batched counterpart of {@link MerisGLM}: the forward water net evaluated for many pixels.
+ * <p/>
+ * The parameters are the logarithms of <code>b_tsm</code>, <code>a_pig</code> and <code>a_gelbstoff</code>.
+ * The neural net library has no batched evaluation, so the net and its Jacobian are evaluated pixel by
+ * pixel within one call of {@link #modelAndJacobian}.
+ *
+ * @author agent
+ */
+public class MerisBatchGLM implements BatchModel4LM {
+
+    private static final int npars = 3;
+
+    private final double[] nnIn;
+    private final int nmeas;
+
+    private NNffbpAlphaTabFast forwNN;
+    private double[] thetaSun;
+    private double[] thetaView;
+    private double[] aziDiff;
+
+    public MerisBatchGLM(int numNnIn, int numNMeas) {
+        nnIn = new double[numNnIn];
+        nmeas = numNMeas;
+    }
+
+    /**
+     * @param forwardNet the forward water net
+     * @param thetaSun   the sun zenith of each pixel
+     * @param thetaView  the view zenith of each pixel
+     * @param aziDiff    the azimuth difference of each pixel
+     */
+    public void init(NNffbpAlphaTabFast forwardNet, double[] thetaSun, double[] thetaView, double[] aziDiff) {
+        forwNN = forwardNet;
+        this.thetaSun = thetaSun;
+        this.thetaView = thetaView;
+        this.aziDiff = aziDiff;
+    }
+
+    @Override
+    public int getNumPars() {
+        return npars;
+    }
+
+    @Override
+    public int getNumMeas() {
+        return nmeas;
+    }
+
+    @Override
+    public double getParMin(int parIndex) {
+        return forwNN.getInmin()[parIndex + 3];
+    }
+
+    @Override
+    public double getParMax(int parIndex) {
+        return forwNN.getInmax()[parIndex + 3];
+    }
+
+    @Override
+    public void modelAndJacobian(int[] pixels, int count, double[][] pars, double[][] model, double[][] jacobian) {
+        for (int k = 0; k < count; k++) {
+            final int i = pixels[k];
+            nnIn[0] = thetaSun[i];
+            nnIn[1] = thetaView[i];
+            nnIn[2] = aziDiff[i];
+            for (int p = 0; p < npars; p++) {
+                nnIn[p + 3] = pars[p][i];
+            }
+            final NNCalc nnRes = forwNN.calcJacobi(nnIn);
+            final double[] nnOutput = nnRes.getNnOutput();
+            final double[][] jacobiMatrix = nnRes.getJacobiMatrix();
+            for (int m = 0; m < nmeas; m++) {
+                model[m][i] = nnOutput[m];
+                for (int p = 0; p < npars; p++) {
+                    jacobian[m * npars + p][i] = jacobiMatrix[m][p + 3];
+                }
+            }
+        }
+    }
+}
@@ -31,22 +31,30 @@ public class MerisGLM implements ModelInterf4LM {
         forwNN = (NNffbpAlphaTabFast) (forwNetName);
         wlVariance = waterReflLogVariance;
 
-        myLM = new GenLM(this);
-        myLM.nitermax = 200;
-        myLM.nu = 2;
+        // the fitter and its arrays only depend on the dimensions of the net, so they are created once
+        if (myLM == null) {
+            myLM = new GenLM(this);
+            myLM.setNmeasNpars(nmeas, npars);
+        }
+        myLM.nitermax = ChiSquareFitting.DEFAULT_MAX_ITER;
         myLM.tau = 1.0e-4;// sehr klein (e-6), wenn gute startwerte
         myLM.eps1 = 1.0e-6;
         myLM.eps2 = 1.0e-16;
 
-        // setting stuff fixed due to dimensions of Neural Net
-        myLM.setNmeasNpars(nmeas, npars);
-
     }
 
     public GenLM getMyLM() {
         return myLM;
     }
 
+    public int getNumNnIn() {
+        return nnIn.length;
+    }
+
+    public int getNumMeas() {
+        return nmeas;
+    }
+
     @Override
     public void initSingleFit(Object initValues) {
         ChiSquareFitting.Data4SingleFitInitialization myIni = (ChiSquareFitting.Data4SingleFitInitialization) (initValues);
@@ -56,6 +64,9 @@ public class MerisGLM implements ModelInterf4LM {
         nnIn[1] = myIni.theta_view_grad;
         nnIn[2] = myIni.azi_diff_grad;
 
+        // the damping factor is changed by each fit
+        myLM.nu = 2;
+
         myLM.startPars[0] = myIni.ln_b_SPM_b_White;
         myLM.startPars[1] = myIni.ln_a_Chlor;
         myLM.startPars[2] = myIni.ln_a_Yellow_a_SPM;
@@ -0,0 +1,118 @@
+package org.esa.beam.meris.case2.lakes;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single lake outline given in geographical coordinates (x = longitude, y = latitude).
+ * <p/>
+ * The rings of all polygons of the outline are kept as plain coordinate arrays, so that the
+ * point-in-polygon test is free of any lazily initialised state and can be used concurrently
+ * from several tile computations.
+ *
+ * @author agent
+ */
+public class Lake {
+
+    private final int index;
+    private final String name;
+    private final Envelope envelope;
+    private final double[][] ringLons;
+    private final double[][] ringLats;
+
+    Lake(int index, String name, Geometry geometry) {
+        this.index = index;
+        this.name = name;
+        envelope = geometry.getEnvelopeInternal();
+
+        final List<LineString> rings = new ArrayList<LineString>();
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            final Geometry part = geometry.getGeometryN(i);
+            if (!(part instanceof Polygon)) {
+                throw new IllegalArgumentException("Outline of lake '" + name + "' is not a (multi-)polygon.");
+            }
+            final Polygon polygon = (Polygon) part;
+            rings.add(polygon.getExteriorRing());
+            for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                rings.add(polygon.getInteriorRingN(j));
+            }
+        }
+        ringLons = new double[rings.size()][];
+        ringLats = new double[rings.size()][];
+        for (int i = 0; i < rings.size(); i++) {
+            final Coordinate[] coordinates = rings.get(i).getCoordinates();
+            ringLons[i] = new double[coordinates.length];
+            ringLats[i] = new double[coordinates.length];
+            for (int j = 0; j < coordinates.length; j++) {
+                ringLons[i][j] = coordinates[j].x;
+                ringLats[i][j] = coordinates[j].y;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the lake within its catalog, starting at 1
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * @return the coordinates of all vertices as {lon, lat} pairs
+     */
+    public double[][] getVertices() {
+        int count = 0;
+        for (double[] ringLon : ringLons) {
+            count += ringLon.length;
+        }
+        final double[][] vertices = new double[count][];
+        int k = 0;
+        for (int i = 0; i < ringLons.length; i++) {
+            for (int j = 0; j < ringLons[i].length; j++) {
+                vertices[k++] = new double[]{ringLons[i][j], ringLats[i][j]};
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * Tests whether the given location lies within the lake. Holes and islands are handled by
+     * the even-odd rule applied over all rings of the outline.
+     *
+     * @param lon the longitude in degree
+     * @param lat the latitude in degree
+     *
+     * @return {@code true} if the location is inside the lake
+     */
+    public boolean contains(double lon, double lat) {
+        if (!envelope.contains(lon, lat)) {
+            return false;
+        }
+        boolean inside = false;
+        for (int r = 0; r < ringLons.length; r++) {
+            final double[] xs = ringLons[r];
+            final double[] ys = ringLats[r];
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if ((ys[i] > lat) != (ys[j] > lat) &&
+                    lon < (xs[j] - xs[i]) * (lat - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+}
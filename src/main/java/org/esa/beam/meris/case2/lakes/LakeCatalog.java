@@ -0,0 +1,122 @@
+package org.esa.beam.meris.case2.lakes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An in-memory catalog of lake outlines, spatially indexed by an R-tree (STR packed) over the
+ * bounding boxes of the lakes.
+ * <p/>
+ * The catalog is read from a plain text file. Each line holds the name of a lake and its outline
+ * as WKT (POLYGON or MULTIPOLYGON, longitude before latitude), separated by a tab character.
+ * Empty lines and lines starting with '#' are ignored.
+ *
+ * @author agent
+ */
+public class LakeCatalog {
+
+    private final List<Lake> lakes;
+    private final STRtree index;
+
+    LakeCatalog(List<Lake> lakes) {
+        this.lakes = Collections.unmodifiableList(lakes);
+        index = new STRtree();
+        for (Lake lake : lakes) {
+            index.insert(lake.getEnvelope(), lake);
+        }
+        // building the tree up front makes later queries read-only and thus safe for concurrent use
+        index.build();
+    }
+
+    public static LakeCatalog read(File file) throws IOException {
+        final FileReader reader = new FileReader(file);
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static LakeCatalog read(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        final WKTReader wktReader = new WKTReader();
+        final List<Lake> lakes = new ArrayList<Lake>();
+        String line = bufferedReader.readLine();
+        int lineNumber = 1;
+        while (line != null) {
+            final String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                final int tabIndex = trimmed.indexOf('\t');
+                if (tabIndex <= 0) {
+                    throw new IOException(String.format("Line %d: expected '<name><TAB><WKT>'.", lineNumber));
+                }
+                final String name = trimmed.substring(0, tabIndex).trim();
+                final Geometry geometry;
+                try {
+                    geometry = wktReader.read(trimmed.substring(tabIndex + 1).trim());
+                } catch (ParseException e) {
+                    throw new IOException(String.format("Line %d: %s", lineNumber, e.getMessage()), e);
+                }
+                try {
+                    lakes.add(new Lake(lakes.size() + 1, name, geometry));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("Line %d: %s", lineNumber, e.getMessage()), e);
+                }
+            }
+            line = bufferedReader.readLine();
+            lineNumber++;
+        }
+        return new LakeCatalog(lakes);
+    }
+
+    public int getLakeCount() {
+        return lakes.size();
+    }
+
+    /**
+     * @param lakeIndex the index of the lake, starting at 1
+     *
+     * @return the lake
+     */
+    public Lake getLake(int lakeIndex) {
+        return lakes.get(lakeIndex - 1);
+    }
+
+    /**
+     * @param envelope a geographical envelope (x = longitude, y = latitude)
+     *
+     * @return all lakes whose bounding box intersects the envelope
+     */
+    @SuppressWarnings("unchecked")
+    public List<Lake> getLakes(Envelope envelope) {
+        return (List<Lake>) index.query(envelope);
+    }
+
+    /**
+     * @param lon the longitude in degree
+     * @param lat the latitude in degree
+     *
+     * @return the index of the lake containing the location or {@code 0} if it is not inside any lake
+     */
+    public int findLakeIndex(double lon, double lat) {
+        final List<Lake> candidates = getLakes(new Envelope(lon, lon, lat, lat));
+        for (Lake candidate : candidates) {
+            if (candidate.contains(lon, lat)) {
+                return candidate.getIndex();
+            }
+        }
+        return 0;
+    }
+}
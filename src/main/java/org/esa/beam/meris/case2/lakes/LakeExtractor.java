@@ -0,0 +1,251 @@
+package org.esa.beam.meris.case2.lakes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.meris.case2.util.CsvWriter;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the pixels of all lakes of a {@link LakeCatalog} which are covered by a product, either as
+ * one pixel table in CSV format or as one small subset product per lake.
+ * <p/>
+ * Only the bounding pixel region of each lake is requested from the product, hence only the tiles
+ * covering lakes are ever computed.
+ *
+ * @author agent
+ */
+public class LakeExtractor {
+
+    public static final String FORMAT_CSV = "CSV";
+    public static final String FORMAT_DIMAP = "BEAM-DIMAP";
+
+    private static final int BOUNDARY_STEPS = 16;
+
+    private final LakeCatalog catalog;
+    private final String lakeIndexBandName;
+
+    /**
+     * @param catalog           the lakes to extract
+     * @param lakeIndexBandName the name of the band holding the lake index of each pixel
+     */
+    public LakeExtractor(LakeCatalog catalog, String lakeIndexBandName) {
+        this.catalog = catalog;
+        this.lakeIndexBandName = lakeIndexBandName;
+    }
+
+    /**
+     * Finds the lakes covered by the product together with their bounding pixel regions.
+     *
+     * @param product a geo-coded product
+     *
+     * @return the lakes intersecting the scene
+     */
+    public List<LakeRegion> findLakeRegions(Product product) {
+        final GeoCoding geoCoding = product.getGeoCoding();
+        final Rectangle sceneRect = new Rectangle(product.getSceneRasterWidth(), product.getSceneRasterHeight());
+        final List<LakeRegion> regions = new ArrayList<LakeRegion>();
+        for (Lake lake : catalog.getLakes(getSceneEnvelope(geoCoding, sceneRect))) {
+            final Rectangle region = getPixelRegion(lake, geoCoding, sceneRect);
+            if (region != null) {
+                regions.add(new LakeRegion(lake, region));
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Writes the given lake region of the product in the given format into the output directory.
+     *
+     * @return the written file
+     */
+    public File write(Product product, LakeRegion lakeRegion, File outputDir, String format) throws IOException {
+        final String baseName = getSafeName(product.getName() + "_" + lakeRegion.getLake().getName());
+        if (FORMAT_CSV.equals(format)) {
+            final File file = new File(outputDir, baseName + ".csv");
+            writePixelTable(product, lakeRegion, file);
+            return file;
+        } else {
+            final File file = new File(outputDir, baseName + ".dim");
+            final ProductSubsetDef subsetDef = new ProductSubsetDef();
+            subsetDef.setRegion(lakeRegion.getRegion());
+            final Product subset = product.createSubset(subsetDef, baseName, product.getDescription());
+            try {
+                ProductIO.writeProduct(subset, file, format, false);
+            } finally {
+                subset.dispose();
+            }
+            return file;
+        }
+    }
+
+    private void writePixelTable(Product product, LakeRegion lakeRegion, File file) throws IOException {
+        final Rectangle region = lakeRegion.getRegion();
+        final int lakeIndex = lakeRegion.getLake().getIndex();
+        final Band[] bands = product.getBands();
+        final Raster lakeIndexRaster = product.getBand(lakeIndexBandName).getSourceImage().getData(region);
+        final Raster[] rasters = new Raster[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            if (!lakeIndexBandName.equals(bands[i].getName())) {
+                rasters[i] = bands[i].getGeophysicalImage().getData(region);
+            }
+        }
+
+        final GeoCoding geoCoding = product.getGeoCoding();
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        final CsvWriter writer = new CsvWriter(new FileWriter(file));
+        try {
+            writer.write("lake");
+            writer.write("X");
+            writer.write("Y");
+            writer.write("Lat");
+            writer.write("Lon");
+            for (int i = 0; i < bands.length; i++) {
+                if (rasters[i] != null) {
+                    writer.write(bands[i].getName());
+                }
+            }
+            writer.endRecord();
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    if (lakeIndexRaster.getSample(x, y, 0) != lakeIndex) {
+                        continue;
+                    }
+                    pixelPos.setLocation(x + 0.5, y + 0.5);
+                    geoCoding.getGeoPos(pixelPos, geoPos);
+                    writer.write(lakeRegion.getLake().getName());
+                    writer.write(x);
+                    writer.write(y);
+                    writer.write(geoPos.lat);
+                    writer.write(geoPos.lon);
+                    for (int i = 0; i < bands.length; i++) {
+                        if (rasters[i] != null) {
+                            writer.write(rasters[i].getSampleDouble(x, y, 0));
+                        }
+                    }
+                    writer.endRecord();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Envelope getSceneEnvelope(GeoCoding geoCoding, Rectangle sceneRect) {
+        final Envelope envelope = new Envelope();
+        final GeoPos geoPos = new GeoPos();
+        for (int i = 0; i <= BOUNDARY_STEPS; i++) {
+            final double fx = sceneRect.width * (double) i / BOUNDARY_STEPS;
+            final double fy = sceneRect.height * (double) i / BOUNDARY_STEPS;
+            expand(envelope, geoCoding, (float) fx, 0, geoPos);
+            expand(envelope, geoCoding, (float) fx, sceneRect.height, geoPos);
+            expand(envelope, geoCoding, 0, (float) fy, geoPos);
+            expand(envelope, geoCoding, sceneRect.width, (float) fy, geoPos);
+        }
+        return envelope;
+    }
+
+    private static void expand(Envelope envelope, GeoCoding geoCoding, float x, float y, GeoPos geoPos) {
+        geoCoding.getGeoPos(new PixelPos(x, y), geoPos);
+        if (geoPos.isValid()) {
+            envelope.expandToInclude(geoPos.lon, geoPos.lat);
+        }
+    }
+
+    /**
+     * The bounding box of the valid vertices covers a lake only if it lies completely within the scene. A vertex
+     * outside the scene has no pixel position, and the lake extends beyond the scene edge where the polygon
+     * leaves the scene. In this case the box is extended by the pixels of the scene edge lying within the lake,
+     * so it bounds the part of the lake clipped to the scene.
+     */
+    private static Rectangle getPixelRegion(Lake lake, GeoCoding geoCoding, Rectangle sceneRect) {
+        final int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        final PixelPos pixelPos = new PixelPos();
+        boolean allVerticesValid = true;
+        for (double[] vertex : lake.getVertices()) {
+            geoCoding.getPixelPos(new GeoPos((float) vertex[1], (float) vertex[0]), pixelPos);
+            if (pixelPos.isValid()) {
+                include(bounds, (int) Math.floor(pixelPos.x), (int) Math.floor(pixelPos.y));
+            } else {
+                allVerticesValid = false;
+            }
+        }
+        if (!allVerticesValid) {
+            includeSceneEdge(lake, geoCoding, sceneRect, bounds);
+        }
+        if (bounds[0] > bounds[2]) {
+            return null;
+        }
+        final Rectangle region = new Rectangle(bounds[0] - 1, bounds[1] - 1,
+                                               bounds[2] - bounds[0] + 3, bounds[3] - bounds[1] + 3);
+        final Rectangle sceneRegion = region.intersection(sceneRect);
+        return sceneRegion.isEmpty() ? null : sceneRegion;
+    }
+
+    private static void includeSceneEdge(Lake lake, GeoCoding geoCoding, Rectangle sceneRect, int[] bounds) {
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        final int lastX = sceneRect.width - 1;
+        final int lastY = sceneRect.height - 1;
+        for (int x = 0; x <= lastX; x++) {
+            includeIfInLake(lake, geoCoding, x, 0, pixelPos, geoPos, bounds);
+            includeIfInLake(lake, geoCoding, x, lastY, pixelPos, geoPos, bounds);
+        }
+        for (int y = 1; y < lastY; y++) {
+            includeIfInLake(lake, geoCoding, 0, y, pixelPos, geoPos, bounds);
+            includeIfInLake(lake, geoCoding, lastX, y, pixelPos, geoPos, bounds);
+        }
+    }
+
+    private static void includeIfInLake(Lake lake, GeoCoding geoCoding, int x, int y, PixelPos pixelPos,
+                                        GeoPos geoPos, int[] bounds) {
+        pixelPos.setLocation(x + 0.5, y + 0.5);
+        geoCoding.getGeoPos(pixelPos, geoPos);
+        if (geoPos.isValid() && lake.contains(geoPos.lon, geoPos.lat)) {
+            include(bounds, x, y);
+        }
+    }
+
+    private static void include(int[] bounds, int x, int y) {
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.max(bounds[2], x);
+        bounds[3] = Math.max(bounds[3], y);
+    }
+
+    private static String getSafeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9_\\-.]", "_");
+    }
+
+    public static class LakeRegion {
+
+        private final Lake lake;
+        private final Rectangle region;
+
+        LakeRegion(Lake lake, Rectangle region) {
+            this.lake = lake;
+            this.region = region;
+        }
+
+        public Lake getLake() {
+            return lake;
+        }
+
+        public Rectangle getRegion() {
+            return region;
+        }
+    }
+}
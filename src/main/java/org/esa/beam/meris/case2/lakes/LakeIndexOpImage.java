@@ -0,0 +1,51 @@
+package org.esa.beam.meris.case2.lakes;
+
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.jai.ImageManager;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+/**
+ * Rasterises a {@link LakeCatalog} onto the pixel grid of a product. Each pixel holds the index
+ * of the lake it belongs to, or {@code 0} if it is not inside any lake of the catalog.
+ *
+ * @author agent
+ */
+public class LakeIndexOpImage extends SingleBandedOpImage {
+
+    private final GeoCoding geoCoding;
+    private final LakeCatalog catalog;
+
+    public LakeIndexOpImage(Product product, LakeCatalog catalog, ResolutionLevel level) {
+        super(DataBuffer.TYPE_SHORT, product.getSceneRasterWidth(), product.getSceneRasterHeight(),
+              ImageManager.getPreferredTileSize(product), null, level);
+        this.geoCoding = product.getGeoCoding();
+        this.catalog = catalog;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        final double scale = getLevel().getScale();
+        for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+            for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                pixelPos.setLocation((x + 0.5) * scale, (y + 0.5) * scale);
+                geoCoding.getGeoPos(pixelPos, geoPos);
+                int lakeIndex = 0;
+                if (geoPos.isValid()) {
+                    lakeIndex = catalog.findLakeIndex(geoPos.lon, geoPos.lat);
+                }
+                tile.setSample(x, y, 0, lakeIndex);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.esa.beam.meris.case2.matchup;
+
+import java.util.Date;
+
+/**
+ * An in-situ sample location for which the retrieval shall be extracted.
+ *
+ * @author agent
+ */
+public class Matchup {
+
+    private final String name;
+    private final double lat;
+    private final double lon;
+    private final Date time;
+
+    public Matchup(String name, double lat, double lon, Date time) {
+        this.name = name;
+        this.lat = lat;
+        this.lon = lon;
+        this.time = time;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    /**
+     * @return the sampling time or {@code null} if the sample has no time
+     */
+    public Date getTime() {
+        return time;
+    }
+
+    /**
+     * Tests whether the sampling time lies within the given period extended by the allowed time difference.
+     * Samples without time always match.
+     *
+     * @param start             the start of the period, may be {@code null}
+     * @param end               the end of the period, may be {@code null}
+     * @param maxTimeDifference the allowed time difference in milliseconds
+     *
+     * @return {@code true} if the sample matches the period
+     */
+    public boolean isInTimeWindow(Date start, Date end, long maxTimeDifference) {
+        if (time == null) {
+            return true;
+        }
+        if (start != null && time.getTime() < start.getTime() - maxTimeDifference) {
+            return false;
+        }
+        if (end != null && time.getTime() > end.getTime() + maxTimeDifference) {
+            return false;
+        }
+        return true;
+    }
+}
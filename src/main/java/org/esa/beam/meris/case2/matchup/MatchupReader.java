@@ -0,0 +1,111 @@
+package org.esa.beam.meris.case2.matchup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Reads match-up locations from a CSV file.
+ * <p/>
+ * The first line is the header. Columns are separated by tab, semicolon or comma, whichever is found
+ * first in the header. Recognised columns (case insensitive) are <code>name</code>, <code>lat</code>
+ * (or <code>latitude</code>), <code>lon</code> (or <code>longitude</code>) and optionally
+ * <code>time</code> (or <code>date_time</code>), given in UTC as <code>yyyy-MM-dd HH:mm:ss</code>
+ * or <code>yyyy-MM-dd'T'HH:mm:ss</code>. Other columns are ignored.
+ *
+ * @author agent
+ */
+public class MatchupReader {
+
+    private static final String[] SEPARATORS = {"\t", ";", ","};
+
+    private MatchupReader() {
+    }
+
+    public static List<Matchup> read(File file) throws IOException {
+        final FileReader reader = new FileReader(file);
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static List<Matchup> read(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        final String header = bufferedReader.readLine();
+        if (header == null) {
+            throw new IOException("Match-up file is empty.");
+        }
+        final String separator = findSeparator(header);
+        final String[] columns = header.split(separator, -1);
+        int nameColumn = -1;
+        int latColumn = -1;
+        int lonColumn = -1;
+        int timeColumn = -1;
+        for (int i = 0; i < columns.length; i++) {
+            final String column = columns[i].trim().toLowerCase();
+            if ("name".equals(column)) {
+                nameColumn = i;
+            } else if ("lat".equals(column) || "latitude".equals(column)) {
+                latColumn = i;
+            } else if ("lon".equals(column) || "longitude".equals(column)) {
+                lonColumn = i;
+            } else if ("time".equals(column) || "date_time".equals(column)) {
+                timeColumn = i;
+            }
+        }
+        if (latColumn == -1 || lonColumn == -1) {
+            throw new IOException("Match-up file must contain a latitude and a longitude column.");
+        }
+
+        final DateFormat dateFormat = createDateFormat();
+        final List<Matchup> matchups = new ArrayList<Matchup>();
+        String line = bufferedReader.readLine();
+        int lineNumber = 2;
+        while (line != null) {
+            if (!line.trim().isEmpty()) {
+                final String[] values = line.split(separator, -1);
+                try {
+                    final String name = nameColumn != -1 ? values[nameColumn].trim() : String.valueOf(matchups.size() + 1);
+                    final double lat = Double.parseDouble(values[latColumn].trim());
+                    final double lon = Double.parseDouble(values[lonColumn].trim());
+                    Date time = null;
+                    if (timeColumn != -1 && !values[timeColumn].trim().isEmpty()) {
+                        time = dateFormat.parse(values[timeColumn].trim().replace('T', ' '));
+                    }
+                    matchups.add(new Matchup(name, lat, lon, time));
+                } catch (NumberFormatException | ParseException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException(String.format("Line %d: invalid match-up record.", lineNumber), e);
+                }
+            }
+            line = bufferedReader.readLine();
+            lineNumber++;
+        }
+        return matchups;
+    }
+
+    private static String findSeparator(String header) {
+        for (String separator : SEPARATORS) {
+            if (header.contains(separator)) {
+                return separator;
+            }
+        }
+        return SEPARATORS[0];
+    }
+
+    private static DateFormat createDateFormat() {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat;
+    }
+}
@@ -0,0 +1,74 @@
+package org.esa.beam.meris.case2.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Writes comma-separated values as specified by RFC 4180. Values containing a comma, a double quote or a
+ * line break are enclosed in double quotes. Numbers are written in the locale independent format of
+ * {@link Float#toString(float)} and {@link Double#toString(double)}.
+ */
+public final class CsvWriter {
+
+    private final PrintWriter writer;
+    private boolean recordStarted;
+
+    public CsvWriter(Writer writer) {
+        this.writer = new PrintWriter(writer);
+    }
+
+    public void write(String value) {
+        startValue();
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 ||
+            value.indexOf('\r') >= 0) {
+            writer.print('"');
+            writer.print(value.replace("\"", "\"\""));
+            writer.print('"');
+        } else {
+            writer.print(value);
+        }
+    }
+
+    public void write(float value) {
+        startValue();
+        writer.print(value);
+    }
+
+    public void write(double value) {
+        startValue();
+        writer.print(value);
+    }
+
+    public void write(int value) {
+        startValue();
+        writer.print(value);
+    }
+
+    /**
+     * Terminates the current record with CR LF.
+     */
+    public void endRecord() {
+        writer.print("\r\n");
+        recordStarted = false;
+    }
+
+    /**
+     * Closes the underlying writer.
+     *
+     * @throws IOException if writing failed
+     */
+    public void close() throws IOException {
+        writer.close();
+        if (writer.checkError()) {
+            throw new IOException("Failed to write comma-separated values.");
+        }
+    }
+
+    private void startValue() {
+        if (recordStarted) {
+            writer.print(',');
+        }
+        recordStarted = true;
+    }
+}
@@ -0,0 +1,99 @@
+package org.esa.beam.meris.case2.util;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.pointop.WritableSample;
+
+/**
+ * A {@link WritableSample} which is not backed by a raster. It allows to run the pixel based
+ * water algorithms on single values outside of a GPF tile computation.
+ *
+ * @author agent
+ */
+public class DoubleSample implements WritableSample {
+
+    private final int index;
+    private double value;
+
+    public DoubleSample(int index) {
+        this(index, 0.0);
+    }
+
+    public DoubleSample(int index, double value) {
+        this.index = index;
+        this.value = value;
+    }
+
+    public static DoubleSample[] createArray(int length, double value) {
+        final DoubleSample[] samples = new DoubleSample[length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new DoubleSample(i, value);
+        }
+        return samples;
+    }
+
+    @Override
+    public RasterDataNode getNode() {
+        return null;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getDataType() {
+        return -1;
+    }
+
+    @Override
+    public boolean getBit(int bitIndex) {
+        return (getInt() & (1 << bitIndex)) != 0;
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return value != 0.0;
+    }
+
+    @Override
+    public int getInt() {
+        return (int) value;
+    }
+
+    @Override
+    public float getFloat() {
+        return (float) value;
+    }
+
+    @Override
+    public double getDouble() {
+        return value;
+    }
+
+    @Override
+    public void set(int bitIndex, boolean v) {
+        final int bits = getInt();
+        set(v ? bits | (1 << bitIndex) : bits & ~(1 << bitIndex));
+    }
+
+    @Override
+    public void set(boolean v) {
+        value = v ? 1.0 : 0.0;
+    }
+
+    @Override
+    public void set(int v) {
+        value = v;
+    }
+
+    @Override
+    public void set(float v) {
+        value = v;
+    }
+
+    @Override
+    public void set(double v) {
+        value = v;
+    }
+}
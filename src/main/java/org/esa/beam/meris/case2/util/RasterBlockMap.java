@@ -5,115 +5,372 @@ import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.datamodel.RasterDataNode;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
- * Description of RasterBlockMap
+ * Holds a block of scene lines for each of a set of rasters.
+ * <p/>
+ * The pixels of a raster can be accessed by the name of the raster or, without any lookup, by a handle.
+ * A handle is resolved once by {@link #getHandle(String)} and stays valid until {@link #clear()} is called.
+ * Floating point rasters are held as <code>float[]</code>, all others as <code>int[]</code>; the arrays
+ * of the current block are available by {@link #getFloatData(int)} and {@link #getIntData(int)}.
+ * <p/>
+ * The arrays are always sized for a full block. The last block of a raster may be shorter; only its first
+ * {@link #getActiveLineCount()} lines are read and written, the remaining lines hold the initial value.
+ * <p/>
+ * If an I/O executor is given, the I/O is overlapped with the processing: after a block has been read, the
+ * next block of every raster is read ahead in parallel, and {@link #writeBlock(int)} returns as soon as the
+ * writes of the block have been started. Each raster holds at most <code>maxBlocksInFlight</code> blocks
+ * being read or written besides the current block; further calls wait until a block is free again.
+ * The data arrays change with every block. All reads and writes of the map are serialised on its I/O lock, so
+ * the readers and writers of the products are never called concurrently by the map, but they are called from
+ * the threads of the executor. Maps sharing the readers or writers must share the I/O lock as well. Failed writes are reported by the following call of {@link #writeBlock(int)} or by
+ * {@link #flush()}.
  *
  * @author Marco Peters
  */
 public class RasterBlockMap {
 
-    private HashMap<String, RasterBlock> rasterBlockMap;
+    private final HashMap<String, Integer> handleMap;
+    private final List<RasterBlock> rasterBlocks;
+    private final ExecutorService ioExecutor;
+    private final int maxBlocksInFlight;
+    private final List<Future<?>> pendingWrites;
+    private final Object ioLock;
     private int linesPerBlock;
+    private int activeLineCount;
 
     public RasterBlockMap(int linesPerBlock) {
-        rasterBlockMap = new HashMap<String, RasterBlock>(12);
+        this(linesPerBlock, null, 0);
+    }
+
+    public RasterBlockMap(int linesPerBlock, ExecutorService ioExecutor, int maxBlocksInFlight) {
+        this(linesPerBlock, ioExecutor, maxBlocksInFlight, new Object());
+    }
+
+    /**
+     * @param linesPerBlock     the number of lines of a block
+     * @param ioExecutor        the executor performing the read-ahead and the write-behind, or {@code null}
+     *                          for synchronous I/O
+     * @param maxBlocksInFlight the maximum number of blocks of a raster being read or written in the background
+     * @param ioLock            the lock serialising the reads and writes, shared by all maps whose rasters belong
+     *                          to the same products
+     */
+    public RasterBlockMap(int linesPerBlock, ExecutorService ioExecutor, int maxBlocksInFlight, Object ioLock) {
+        if (ioExecutor != null && maxBlocksInFlight < 1) {
+            throw new IllegalArgumentException("maxBlocksInFlight < 1");
+        }
+        handleMap = new HashMap<String, Integer>(12);
+        rasterBlocks = new ArrayList<RasterBlock>(12);
+        pendingWrites = new ArrayList<Future<?>>();
+        this.ioLock = ioLock;
         this.linesPerBlock = linesPerBlock;
+        this.ioExecutor = ioExecutor;
+        this.maxBlocksInFlight = ioExecutor != null ? maxBlocksInFlight : 0;
     }
 
     public void addRaster(final RasterDataNode raster, final float initValue) {
         if (raster != null) {
-            rasterBlockMap.put(raster.getName(), new RasterBlock(raster, initValue, linesPerBlock));
+            putRasterBlock(raster.getName(), new RasterBlock(raster, initValue, linesPerBlock, maxBlocksInFlight,
+                                                             ioLock));
         }
     }
 
     public void addRaster(final RasterDataNode raster) {
         if (raster != null) {
-            rasterBlockMap.put(raster.getName(), new RasterBlock(raster, linesPerBlock));
+            putRasterBlock(raster.getName(), new RasterBlock(raster, linesPerBlock, maxBlocksInFlight, ioLock));
         }
     }
 
     public RasterDataNode getRaster(final String rasterName) {
-        if (rasterBlockMap.containsKey(rasterName)) {
-            return (rasterBlockMap.get(rasterName)).raster;
+        final Integer handle = handleMap.get(rasterName);
+        if (handle != null) {
+            return rasterBlocks.get(handle).raster;
         }
         return null;
     }
 
+    public boolean containsRaster(final String rasterName) {
+        return handleMap.containsKey(rasterName);
+    }
+
+    /**
+     * Resolves the name of a raster into a handle.
+     *
+     * @param rasterName the name of the raster
+     *
+     * @return the handle of the raster
+     *
+     * @throws IllegalArgumentException if the raster is unknown
+     */
+    public int getHandle(final String rasterName) {
+        final Integer handle = handleMap.get(rasterName);
+        if (handle == null) {
+            throw new IllegalArgumentException("the raster name '" + rasterName + "' is unknown");
+        }
+        return handle;
+    }
+
     public int getLinesPerBlock() {
         return linesPerBlock;
     }
 
-    public void clear() {
-        rasterBlockMap.clear();
+    /**
+     * @return the number of lines of the block read last, which is less than {@link #getLinesPerBlock()}
+     *         for the last block of a raster
+     */
+    public int getActiveLineCount() {
+        return activeLineCount;
+    }
+
+    /**
+     * @param handle the handle of a raster
+     *
+     * @return the number of lines of the current block of the raster
+     */
+    public int getActiveLineCount(final int handle) {
+        return rasterBlocks.get(handle).current.activeLines;
+    }
+
+    /**
+     * Removes all rasters. Reads ahead are abandoned, pending writes are completed first.
+     */
+    public void clear() throws IOException {
+        try {
+            flush();
+        } finally {
+            for (RasterBlock rasterBlock : rasterBlocks) {
+                rasterBlock.cancelReadAhead();
+            }
+            handleMap.clear();
+            rasterBlocks.clear();
+        }
     }
 
     public int readBlock(final int startIndex) throws IOException {
-        final Collection<RasterBlock> rasterLines = rasterBlockMap.values();
         int linesRead = 0;
-        for (RasterBlock rasterBlock : rasterLines) {
+        for (RasterBlock rasterBlock : rasterBlocks) {
             linesRead = rasterBlock.readBlock(startIndex);
         }
+        activeLineCount = linesRead;
+        if (ioExecutor != null) {
+            final int nextIndex = startIndex + linesPerBlock;
+            for (RasterBlock rasterBlock : rasterBlocks) {
+                rasterBlock.readAhead(nextIndex, ioExecutor);
+            }
+        }
         return linesRead;
     }
 
     public void writeBlock(final int startIndex) throws IOException {
-        final Collection<RasterBlock> rasterBlocks = rasterBlockMap.values();
+        if (ioExecutor == null) {
+            for (RasterBlock rasterBlock : rasterBlocks) {
+                rasterBlock.writeBlock(startIndex);
+            }
+            return;
+        }
+        checkPendingWrites(false);
         for (RasterBlock rasterBlock : rasterBlocks) {
-            rasterBlock.writeBlock(startIndex);
+            pendingWrites.add(rasterBlock.writeBehind(startIndex, ioExecutor));
+        }
+    }
+
+    /**
+     * Waits until all writes started by {@link #writeBlock(int)} are completed.
+     *
+     * @throws IOException if a write failed
+     */
+    public void flush() throws IOException {
+        checkPendingWrites(true);
+    }
+
+    private void checkPendingWrites(boolean wait) throws IOException {
+        IOException failure = null;
+        final Iterator<Future<?>> iterator = pendingWrites.iterator();
+        while (iterator.hasNext()) {
+            final Future<?> write = iterator.next();
+            if (wait || write.isDone()) {
+                try {
+                    await(write);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                iterator.remove();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for I/O");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @param handle the handle of a floating point raster
+     *
+     * @return the data of the current block, or {@code null} if the raster is not of floating point type
+     */
+    public float[] getFloatData(final int handle) {
+        return rasterBlocks.get(handle).floatData;
+    }
+
+    /**
+     * @param handle the handle of an integer raster
+     *
+     * @return the data of the current block, or {@code null} if the raster is of floating point type
+     */
+    public int[] getIntData(final int handle) {
+        return rasterBlocks.get(handle).intData;
+    }
+
+    public float getPixelFloat(final int handle, final int pixelIndex) {
+        final RasterBlock rasterBlock = rasterBlocks.get(handle);
+        if (rasterBlock.floatData != null) {
+            return rasterBlock.floatData[pixelIndex];
+        }
+        return rasterBlock.intData[pixelIndex];
+    }
+
+    public int getPixelInt(final int handle, final int pixelIndex) {
+        final RasterBlock rasterBlock = rasterBlocks.get(handle);
+        if (rasterBlock.intData != null) {
+            return rasterBlock.intData[pixelIndex];
+        }
+        return Math.round(rasterBlock.floatData[pixelIndex]);
+    }
+
+    public void setPixel(final int handle, final int pixelIndex, final double value) {
+        final RasterBlock rasterBlock = rasterBlocks.get(handle);
+        if (rasterBlock.floatData != null) {
+            rasterBlock.floatData[pixelIndex] = (float) value;
+        } else {
+            rasterBlock.intData[pixelIndex] = (int) Math.round(value);
+        }
+    }
+
+    public void setPixel(final int handle, final int pixelIndex, final int value) {
+        final RasterBlock rasterBlock = rasterBlocks.get(handle);
+        if (rasterBlock.intData != null) {
+            rasterBlock.intData[pixelIndex] = value;
+        } else {
+            rasterBlock.floatData[pixelIndex] = value;
         }
     }
 
     public float getPixelFloat(final String rasterName, final int pixelIndex) {
-        final RasterBlock rasterBlock = getRasterBlock(rasterName);
-        return rasterBlock.blockData.getElemFloatAt(pixelIndex);
+        return getPixelFloat(getHandle(rasterName), pixelIndex);
     }
 
     public int getPixelInt(final String rasterName, final int pixelIndex) {
-        final RasterBlock rasterBlock = getRasterBlock(rasterName);
-        return rasterBlock.blockData.getElemIntAt(pixelIndex);
+        return getPixelInt(getHandle(rasterName), pixelIndex);
     }
 
     public void setPixel(final String rasterName, final int pixelIndex, final double value) {
-        if (rasterBlockMap.containsKey(rasterName)) {
-            final RasterBlock rasterBlock = getRasterBlock(rasterName);
-            rasterBlock.blockData.setElemDoubleAt(pixelIndex, value);
+        final Integer handle = handleMap.get(rasterName);
+        if (handle != null) {
+            setPixel(handle.intValue(), pixelIndex, value);
         }
     }
 
     public void setPixel(final String rasterName, final int pixelIndex, final int value) {
-        if (rasterBlockMap.containsKey(rasterName)) {
-            final RasterBlock rasterBlock = getRasterBlock(rasterName);
-            rasterBlock.blockData.setElemIntAt(pixelIndex, value);
+        final Integer handle = handleMap.get(rasterName);
+        if (handle != null) {
+            setPixel(handle.intValue(), pixelIndex, value);
         }
     }
 
-    private RasterBlock getRasterBlock(final String rasterName) {
-        if (!rasterBlockMap.containsKey(rasterName)) {
-            throw new IllegalArgumentException("the raster name '" + rasterName + "' is unknown");
+    private void putRasterBlock(String rasterName, RasterBlock rasterBlock) {
+        final Integer handle = handleMap.get(rasterName);
+        if (handle != null) {
+            rasterBlocks.set(handle, rasterBlock);
+        } else {
+            handleMap.put(rasterName, rasterBlocks.size());
+            rasterBlocks.add(rasterBlock);
         }
-        return rasterBlockMap.get(rasterName);
     }
 
 
     private static class RasterBlock {
 
         private final RasterDataNode raster;
-        public ProductData blockData;
-        private int numLines;
+        private final int numLines;
+        private final BlockingQueue<BlockBuffer> freeBuffers;
+        private final Object ioLock;
+        private final ProductData shortBlockData;
+        private BlockBuffer current;
+        private float[] floatData;
+        private int[] intData;
         private float initialValue;
+        private boolean initialValueSet;
+        private BlockBuffer readAheadBuffer;
+        private Future<Integer> readAhead;
+        private int readAheadIndex;
 
         public RasterBlock(final RasterDataNode raster) {
-            this(raster, 1);
+            this(raster, 1, 0, new Object());
         }
 
-        public RasterBlock(final RasterDataNode raster, int numLines) {
+        public RasterBlock(final RasterDataNode raster, int numLines, int maxBlocksInFlight, Object ioLock) {
             this.raster = raster;
             this.numLines = numLines;
-            blockData = createBlockData(raster, numLines);
+            this.ioLock = ioLock;
+            setCurrent(new BlockBuffer(createBlockData(raster, numLines), numLines));
+            freeBuffers = new ArrayBlockingQueue<BlockBuffer>(Math.max(1, maxBlocksInFlight));
+            for (int i = 0; i < maxBlocksInFlight; i++) {
+                freeBuffers.add(new BlockBuffer(createBlockData(raster, numLines), numLines));
+            }
+            // the last block is shorter and written from an array of its size
+            final int shortLines = raster.getSceneRasterHeight() % numLines;
+            shortBlockData = shortLines != 0 ? ProductData.createInstance(raster.getDataType(),
+                                                                          raster.getSceneRasterWidth() * shortLines)
+                                             : null;
+        }
+
+        /**
+         * @return whether the data must be converted into the data type of the raster for writing
+         */
+        private boolean isConversionNeeded() {
+            final int blockType = raster.isFloatingPointType() ? ProductData.TYPE_FLOAT32 : ProductData.TYPE_INT32;
+            return raster.getDataType() != blockType;
+        }
+
+        private void copyElems(ProductData source, int sourcePos, ProductData target, int length) {
+            if (!isConversionNeeded()) {
+                System.arraycopy(source.getElems(), sourcePos, target.getElems(), 0, length);
+            } else if (raster.isFloatingPointType()) {
+                for (int i = 0; i < length; i++) {
+                    target.setElemFloatAt(i, source.getElemFloatAt(sourcePos + i));
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    target.setElemIntAt(i, source.getElemIntAt(sourcePos + i));
+                }
+            }
         }
 
         private ProductData createBlockData(RasterDataNode raster, int numLines) {
@@ -124,58 +381,197 @@ public class RasterBlockMap {
             }
         }
 
+        private void setCurrent(BlockBuffer buffer) {
+            current = buffer;
+            floatData = buffer.floatData;
+            intData = buffer.intData;
+        }
+
         public RasterBlock(final RasterDataNode raster, final float initialValue) {
-            this(raster, initialValue, 1);
+            this(raster, initialValue, 1, 0, new Object());
         }
 
-        public RasterBlock(final RasterDataNode raster, final float initialValue, int numLines) {
-            this(raster, numLines);
+        public RasterBlock(final RasterDataNode raster, final float initialValue, int numLines,
+                           int maxBlocksInFlight, Object ioLock) {
+            this(raster, numLines, maxBlocksInFlight, ioLock);
             this.initialValue = initialValue;
+            initialValueSet = true;
             initializeBlockData();
         }
 
         private void initializeBlockData() {
-            if (raster.isFloatingPointType()) {
-                final float[] data = (float[]) blockData.getElems();
-                Arrays.fill(data, initialValue);
+            if (floatData != null) {
+                Arrays.fill(floatData, initialValue);
             } else {
-                final int[] data = (int[]) blockData.getElems();
-                Arrays.fill(data, (int) initialValue);
+                Arrays.fill(intData, (int) initialValue);
             }
         }
 
         public int readBlock(final int startIndex) throws IOException {
-            return readSceneRasterBlock(startIndex);
+            if (readAhead != null) {
+                final BlockBuffer buffer = readAheadBuffer;
+                final Future<Integer> future = readAhead;
+                final boolean matches = readAheadIndex == startIndex;
+                readAhead = null;
+                readAheadBuffer = null;
+                try {
+                    await(future);
+                } catch (IOException e) {
+                    freeBuffers.add(buffer);
+                    if (matches) {
+                        throw e;
+                    }
+                    // the block read ahead is not needed
+                    return readSceneRasterBlock(current, startIndex);
+                }
+                if (matches) {
+                    freeBuffers.add(current);
+                    setCurrent(buffer);
+                    return buffer.activeLines;
+                }
+                freeBuffers.add(buffer);
+            }
+            return readSceneRasterBlock(current, startIndex);
+        }
+
+        /**
+         * Starts reading the block at the given line in the background, unless it is beyond the raster.
+         */
+        private void readAhead(final int startIndex, ExecutorService ioExecutor) throws IOException {
+            if (startIndex >= raster.getSceneRasterHeight()) {
+                return;
+            }
+            final BlockBuffer buffer = takeFreeBuffer();
+            readAheadBuffer = buffer;
+            readAheadIndex = startIndex;
+            readAhead = ioExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return readSceneRasterBlock(buffer, startIndex);
+                }
+            });
+        }
+
+        private void cancelReadAhead() {
+            if (readAhead != null) {
+                readAhead.cancel(false);
+                readAhead = null;
+                readAheadBuffer = null;
+            }
         }
 
         public void writeBlock(final int startIndex) throws IOException {
-            int linesRemaining = raster.getSceneRasterHeight() - startIndex;
-            int linesToWrite = Math.min(numLines, linesRemaining);
-            if (linesToWrite < numLines) {
-                ProductData newBlock = createBlockData(raster, linesToWrite);
-                System.arraycopy(blockData.getElems(), 0, newBlock.getElems(), 0, newBlock.getNumElems());
-                blockData = newBlock;
-            }
-            raster.writeRasterData(0, startIndex,
-                                   raster.getSceneRasterWidth(), linesToWrite,
-                                   blockData, ProgressMonitor.NULL);
-        }
-
-        private int readSceneRasterBlock(final int startIndex) throws IOException {
-            int linesRemaining = raster.getSceneRasterHeight() - startIndex;
-            int linesToRead = Math.min(numLines, linesRemaining);
-            if (linesToRead < numLines) {
-                createBlockData(raster, linesToRead);
+            writeSceneRasterBlock(current, startIndex);
+        }
+
+        /**
+         * Starts writing the current block in the background and continues with a free buffer, which is
+         * initialised with the initial value, if any.
+         */
+        private Future<?> writeBehind(final int startIndex, ExecutorService ioExecutor) throws IOException {
+            final BlockBuffer buffer = current;
+            final BlockingQueue<BlockBuffer> free = freeBuffers;
+            final Future<?> write = ioExecutor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    try {
+                        writeSceneRasterBlock(buffer, startIndex);
+                    } finally {
+                        free.add(buffer);
+                    }
+                    return null;
+                }
+            });
+            setCurrent(takeFreeBuffer());
+            if (initialValueSet) {
                 initializeBlockData();
             }
-            if (raster.isFloatingPointType()) {
-                raster.readPixels(0, startIndex, raster.getSceneRasterWidth(), linesToRead,
-                                  (float[]) blockData.getElems(), ProgressMonitor.NULL);
+            return write;
+        }
+
+        private BlockBuffer takeFreeBuffer() throws IOException {
+            try {
+                return freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free block");
+            }
+        }
+
+        private int getActiveLines(int startIndex) {
+            return Math.max(0, Math.min(numLines, raster.getSceneRasterHeight() - startIndex));
+        }
+
+        private void writeSceneRasterBlock(BlockBuffer buffer, final int startIndex) throws IOException {
+            final int linesToWrite = getActiveLines(startIndex);
+            final int width = raster.getSceneRasterWidth();
+            buffer.activeLines = linesToWrite;
+            if (linesToWrite == numLines) {
+                ProductData writeData = buffer.data;
+                if (isConversionNeeded()) {
+                    if (buffer.writeData == null) {
+                        buffer.writeData = ProductData.createInstance(raster.getDataType(), width * numLines);
+                    }
+                    copyElems(buffer.data, 0, buffer.writeData, width * numLines);
+                    writeData = buffer.writeData;
+                }
+                synchronized (ioLock) {
+                    raster.writeRasterData(0, startIndex, width, linesToWrite, writeData, ProgressMonitor.NULL);
+                }
+                return;
+            }
+            if (linesToWrite == 0) {
+                return;
+            }
+            ProductData writeData = shortBlockData;
+            if (writeData == null || writeData.getNumElems() != width * linesToWrite) {
+                // a block not starting at a multiple of the block size
+                writeData = ProductData.createInstance(raster.getDataType(), width * linesToWrite);
+            }
+            synchronized (ioLock) {
+                copyElems(buffer.data, 0, writeData, width * linesToWrite);
+                raster.writeRasterData(0, startIndex, width, linesToWrite, writeData, ProgressMonitor.NULL);
+            }
+        }
+
+        private int readSceneRasterBlock(BlockBuffer buffer, final int startIndex) throws IOException {
+            final int linesToRead = getActiveLines(startIndex);
+            final int width = raster.getSceneRasterWidth();
+            if (buffer.floatData != null) {
+                synchronized (ioLock) {
+                    raster.readPixels(0, startIndex, width, linesToRead, buffer.floatData, ProgressMonitor.NULL);
+                }
+                if (linesToRead < numLines) {
+                    Arrays.fill(buffer.floatData, linesToRead * width, buffer.floatData.length, initialValue);
+                }
             } else {
-                raster.readPixels(0, startIndex, raster.getSceneRasterWidth(), linesToRead,
-                                  (int[]) blockData.getElems(), ProgressMonitor.NULL);
+                synchronized (ioLock) {
+                    raster.readPixels(0, startIndex, width, linesToRead, buffer.intData, ProgressMonitor.NULL);
+                }
+                if (linesToRead < numLines) {
+                    Arrays.fill(buffer.intData, linesToRead * width, buffer.intData.length, (int) initialValue);
+                }
             }
+            buffer.activeLines = linesToRead;
             return linesToRead;
         }
     }
+
+    private static class BlockBuffer {
+
+        private final ProductData data;
+        private final float[] floatData;
+        private final int[] intData;
+        private int activeLines;
+        // the data converted into the data type of the raster, created on first write if needed
+        private ProductData writeData;
+
+        private BlockBuffer(ProductData data, int activeLines) {
+            this.data = data;
+            this.activeLines = activeLines;
+            final Object elems = data.getElems();
+            floatData = elems instanceof float[] ? (float[]) elems : null;
+            intData = elems instanceof int[] ? (int[]) elems : null;
+        }
+    }
 }
@@ -0,0 +1,267 @@
+package org.esa.beam.meris.case2.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with a fixed number of bins which can be accumulated concurrently without locking, see
+ * {@link StripedCounters}. Besides the bins it holds the exact count, mean, minimum and maximum.
+ * <p/>
+ * The bins are of equal width on a linear or a logarithmic scale. With logarithmic bins the histogram is a
+ * mergeable quantile sketch of bounded relative error: the quantiles are interpolated within a bin, so their
+ * error is less than the ratio of the bounds of a bin. Values outside of the range of the bins are counted
+ * as underflow or overflow; quantiles falling there are given as the minimum or maximum. NaN values are
+ * ignored, and so are values not greater than zero on a logarithmic scale.
+ *
+ * @author agent
+ */
+public final class StreamingHistogram {
+
+    private static final int SUM = 0;
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+
+    private final double min;
+    private final double max;
+    private final int binCount;
+    private final boolean logScaled;
+    private final double lowerBound;
+    private final double binWidth;
+    // bin 0 is the underflow, bin binCount + 1 the overflow
+    private final StripedCounters bins;
+    private final AtomicLongArray[] moments;
+    private final int stripeMask;
+
+    /**
+     * @param min       the lower bound of the first bin
+     * @param max       the upper bound of the last bin
+     * @param binCount  the number of bins
+     * @param logScaled whether the bins are of equal width on a logarithmic scale
+     */
+    public StreamingHistogram(double min, double max, int binCount, boolean logScaled) {
+        if (!(min < max) || binCount < 1 || (logScaled && min <= 0.0)) {
+            throw new IllegalArgumentException("!(min < max) || binCount < 1 || (logScaled && min <= 0.0)");
+        }
+        this.min = min;
+        this.max = max;
+        this.binCount = binCount;
+        this.logScaled = logScaled;
+        lowerBound = scale(min);
+        binWidth = (scale(max) - lowerBound) / binCount;
+        bins = new StripedCounters(binCount + 2);
+        moments = new AtomicLongArray[StripedCounters.getStripeCount()];
+        for (int i = 0; i < moments.length; i++) {
+            moments[i] = new AtomicLongArray(3);
+            moments[i].set(MIN, Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+            moments[i].set(MAX, Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+        }
+        stripeMask = moments.length - 1;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    public boolean isLogScaled() {
+        return logScaled;
+    }
+
+    /**
+     * Adds values to the histogram. The values are binned locally and added at once.
+     *
+     * @param values the values
+     * @param length the number of values to add, starting at the first
+     */
+    public void accumulate(float[] values, int length) {
+        final long[] counts = new long[binCount + 2];
+        double sum = 0.0;
+        double localMin = Double.POSITIVE_INFINITY;
+        double localMax = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            final double value = values[i];
+            if (Double.isNaN(value) || (logScaled && value <= 0.0)) {
+                continue;
+            }
+            counts[getBinIndex(value)]++;
+            sum += value;
+            localMin = Math.min(localMin, value);
+            localMax = Math.max(localMax, value);
+            count++;
+        }
+        if (count > 0) {
+            bins.addAll(counts);
+            addMoments(sum, localMin, localMax);
+        }
+    }
+
+    /**
+     * Adds the values of another histogram with the same bins.
+     *
+     * @param other the histogram to merge
+     */
+    public void merge(StreamingHistogram other) {
+        if (other.min != min || other.max != max || other.binCount != binCount || other.logScaled != logScaled) {
+            throw new IllegalArgumentException("Histograms have different bins.");
+        }
+        if (other.getCount() > 0) {
+            bins.merge(other.bins);
+            addMoments(other.getSum(), other.getMinimum(), other.getMaximum());
+        }
+    }
+
+    /**
+     * @return the number of values, including underflow and overflow
+     */
+    public long getCount() {
+        long count = 0;
+        for (long binValue : bins.getAll()) {
+            count += binValue;
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean of the values, or NaN if there are none
+     */
+    public double getMean() {
+        final long count = getCount();
+        return count > 0 ? getSum() / count : Double.NaN;
+    }
+
+    /**
+     * @return the minimum of the values, or NaN if there are none
+     */
+    public double getMinimum() {
+        double minimum = Double.POSITIVE_INFINITY;
+        for (AtomicLongArray stripe : moments) {
+            minimum = Math.min(minimum, Double.longBitsToDouble(stripe.get(MIN)));
+        }
+        return minimum == Double.POSITIVE_INFINITY ? Double.NaN : minimum;
+    }
+
+    /**
+     * @return the maximum of the values, or NaN if there are none
+     */
+    public double getMaximum() {
+        double maximum = Double.NEGATIVE_INFINITY;
+        for (AtomicLongArray stripe : moments) {
+            maximum = Math.max(maximum, Double.longBitsToDouble(stripe.get(MAX)));
+        }
+        return maximum == Double.NEGATIVE_INFINITY ? Double.NaN : maximum;
+    }
+
+    /**
+     * @return the counts of the bins, without underflow and overflow
+     */
+    public long[] getBinCounts() {
+        final long[] counts = new long[binCount];
+        System.arraycopy(bins.getAll(), 1, counts, 0, binCount);
+        return counts;
+    }
+
+    public long getUnderflowCount() {
+        return bins.get(0);
+    }
+
+    public long getOverflowCount() {
+        return bins.get(binCount + 1);
+    }
+
+    /**
+     * @param binIndex the index of the bin, or {@link #getBinCount()} for the upper bound of the last bin
+     *
+     * @return the lower bound of the bin
+     */
+    public double getBinLowerBound(int binIndex) {
+        return unscale(lowerBound + binIndex * binWidth);
+    }
+
+    /**
+     * @param p the probability, from 0 to 1
+     *
+     * @return the quantile of the values, or NaN if there are none
+     */
+    public double getQuantile(double p) {
+        final long[] counts = bins.getAll();
+        long count = 0;
+        for (long binValue : counts) {
+            count += binValue;
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final double rank = p * count;
+        double cumulated = counts[0];
+        if (rank <= cumulated) {
+            return getMinimum();
+        }
+        for (int i = 1; i <= binCount; i++) {
+            if (counts[i] > 0 && rank <= cumulated + counts[i]) {
+                final double fraction = (rank - cumulated) / counts[i];
+                final double value = unscale(lowerBound + (i - 1 + fraction) * binWidth);
+                return Math.max(getMinimum(), Math.min(getMaximum(), value));
+            }
+            cumulated += counts[i];
+        }
+        return getMaximum();
+    }
+
+    private double getSum() {
+        double sum = 0.0;
+        for (AtomicLongArray stripe : moments) {
+            sum += Double.longBitsToDouble(stripe.get(SUM));
+        }
+        return sum;
+    }
+
+    private int getBinIndex(double value) {
+        final double binPosition = (scale(value) - lowerBound) / binWidth;
+        if (binPosition < 0.0) {
+            return 0;
+        }
+        if (binPosition >= binCount) {
+            return binCount + 1;
+        }
+        return (int) binPosition + 1;
+    }
+
+    private void addMoments(double sum, double minimum, double maximum) {
+        final AtomicLongArray stripe = moments[StripedCounters.getStripeIndex(stripeMask)];
+        while (true) {
+            final long bits = stripe.get(SUM);
+            if (stripe.compareAndSet(SUM, bits, Double.doubleToLongBits(Double.longBitsToDouble(bits) + sum))) {
+                break;
+            }
+        }
+        while (true) {
+            final long bits = stripe.get(MIN);
+            if (Double.longBitsToDouble(bits) <= minimum ||
+                stripe.compareAndSet(MIN, bits, Double.doubleToLongBits(minimum))) {
+                break;
+            }
+        }
+        while (true) {
+            final long bits = stripe.get(MAX);
+            if (Double.longBitsToDouble(bits) >= maximum ||
+                stripe.compareAndSet(MAX, bits, Double.doubleToLongBits(maximum))) {
+                break;
+            }
+        }
+    }
+
+    private double scale(double value) {
+        return logScaled ? Math.log(value) : value;
+    }
+
+    private double unscale(double value) {
+        return logScaled ? Math.exp(value) : value;
+    }
+}
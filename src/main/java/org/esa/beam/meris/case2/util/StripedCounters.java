@@ -0,0 +1,114 @@
+package org.esa.beam.meris.case2.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters which can be incremented concurrently without locking.
+ * <p/>
+ * The counters are held in several stripes, and a thread adds to the stripe selected by its id, so threads
+ * rarely update the same array. The totals are the sums over all stripes. Counters can be merged, e.g. the
+ * counters of several products.
+ *
+ * @author agent
+ */
+public final class StripedCounters {
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final int size;
+
+    /**
+     * @param size the number of counters
+     */
+    public StripedCounters(int size) {
+        this.size = size;
+        final int stripeCount = getStripeCount();
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(size);
+        }
+        stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * @return the number of stripes, a power of two of at least twice the number of processors
+     */
+    static int getStripeCount() {
+        final int processorCount = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, 2 * processorCount - 1)) << 1;
+    }
+
+    /**
+     * @param stripeMask the number of stripes minus one
+     *
+     * @return the index of the stripe of the current thread
+     */
+    static int getStripeIndex(int stripeMask) {
+        return (int) Thread.currentThread().getId() & stripeMask;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param index the index of the counter
+     * @param delta the value to add
+     */
+    public void add(int index, long delta) {
+        stripes[getStripeIndex(stripeMask)].addAndGet(index, delta);
+    }
+
+    /**
+     * Adds the values to the counters, skipping zeros. Threads should count locally, e.g. for a tile, and
+     * add the result at once.
+     *
+     * @param deltas the values to add, indexed by counter
+     */
+    public void addAll(long[] deltas) {
+        final AtomicLongArray stripe = stripes[getStripeIndex(stripeMask)];
+        for (int i = 0; i < size; i++) {
+            if (deltas[i] != 0) {
+                stripe.addAndGet(i, deltas[i]);
+            }
+        }
+    }
+
+    /**
+     * @param index the index of the counter
+     *
+     * @return the total of the counter
+     */
+    public long get(int index) {
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            total += stripe.get(index);
+        }
+        return total;
+    }
+
+    /**
+     * @return the totals of all counters
+     */
+    public long[] getAll() {
+        final long[] totals = new long[size];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < size; i++) {
+                totals[i] += stripe.get(i);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Adds the totals of other counters of the same size.
+     *
+     * @param other the counters to merge
+     */
+    public void merge(StripedCounters other) {
+        if (other.size != size) {
+            throw new IllegalArgumentException("other.size != size");
+        }
+        addAll(other.getAll());
+    }
+}
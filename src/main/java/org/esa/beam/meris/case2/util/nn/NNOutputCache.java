@@ -0,0 +1,124 @@
+package org.esa.beam.meris.case2.util.nn;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded memo cache for the outputs of a neural net, keyed by quantised inputs.
+ * <p/>
+ * Each input is quantised into bins of the width <code>precision * (inmax - inmin)</code>, where
+ * <code>inmin</code> and <code>inmax</code> are the training range limits of the net. The net is evaluated
+ * at the centre of the bin, so the result does not depend on the order in which pixels are processed.
+ * Bins at the limits of the training range are clipped to it.
+ * The input of the net therefore deviates by at most half the bin width per input, and to first order the
+ * error of output <code>j</code> is bounded by
+ * <code>sum_i |d out_j / d in_i| * precision * (inmax_i - inmin_i) / 2</code>. The bound grows linearly with
+ * the precision and with the steepness of the net; it has to be checked for each net and precision, there is
+ * no precision which is safe for every net. Inputs which are NaN or infinite are never cached.
+ * <p/>
+ * When the cache is full, the least recently used entry is evicted. Instances are not thread-safe and
+ * are intended to be used per thread, as the nets are.
+ *
+ * @author agent
+ */
+public class NNOutputCache {
+
+    private final int maxSize;
+    private final double precision;
+    private final Map<Key, double[]> cache;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxSize   the maximum number of entries
+     * @param precision the quantisation step relative to the input range of the net
+     */
+    public NNOutputCache(final int maxSize, double precision) {
+        this.maxSize = maxSize;
+        this.precision = precision;
+        cache = new LinkedHashMap<Key, double[]>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                return size() > NNOutputCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the output of the net for the given input, either from the cache or by evaluating the net
+     * at the centre of the quantisation bin of the input.
+     *
+     * @param net   the neural net
+     * @param input the input of the net, must already be clipped to the training range
+     *
+     * @return the output of the net; the array may be modified by the caller
+     */
+    public double[] calc(NNffbpAlphaTabFast net, double[] input) {
+        final double[] inmin = net.getInmin();
+        final double[] inmax = net.getInmax();
+        final long[] bins = new long[input.length];
+        for (int i = 0; i < input.length; i++) {
+            if (Double.isNaN(input[i]) || Double.isInfinite(input[i])) {
+                missCount++;
+                return net.calc(input).clone();
+            }
+            bins[i] = Math.round((input[i] - inmin[i]) / getBinWidth(inmin[i], inmax[i]));
+        }
+        final Key key = new Key(bins);
+        double[] output = cache.get(key);
+        if (output != null) {
+            hitCount++;
+        } else {
+            missCount++;
+            final double[] binCentre = new double[input.length];
+            for (int i = 0; i < input.length; i++) {
+                final double value = inmin[i] + bins[i] * getBinWidth(inmin[i], inmax[i]);
+                binCentre[i] = Math.min(inmax[i], Math.max(inmin[i], value));
+            }
+            output = net.calc(binCentre).clone();
+            cache.put(key, output);
+        }
+        return output.clone();
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private double getBinWidth(double min, double max) {
+        final double range = max - min;
+        return range > 0.0 ? precision * range : precision;
+    }
+
+    private static final class Key {
+
+        private final long[] bins;
+        private final int hashCode;
+
+        private Key(long[] bins) {
+            this.bins = bins;
+            hashCode = Arrays.hashCode(bins);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && Arrays.equals(bins, ((Key) o).bins);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package org.esa.beam.meris.case2.water;
 
-import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.meris.case2.algorithm.KMin;
 
+import java.util.Arrays;
+
 
 public class EutrophicWater extends WaterAlgorithm {
 
@@ -22,11 +23,19 @@ public class EutrophicWater extends WaterAlgorithm {
     }
 
     @Override
-    protected KMin createKMin(WritableSample[] targetSamples) {
-        final double bTsm = targetSamples[TARGET_BB_SPM_INDEX].getDouble() / BTSM_TO_SPM_FACTOR;
-        final double aPig = targetSamples[TARGET_A_PIGMENT_INDEX].getDouble();
-        final double aGelbstoff = targetSamples[TARGET_A_GELBSTOFF_INDEX].getDouble();
-        final double aBtsm = targetSamples[TARGET_A_BTSM_INDEX].getDouble();
+    public int[] getTargetIndexes() {
+        final int[] indexes = super.getTargetIndexes();
+        final int[] eutrophicIndexes = Arrays.copyOf(indexes, indexes.length + 1);
+        eutrophicIndexes[indexes.length] = TARGET_A_BTSM_INDEX;
+        return eutrophicIndexes;
+    }
+
+    @Override
+    protected KMin createKMin(double[] targetValues) {
+        final double bTsm = targetValues[TARGET_BB_SPM_INDEX] / BTSM_TO_SPM_FACTOR;
+        final double aPig = targetValues[TARGET_A_PIGMENT_INDEX];
+        final double aGelbstoff = targetValues[TARGET_A_GELBSTOFF_INDEX];
+        final double aBtsm = targetValues[TARGET_A_BTSM_INDEX];
 
         final KMin kMin = new KMin(bTsm, aPig, aGelbstoff, aBtsm);
         kMin.setA_gelb_mer8(new double[]{
@@ -64,23 +73,23 @@ public class EutrophicWater extends WaterAlgorithm {
     }
 
     @Override
-    protected void fillTargetSamples(double[] waterOutnet, WritableSample[] targetSamples) {
+    protected void fillTargetValues(double[] waterOutnet, double[] targetValues) {
         double bTsm = Math.exp(waterOutnet[3]);
-        targetSamples[TARGET_BB_SPM_INDEX].set(bTsm * BTSM_TO_SPM_FACTOR);
-        targetSamples[TARGET_TSM_INDEX].set(Math.exp(Math.log(tsmFactor) + waterOutnet[3] * tsmExponent));
+        targetValues[TARGET_BB_SPM_INDEX] = bTsm * BTSM_TO_SPM_FACTOR;
+        targetValues[TARGET_TSM_INDEX] = Math.exp(Math.log(tsmFactor) + waterOutnet[3] * tsmExponent);
 
         double aPig = Math.exp(waterOutnet[2]) * chlFactor;
-        targetSamples[TARGET_A_PIGMENT_INDEX].set(aPig);
-//        targetSamples[TARGET_CHL_CONC_INDEX].set(Math.exp(Math.log(chlFactor) + waterOutnet[2] * chlExponent));
-        targetSamples[TARGET_CHL_CONC_INDEX].set(Math.exp(Math.log(1.0) + waterOutnet[2] * chlExponent));
+        targetValues[TARGET_A_PIGMENT_INDEX] = aPig;
+//        targetValues[TARGET_CHL_CONC_INDEX] = Math.exp(Math.log(chlFactor) + waterOutnet[2] * chlExponent);
+        targetValues[TARGET_CHL_CONC_INDEX] = Math.exp(Math.log(1.0) + waterOutnet[2] * chlExponent);
 
         double aGelbstoff = Math.exp(waterOutnet[0]);
-        targetSamples[TARGET_A_GELBSTOFF_INDEX].set(aGelbstoff);
-        targetSamples[TARGET_A_TOTAL_INDEX].set(aPig + aGelbstoff);
+        targetValues[TARGET_A_GELBSTOFF_INDEX] = aGelbstoff;
+        targetValues[TARGET_A_TOTAL_INDEX] = aPig + aGelbstoff;
 
         double aBtsm = Math.exp(waterOutnet[1]);
-        targetSamples[TARGET_A_BTSM_INDEX].set(bTsm); // bleached suspended matter absorption at 442
-        targetSamples[TARGET_A_TOTAL_INDEX].set(aPig + aGelbstoff + aBtsm);
+        targetValues[TARGET_A_BTSM_INDEX] = bTsm; // bleached suspended matter absorption at 442
+        targetValues[TARGET_A_TOTAL_INDEX] = aPig + aGelbstoff + aBtsm;
     }
 
     @Override
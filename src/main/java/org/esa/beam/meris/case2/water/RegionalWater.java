@@ -1,6 +1,5 @@
 package org.esa.beam.meris.case2.water;
 
-import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.meris.case2.algorithm.KMin;
 
 
@@ -21,10 +20,10 @@ public class RegionalWater extends WaterAlgorithm {
     }
 
     @Override
-    protected KMin createKMin(WritableSample[] targetSamples) {
-        final double bTsm = targetSamples[TARGET_BB_SPM_INDEX].getDouble() / BTSM_TO_SPM_FACTOR;
-        final double aPig = targetSamples[TARGET_A_PIGMENT_INDEX].getDouble();
-        final double aGelbstoff = targetSamples[TARGET_A_GELBSTOFF_INDEX].getDouble();
+    protected KMin createKMin(double[] targetValues) {
+        final double bTsm = targetValues[TARGET_BB_SPM_INDEX] / BTSM_TO_SPM_FACTOR;
+        final double aPig = targetValues[TARGET_A_PIGMENT_INDEX];
+        final double aGelbstoff = targetValues[TARGET_A_GELBSTOFF_INDEX];
         return new KMin(bTsm, aPig, aGelbstoff);
     }
 
@@ -55,18 +54,18 @@ public class RegionalWater extends WaterAlgorithm {
     }
 
     @Override
-    protected void fillTargetSamples(double[] waterOutnet, WritableSample[] targetSamples) {
+    protected void fillTargetValues(double[] waterOutnet, double[] targetValues) {
         double bTsm = Math.exp(waterOutnet[0]);
-        targetSamples[TARGET_BB_SPM_INDEX].set(bTsm * BTSM_TO_SPM_FACTOR);
-        targetSamples[TARGET_TSM_INDEX].set(Math.exp(Math.log(tsmFactor) + waterOutnet[0] * tsmExponent));
+        targetValues[TARGET_BB_SPM_INDEX] = bTsm * BTSM_TO_SPM_FACTOR;
+        targetValues[TARGET_TSM_INDEX] = Math.exp(Math.log(tsmFactor) + waterOutnet[0] * tsmExponent);
 
         double aPig = Math.exp(waterOutnet[1]);
-        targetSamples[TARGET_A_PIGMENT_INDEX].set(aPig);
-        targetSamples[TARGET_CHL_CONC_INDEX].set(Math.exp(Math.log(chlFactor) + waterOutnet[1] * chlExponent));
+        targetValues[TARGET_A_PIGMENT_INDEX] = aPig;
+        targetValues[TARGET_CHL_CONC_INDEX] = Math.exp(Math.log(chlFactor) + waterOutnet[1] * chlExponent);
 
         double aGelbstoff = Math.exp(waterOutnet[2]);
-        targetSamples[TARGET_A_GELBSTOFF_INDEX].set(aGelbstoff);
-        targetSamples[TARGET_A_TOTAL_INDEX].set(aPig + aGelbstoff);
+        targetValues[TARGET_A_GELBSTOFF_INDEX] = aGelbstoff;
+        targetValues[TARGET_A_TOTAL_INDEX] = aPig + aGelbstoff;
     }
 
     @Override
@@ -4,6 +4,7 @@ import org.esa.beam.atmosphere.operator.ReflectanceEnum;
 import org.esa.beam.framework.gpf.pointop.Sample;
 import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.meris.case2.algorithm.KMin;
+import org.esa.beam.meris.case2.util.nn.NNOutputCache;
 import org.esa.beam.nn.NNffbpAlphaTabFast;
 
 public abstract class WaterAlgorithm {
@@ -51,14 +52,23 @@ public abstract class WaterAlgorithm {
     public static final int TARGET_CHI_SQUARE_FIT_INDEX = 24;
     public static final int TARGET_N_ITER_FIT_INDEX = 25;
     public static final int TARGET_PARAM_CHANGE_FIT_INDEX = 26;
+    public static final int TARGET_COUNT = TARGET_PARAM_CHANGE_FIT_INDEX + 1;
 
     public static final int WLR_OOR_BIT_INDEX = 0;
     public static final int CONC_OOR_BIT_INDEX = 1;
     public static final int OOTR_BIT_INDEX = 2;
     public static final int WHITECAPS_BIT_INDEX = 3;
     public static final int FIT_FAILED_INDEX = 4;
+    public static final int INTERPOLATED_BIT_INDEX = 5;
+    public static final int REFINED_BIT_INDEX = 6;
     public static final int INVALID_BIT_INDEX = 7;
 
+    private static final int[] TARGET_INDEXES = {
+            TARGET_A_GELBSTOFF_INDEX, TARGET_A_PIGMENT_INDEX, TARGET_A_TOTAL_INDEX, TARGET_BB_SPM_INDEX,
+            TARGET_TSM_INDEX, TARGET_CHL_CONC_INDEX, TARGET_CHI_SQUARE_INDEX, TARGET_K_MIN_INDEX,
+            TARGET_Z90_MAX_INDEX, TARGET_KD_490_INDEX, TARGET_TURBIDITY_INDEX_INDEX
+    };
+
     private static final double RLW620_MAX = 0.03823;
     private static final double TURBIDITY_AT = 174.41;
     private static final double TURBIDITY_BT = 0.39;
@@ -75,17 +85,53 @@ public abstract class WaterAlgorithm {
     public double[] perform(NNffbpAlphaTabFast backwardWaterNet, NNffbpAlphaTabFast forwardWaterNet,
                             double solzen, double satzen, double azi_diff_deg, Sample[] sourceSamples,
                             WritableSample[] targetSamples, ReflectanceEnum inputReflecAre) {
+        return perform(backwardWaterNet, forwardWaterNet, solzen, satzen, azi_diff_deg, sourceSamples,
+                       targetSamples, inputReflecAre, null);
+    }
+
+    /**
+     * Performs the retrieval for a single pixel.
+     *
+     * @param backwardWaterCache an optional cache of the outputs of the backward water net, may be {@code null}
+     *
+     * @return the logarithm of the water leaving reflectances
+     *
+     * @see NNOutputCache
+     */
+    public double[] perform(NNffbpAlphaTabFast backwardWaterNet, NNffbpAlphaTabFast forwardWaterNet,
+                            double solzen, double satzen, double azi_diff_deg, Sample[] sourceSamples,
+                            WritableSample[] targetSamples, ReflectanceEnum inputReflecAre,
+                            NNOutputCache backwardWaterCache) {
+        final double[] reflec = new double[9];
+        for (int i = 0; i < reflec.length; i++) {
+            reflec[i] = sourceSamples[SOURCE_REFLEC_1_INDEX + i].getDouble();
+        }
+        final double[] targetValues = new double[TARGET_COUNT];
+        final double[] logRLw = perform(backwardWaterNet, forwardWaterNet, solzen, satzen, azi_diff_deg, reflec,
+                                        targetValues, inputReflecAre, backwardWaterCache);
+        for (int index : getTargetIndexes()) {
+            targetSamples[index].set(targetValues[index]);
+        }
+        setFlags(targetSamples[TARGET_FLAG_INDEX], (int) targetValues[TARGET_FLAG_INDEX]);
+        return logRLw;
+    }
+
+    /**
+     * Performs the retrieval for a single pixel on primitive values.
+     *
+     * @param reflec             the nine reflectances
+     * @param targetValues       the target values, indexed by the target sample index; the flags are
+     *                           combined with the flags at {@link #TARGET_FLAG_INDEX}
+     * @param backwardWaterCache an optional cache of the outputs of the backward water net, may be {@code null}
+     *
+     * @return the logarithm of the water leaving reflectances
+     */
+    public double[] perform(NNffbpAlphaTabFast backwardWaterNet, NNffbpAlphaTabFast forwardWaterNet,
+                            double solzen, double satzen, double azi_diff_deg, double[] reflec,
+                            double[] targetValues, ReflectanceEnum inputReflecAre,
+                            NNOutputCache backwardWaterCache) {
         // test RLw against lowest or cut value in NN and set in lower
-        double[] RLw = new double[9];
-        RLw[0] = sourceSamples[SOURCE_REFLEC_1_INDEX].getDouble();
-        RLw[1] = sourceSamples[SOURCE_REFLEC_2_INDEX].getDouble();
-        RLw[2] = sourceSamples[SOURCE_REFLEC_3_INDEX].getDouble();
-        RLw[3] = sourceSamples[SOURCE_REFLEC_4_INDEX].getDouble();
-        RLw[4] = sourceSamples[SOURCE_REFLEC_5_INDEX].getDouble();
-        RLw[5] = sourceSamples[SOURCE_REFLEC_6_INDEX].getDouble();
-        RLw[6] = sourceSamples[SOURCE_REFLEC_7_INDEX].getDouble();
-        RLw[7] = sourceSamples[SOURCE_REFLEC_8_INDEX].getDouble();
-        RLw[8] = sourceSamples[SOURCE_REFLEC_9_INDEX].getDouble();
+        double[] RLw = reflec.clone();
         if (ReflectanceEnum.IRRADIANCE_REFLECTANCES.equals(inputReflecAre)) {
             for (int i = 0; i < RLw.length; i++) {
                 RLw[i] /= Math.PI;
@@ -102,17 +148,22 @@ public abstract class WaterAlgorithm {
         // test if water leaving radiance reflectance are within training range,
         // otherwise set to training range
         if (isLogRLwOutOfRange(backwardWaterInput, backwardWaterNet)) {
-            targetSamples[TARGET_FLAG_INDEX].set(WLR_OOR_BIT_INDEX, true);
+            setFlag(targetValues, WLR_OOR_BIT_INDEX);
         }
 
         /* calculate concentrations using the water nn */
-        double[] backwardWaterOutput = backwardWaterNet.calc(backwardWaterInput);
+        double[] backwardWaterOutput;
+        if (backwardWaterCache != null) {
+            backwardWaterOutput = backwardWaterCache.calc(backwardWaterNet, backwardWaterInput);
+        } else {
+            backwardWaterOutput = backwardWaterNet.calc(backwardWaterInput);
+        }
 
-        fillTargetSamples(backwardWaterOutput, targetSamples);
+        fillTargetValues(backwardWaterOutput, targetValues);
 
         /* test if concentrations are within training range */
         if (isWaterConcentrationOOR(backwardWaterOutput, backwardWaterNet)) {
-            targetSamples[TARGET_FLAG_INDEX].set(CONC_OOR_BIT_INDEX, true);
+            setFlag(targetValues, CONC_OOR_BIT_INDEX);
         }
 
         /* do forward NN computation */
@@ -122,23 +173,64 @@ public abstract class WaterAlgorithm {
         /* compute chi square deviation on log scale between measured and computed spectrum */
         double chiSquare = computeChiSquare(forwardWaterOutput, logRLw);
 
-        targetSamples[TARGET_CHI_SQUARE_INDEX].set(chiSquare);
+        targetValues[TARGET_CHI_SQUARE_INDEX] = chiSquare;
 
         if (chiSquare > spectrumOutOfScopeThreshold) {
-            targetSamples[TARGET_FLAG_INDEX].set(OOTR_BIT_INDEX, true);
+            setFlag(targetValues, OOTR_BIT_INDEX);
         }
+        computeAttenuation(targetValues);
+
+        final double turbidity = computeTurbidityIndex(RLw[5]);// parameter Rlw at 620 'reflec_6'
+        targetValues[TARGET_TURBIDITY_INDEX_INDEX] = turbidity;
+        return logRLw;
+
+    }
+
+    /**
+     * Computes K_min, Z90_max and Kd_490 from the absorption and backscattering coefficients in the
+     * target values.
+     *
+     * @param targetValues the target values
+     */
+    public void computeAttenuation(double[] targetValues) {
         // compute k_min and z90_max RD 20060811
-        final KMin kMin = createKMin(targetSamples);
+        final KMin kMin = createKMin(targetValues);
         double k_min = kMin.computeKMinValue();
-        targetSamples[TARGET_K_MIN_INDEX].set(k_min);
-        targetSamples[TARGET_Z90_MAX_INDEX].set(-1.0 / k_min);
+        targetValues[TARGET_K_MIN_INDEX] = k_min;
+        targetValues[TARGET_Z90_MAX_INDEX] = -1.0 / k_min;
 
-        targetSamples[TARGET_KD_490_INDEX].set(kMin.computeKd490());
+        targetValues[TARGET_KD_490_INDEX] = kMin.computeKd490();
+    }
 
-        final double turbidity = computeTurbidityIndex(RLw[5]);// parameter Rlw at 620 'reflec_6'
-        targetSamples[TARGET_TURBIDITY_INDEX_INDEX].set(turbidity);
-        return logRLw;
+    /**
+     * @return the indexes of the target values written by {@link #perform}, except the flags
+     */
+    public int[] getTargetIndexes() {
+        return TARGET_INDEXES.clone();
+    }
+
+    /**
+     * Sets a flag bit in the target values.
+     *
+     * @param targetValues the target values
+     * @param bitIndex     the index of the flag bit
+     */
+    public static void setFlag(double[] targetValues, int bitIndex) {
+        targetValues[TARGET_FLAG_INDEX] = (int) targetValues[TARGET_FLAG_INDEX] | (1 << bitIndex);
+    }
 
+    /**
+     * Sets all bits of the given flags in a flag sample. Bits not set in <code>flags</code> are left untouched.
+     *
+     * @param flagSample the flag sample
+     * @param flags      the flags to set
+     */
+    public static void setFlags(WritableSample flagSample, int flags) {
+        for (int bitIndex = 0; bitIndex < 8; bitIndex++) {
+            if ((flags & (1 << bitIndex)) != 0) {
+                flagSample.set(bitIndex, true);
+            }
+        }
     }
 
     private double computeTurbidityIndex(double rlw620) {
@@ -150,14 +242,14 @@ public abstract class WaterAlgorithm {
     }
 
 
-    protected abstract KMin createKMin(WritableSample[] targetSamples);
+    protected abstract KMin createKMin(double[] targetValues);
 
     protected abstract double computeChiSquare(double[] forwardWaterOutput, double[] logRLw_cut);
 
     protected abstract double[] getForwardWaterInput(double solzen, double satzen, double azi_diff_deg,
                                                      double[] waterOutnet);
 
-    protected abstract void fillTargetSamples(double[] backwardWaterOutput, WritableSample[] targetSamples);
+    protected abstract void fillTargetValues(double[] backwardWaterOutput, double[] targetValues);
 
     protected abstract double[] getBackwardWaterInput(double teta_sun_deg, double teta_view_deg, double azi_diff_deg,
                                                       double[] logRlw);
@@ -0,0 +1,386 @@
+package org.esa.beam.meris.case2.water;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.meris.case2.fit.ChiSquareFitting;
+import org.esa.beam.meris.case2.util.nn.NNOutputCache;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+
+/**
+ * Runs a {@link WaterAlgorithm} and the optional Chi-square fit over arrays of pixels.
+ * <p/>
+ * The kernel works on primitive arrays only and does not depend on GPF, so it can be used on
+ * tiles as well as on any other pixel data. The inputs are given as {@link Input}, the results are
+ * written to an {@link Output}. A kernel holds the neural nets and the fitting, which are not
+ * thread-safe; a kernel must therefore be used by a single thread at a time.
+ *
+ * @author agent
+ */
+public class WaterKernel {
+
+    /**
+     * Wind speed above which white caps are assumed.
+     */
+    public static final double WINDSPEED_THRESHOLD = 12.0;
+    /**
+     * The number of pixels between two checks of the progress monitor.
+     */
+    public static final int PROGRESS_INTERVAL = 64;
+
+    private final WaterAlgorithm algorithm;
+    private final ChiSquareFitting fitting;
+    private final NNffbpAlphaTabFast inverseWaterNet;
+    private final NNffbpAlphaTabFast forwardWaterNet;
+    private final ReflectanceEnum inputReflecAre;
+    private final NNOutputCache inverseNetCache;
+    private final int[] targetIndexes;
+    private final double[] reflec;
+    private final double[] targetValues;
+    private final int batchSize;
+    private ProgressMonitor pm = ProgressMonitor.NULL;
+    private double[][] batchTargetValues;
+    private double[][] fitRLw;
+    private double[][] fitValues;
+    private double[] fitSolzen;
+    private double[] fitSatzen;
+    private double[] fitAziDiff;
+
+    /**
+     * @param algorithm       the water algorithm
+     * @param fitting         the Chi-square fitting, or {@code null} if no fit shall be performed
+     * @param inverseWaterNet the inverse (backward) water net
+     * @param forwardWaterNet the forward water net
+     * @param inputReflecAre  the kind of the input reflectances
+     * @param inverseNetCache an optional cache of the inverse net outputs, may be {@code null}
+     */
+    public WaterKernel(WaterAlgorithm algorithm, ChiSquareFitting fitting,
+                       NNffbpAlphaTabFast inverseWaterNet, NNffbpAlphaTabFast forwardWaterNet,
+                       ReflectanceEnum inputReflecAre, NNOutputCache inverseNetCache) {
+        this(algorithm, fitting, inverseWaterNet, forwardWaterNet, inputReflecAre, inverseNetCache,
+             WaterRetrieval.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param algorithm       the water algorithm
+     * @param fitting         the Chi-square fitting, or {@code null} if no fit shall be performed
+     * @param inverseWaterNet the inverse (backward) water net
+     * @param forwardWaterNet the forward water net
+     * @param inputReflecAre  the kind of the input reflectances
+     * @param inverseNetCache an optional cache of the inverse net outputs, may be {@code null}
+     * @param batchSize       the maximum number of pixels whose fits are advanced together
+     */
+    public WaterKernel(WaterAlgorithm algorithm, ChiSquareFitting fitting,
+                       NNffbpAlphaTabFast inverseWaterNet, NNffbpAlphaTabFast forwardWaterNet,
+                       ReflectanceEnum inputReflecAre, NNOutputCache inverseNetCache, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+        this.algorithm = algorithm;
+        this.fitting = fitting;
+        this.inverseWaterNet = inverseWaterNet;
+        this.forwardWaterNet = forwardWaterNet;
+        this.inputReflecAre = inputReflecAre;
+        this.inverseNetCache = inverseNetCache;
+        targetIndexes = createTargetIndexes(algorithm, fitting != null);
+        reflec = new double[9];
+        targetValues = new double[TARGET_COUNT];
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the indexes of the target values computed by this kernel, except the flags
+     */
+    public int[] getTargetIndexes() {
+        return targetIndexes.clone();
+    }
+
+    /**
+     * Sets the monitor of the following computations. It is checked for cancellation every
+     * {@link #PROGRESS_INTERVAL} pixels and within the fits; a cancelled computation throws a
+     * {@link CancellationException}. The progress is reported as number of pixels computed.
+     *
+     * @param pm the monitor, {@link ProgressMonitor#NULL} to disable
+     */
+    public void setProgressMonitor(ProgressMonitor pm) {
+        this.pm = pm;
+        if (fitting != null) {
+            fitting.setProgressMonitor(pm);
+        }
+    }
+
+    /**
+     * Must be called before single pixels of a new tile are computed by {@link #compute(Input, Output, int)},
+     * so that no state of the previous tile is used. The range computations call it themselves.
+     */
+    public void startTile() {
+        if (fitting != null) {
+            fitting.resetNeighbourStart();
+        }
+    }
+
+    /**
+     * Computes all pixels of the input. The pixels are computed in ranges of at most the batch size, so the
+     * memory needed by the fits does not grow with the size of the input.
+     *
+     * @param input  the input
+     * @param output the output
+     */
+    public void compute(Input input, Output output) {
+        startTile();
+        for (int offset = 0; offset < input.pixelCount; offset += batchSize) {
+            computeRange(input, output, offset, Math.min(batchSize, input.pixelCount - offset));
+        }
+    }
+
+    /**
+     * Computes a contiguous range of pixels of the input. If the fit is performed, the fits of all valid
+     * pixels of the range are advanced together, see
+     * {@link ChiSquareFitting#perform(NNffbpAlphaTabFast, int, double[][], double[], double[], double[], double[][])}.
+     * The results equal those of the single pixel fit; as the forward net has no batched evaluation, the
+     * number of net evaluations is the same as well.
+     *
+     * @param input  the input
+     * @param output the output
+     * @param offset the index of the first pixel
+     * @param length the number of pixels
+     */
+    public void compute(Input input, Output output, int offset, int length) {
+        startTile();
+        computeRange(input, output, offset, length);
+    }
+
+    private void computeRange(Input input, Output output, int offset, int length) {
+        if (fitting == null || length <= 1) {
+            for (int i = offset; i < offset + length; i++) {
+                compute(input, output, i);
+                if ((i - offset + 1) % PROGRESS_INTERVAL == 0) {
+                    checkProgress(PROGRESS_INTERVAL);
+                }
+            }
+            checkProgress(length % PROGRESS_INTERVAL);
+            return;
+        }
+        if (batchTargetValues == null || batchTargetValues.length < length) {
+            batchTargetValues = new double[length][TARGET_COUNT];
+            fitRLw = new double[length][];
+            fitValues = new double[length][];
+            fitSolzen = new double[length];
+            fitSatzen = new double[length];
+            fitAziDiff = new double[length];
+        }
+        int fitCount = 0;
+        for (int k = 0; k < length; k++) {
+            final int pixelIndex = offset + k;
+            final double[] values = batchTargetValues[k];
+            final double[] logRLw = retrieve(input, pixelIndex, values);
+            if (logRLw != null) {
+                fitRLw[fitCount] = logRLw;
+                fitValues[fitCount] = values;
+                fitSolzen[fitCount] = input.solzen[pixelIndex];
+                fitSatzen[fitCount] = input.satzen[pixelIndex];
+                fitAziDiff[fitCount] = input.aziDiff[pixelIndex];
+                fitCount++;
+            }
+            if ((k + 1) % PROGRESS_INTERVAL == 0) {
+                checkProgress(0);
+            }
+        }
+        if (fitCount > 0) {
+            fitting.perform(forwardWaterNet, fitCount, fitRLw, fitSolzen, fitSatzen, fitAziDiff, fitValues);
+        }
+        for (int k = 0; k < length; k++) {
+            write(output, offset + k, batchTargetValues[k]);
+        }
+        checkProgress(length);
+    }
+
+    private void checkProgress(int work) {
+        if (pm.isCanceled()) {
+            throw new CancellationException("Computation cancelled");
+        }
+        if (work > 0) {
+            pm.worked(work);
+        }
+    }
+
+    /**
+     * Computes a single pixel of the input.
+     *
+     * @param input      the input
+     * @param output     the output
+     * @param pixelIndex the index of the pixel
+     */
+    public void compute(Input input, Output output, int pixelIndex) {
+        final double[] logRLw = retrieve(input, pixelIndex, targetValues);
+        if (logRLw != null && fitting != null) {
+            fitting.perform(forwardWaterNet, logRLw, input.solzen[pixelIndex], input.satzen[pixelIndex],
+                            input.aziDiff[pixelIndex], targetValues);
+        }
+        write(output, pixelIndex, targetValues);
+    }
+
+    /**
+     * Performs the retrieval of the water algorithm.
+     *
+     * @return the input of the fit, or {@code null} if the pixel is invalid
+     */
+    private double[] retrieve(Input input, int pixelIndex, double[] values) {
+        Arrays.fill(values, Double.NaN);
+        values[TARGET_FLAG_INDEX] = 0;
+        if (input.invalid != null && input.invalid[pixelIndex]) {
+            setFlag(values, INVALID_BIT_INDEX);
+            return null;
+        }
+        if (input.windSpeed[pixelIndex] > WINDSPEED_THRESHOLD) {
+            setFlag(values, WHITECAPS_BIT_INDEX);
+        }
+        for (int i = 0; i < reflec.length; i++) {
+            reflec[i] = input.getReflectance(i, pixelIndex);
+        }
+        return algorithm.perform(inverseWaterNet, forwardWaterNet, input.solzen[pixelIndex],
+                                 input.satzen[pixelIndex], input.aziDiff[pixelIndex], reflec, values,
+                                 inputReflecAre, inverseNetCache);
+    }
+
+    private void write(Output output, int pixelIndex, double[] values) {
+        for (int index : targetIndexes) {
+            final float[] data = output.values[index];
+            if (data != null) {
+                data[pixelIndex] = (float) values[index];
+            }
+        }
+        output.flags[pixelIndex] = (byte) values[TARGET_FLAG_INDEX];
+    }
+
+    private static int[] createTargetIndexes(WaterAlgorithm algorithm, boolean withFit) {
+        final int[] indexes = algorithm.getTargetIndexes();
+        if (!withFit) {
+            return indexes;
+        }
+        final int fitCount = TARGET_COUNT - TARGET_A_GELBSTOFF_FIT_INDEX;
+        final int[] allIndexes = Arrays.copyOf(indexes, indexes.length + fitCount);
+        for (int i = 0; i < fitCount; i++) {
+            allIndexes[indexes.length + i] = TARGET_A_GELBSTOFF_FIT_INDEX + i;
+        }
+        return allIndexes;
+    }
+
+    /**
+     * The inputs of a {@link WaterKernel}. All arrays hold one value per pixel.
+     */
+    public static class Input {
+
+        final int pixelCount;
+        final float[][] reflec;
+        final double[][] reflecDouble;
+        final double[] solzen;
+        final double[] satzen;
+        final double[] aziDiff;
+        final double[] windSpeed;
+        final boolean[] invalid;
+
+        /**
+         * @param reflec    the nine reflectances, indexed by band and pixel
+         * @param solzen    the sun zenith angles
+         * @param satzen    the corrected view zenith angles
+         * @param aziDiff   the azimuth differences as computed by
+         *                  {@link org.esa.beam.meris.case2.MerisCase2BasisWaterOp#getAzimuthDifference}
+         * @param windSpeed the wind speeds
+         * @param invalid   the invalid state of the pixels, may be {@code null} if all pixels are valid
+         */
+        public Input(float[][] reflec, double[] solzen, double[] satzen, double[] aziDiff, double[] windSpeed,
+                     boolean[] invalid) {
+            this(reflec, null, solzen, satzen, aziDiff, windSpeed, invalid);
+        }
+
+        /**
+         * Creates an input from reflectances given in double precision.
+         *
+         * @see #Input(float[][], double[], double[], double[], double[], boolean[])
+         */
+        public Input(double[][] reflec, double[] solzen, double[] satzen, double[] aziDiff, double[] windSpeed,
+                     boolean[] invalid) {
+            this(null, reflec, solzen, satzen, aziDiff, windSpeed, invalid);
+        }
+
+        private Input(float[][] reflec, double[][] reflecDouble, double[] solzen, double[] satzen,
+                      double[] aziDiff, double[] windSpeed, boolean[] invalid) {
+            this.pixelCount = solzen.length;
+            this.reflec = reflec;
+            this.reflecDouble = reflecDouble;
+            this.solzen = solzen;
+            this.satzen = satzen;
+            this.aziDiff = aziDiff;
+            this.windSpeed = windSpeed;
+            this.invalid = invalid;
+        }
+
+        public int getPixelCount() {
+            return pixelCount;
+        }
+
+        double getReflectance(int band, int pixelIndex) {
+            return reflec != null ? reflec[band][pixelIndex] : reflecDouble[band][pixelIndex];
+        }
+    }
+
+    /**
+     * The outputs of a {@link WaterKernel}.
+     */
+    public static class Output {
+
+        final float[][] values;
+        final byte[] flags;
+
+        /**
+         * Creates an output with arrays for all target values.
+         *
+         * @param pixelCount the number of pixels
+         */
+        public Output(int pixelCount) {
+            this(new float[TARGET_COUNT][pixelCount], new byte[pixelCount]);
+            values[TARGET_FLAG_INDEX] = null;
+        }
+
+        /**
+         * @param values the target values, indexed by target sample index and pixel;
+         *               values with a {@code null} array are not stored
+         * @param flags  the flags
+         */
+        public Output(float[][] values, byte[] flags) {
+            this.values = values;
+            this.flags = flags;
+        }
+
+        /**
+         * @param targetIndex the target sample index
+         *
+         * @return the values, or {@code null} if not stored
+         */
+        public float[] getValues(int targetIndex) {
+            return values[targetIndex];
+        }
+
+        public byte[] getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return the number of bytes of the stored arrays
+         */
+        public long getByteSize() {
+            long byteSize = flags.length;
+            for (float[] data : values) {
+                if (data != null) {
+                    byteSize += 4L * data.length;
+                }
+            }
+            return byteSize;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.esa.beam.meris.case2.water;
+
+import org.esa.beam.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.meris.case2.fit.ChiSquareFitting;
+import org.esa.beam.meris.case2.util.nn.NNOutputCache;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A thread-safe batch retrieval of water constituents on columnar arrays, independent of GPF and products.
+ * <p/>
+ * The definitions of the neural nets and the fitting are shared by all threads; each thread works on its
+ * own {@link WaterKernel}, which is created on first use. The inputs and outputs are given as
+ * {@link WaterKernel.Input} and {@link WaterKernel.Output}, holding one array per variable.
+ * Pixels are processed in batches of {@link #getBatchSize()} pixels, which is the unit of work
+ * distributed to the threads of an executor.
+ *
+ * @author agent
+ */
+public class WaterRetrieval {
+
+    /**
+     * The default number of pixels processed as one unit of work.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * Creates the Chi-square fitting of a thread.
+     */
+    public interface FittingFactory {
+
+        ChiSquareFitting createFitting();
+    }
+
+    private final WaterAlgorithm algorithm;
+    private final String inverseWaterNet;
+    private final String forwardWaterNet;
+    private final ReflectanceEnum inputReflecAre;
+    private final FittingFactory fittingFactory;
+    private final int inverseNetCacheSize;
+    private final double inverseNetCachePrecision;
+    private final int batchSize;
+    private final List<NNOutputCache> inverseNetCaches;
+    private final ThreadLocal<WaterKernel> threadLocalKernel;
+
+    /**
+     * Creates a retrieval without fit and without cache, using the default batch size.
+     *
+     * @param algorithm       the water algorithm
+     * @param inverseWaterNet the definition of the inverse water net
+     * @param forwardWaterNet the definition of the forward water net
+     * @param inputReflecAre  the kind of the input reflectances
+     */
+    public WaterRetrieval(WaterAlgorithm algorithm, String inverseWaterNet, String forwardWaterNet,
+                          ReflectanceEnum inputReflecAre) {
+        this(algorithm, inverseWaterNet, forwardWaterNet, inputReflecAre, null, 0, 0.0, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param algorithm                the water algorithm, must be thread-safe
+     * @param inverseWaterNet          the definition of the inverse water net
+     * @param forwardWaterNet          the definition of the forward water net
+     * @param inputReflecAre           the kind of the input reflectances
+     * @param fittingFactory           creates the Chi-square fitting of each thread, or {@code null} if no fit
+     *                                 shall be performed
+     * @param inverseNetCacheSize      the size of the per-thread cache of inverse net outputs; zero disables it
+     * @param inverseNetCachePrecision the quantisation of the cache keys, see {@link NNOutputCache}
+     * @param batchSize                the number of pixels processed as one unit of work
+     */
+    public WaterRetrieval(WaterAlgorithm algorithm, String inverseWaterNet, String forwardWaterNet,
+                          ReflectanceEnum inputReflecAre, FittingFactory fittingFactory,
+                          int inverseNetCacheSize, double inverseNetCachePrecision, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+        this.algorithm = algorithm;
+        this.inverseWaterNet = inverseWaterNet;
+        this.forwardWaterNet = forwardWaterNet;
+        this.inputReflecAre = inputReflecAre;
+        this.fittingFactory = fittingFactory;
+        this.inverseNetCacheSize = inverseNetCacheSize;
+        this.inverseNetCachePrecision = inverseNetCachePrecision;
+        this.batchSize = batchSize;
+        inverseNetCaches = Collections.synchronizedList(new ArrayList<NNOutputCache>());
+        // fail early on invalid net definitions instead of in a worker thread
+        createNeuralNet(inverseWaterNet);
+        createNeuralNet(forwardWaterNet);
+        threadLocalKernel = new ThreadLocal<WaterKernel>() {
+            @Override
+            protected WaterKernel initialValue() {
+                return createKernel();
+            }
+        };
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param pixelCount the number of pixels
+     *
+     * @return the number of batches needed for the given number of pixels
+     */
+    public int getBatchCount(int pixelCount) {
+        return (pixelCount + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * @return the indexes of the target values computed, except the flags
+     */
+    public int[] getTargetIndexes() {
+        return getKernel().getTargetIndexes();
+    }
+
+    /**
+     * Returns the kernel of the calling thread. The kernel must not be passed to other threads.
+     *
+     * @return the kernel of the calling thread
+     */
+    public WaterKernel getKernel() {
+        return threadLocalKernel.get();
+    }
+
+    /**
+     * Computes all pixels of the input in the calling thread.
+     *
+     * @param input  the input
+     * @param output the output
+     */
+    public void compute(WaterKernel.Input input, WaterKernel.Output output) {
+        getKernel().compute(input, output);
+    }
+
+    /**
+     * Computes the pixels of a single batch in the calling thread.
+     *
+     * @param input      the input
+     * @param output     the output
+     * @param batchIndex the index of the batch
+     */
+    public void computeBatch(WaterKernel.Input input, WaterKernel.Output output, int batchIndex) {
+        final int offset = batchIndex * batchSize;
+        final int length = Math.min(batchSize, input.getPixelCount() - offset);
+        getKernel().compute(input, output, offset, length);
+    }
+
+    /**
+     * Computes all pixels of the input by distributing the batches to the given executor. Returns when all
+     * batches are computed.
+     *
+     * @param input    the input
+     * @param output   the output
+     * @param executor the executor
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws ExecutionException   if the computation of a batch failed
+     */
+    public void compute(final WaterKernel.Input input, final WaterKernel.Output output, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        final int batchCount = getBatchCount(input.getPixelCount());
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            final int batchIndex = i;
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    computeBatch(input, output, batchIndex);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    public long getInverseNetCacheHitCount() {
+        long hits = 0;
+        synchronized (inverseNetCaches) {
+            for (NNOutputCache cache : inverseNetCaches) {
+                hits += cache.getHitCount();
+            }
+        }
+        return hits;
+    }
+
+    public long getInverseNetCacheMissCount() {
+        long misses = 0;
+        synchronized (inverseNetCaches) {
+            for (NNOutputCache cache : inverseNetCaches) {
+                misses += cache.getMissCount();
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Reads the definition of a neural net.
+     *
+     * @param inputStream the stream to read from, closed afterwards
+     *
+     * @return the definition of the net
+     *
+     * @throws IOException if the net could not be read
+     */
+    public static String readNeuralNet(InputStream inputStream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        try {
+            final StringBuilder sb = new StringBuilder();
+            String line = reader.readLine();
+            while (line != null) {
+                // have to append line terminator, cause it's not included in line
+                sb.append(line).append('\n');
+                line = reader.readLine();
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private WaterKernel createKernel() {
+        final ChiSquareFitting fitting = fittingFactory != null ? fittingFactory.createFitting() : null;
+        NNOutputCache inverseNetCache = null;
+        if (inverseNetCacheSize > 0) {
+            inverseNetCache = new NNOutputCache(inverseNetCacheSize, inverseNetCachePrecision);
+            inverseNetCaches.add(inverseNetCache);
+        }
+        return new WaterKernel(algorithm, fitting, createNeuralNet(inverseWaterNet), createNeuralNet(forwardWaterNet),
+                               inputReflecAre, inverseNetCache, batchSize);
+    }
+
+    private static NNffbpAlphaTabFast createNeuralNet(String neuralNet) {
+        try {
+            return new NNffbpAlphaTabFast(neuralNet);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not able to init neural net", e);
+        }
+    }
+}
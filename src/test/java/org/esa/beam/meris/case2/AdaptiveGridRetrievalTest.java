@@ -0,0 +1,88 @@
+package org.esa.beam.meris.case2;
+
+import org.junit.Test;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+import static org.junit.Assert.*;
+
+public class AdaptiveGridRetrievalTest {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 5;
+
+    @Test
+    public void testSmoothFieldIsInterpolated() {
+        final float[][] reflec = createReflec(false);
+        final float[][] targetData = new float[TARGET_FLAG_INDEX][WIDTH * HEIGHT];
+        final byte[] flags = new byte[WIDTH * HEIGHT];
+        final CountingRetrieval retrieval = new CountingRetrieval(reflec, targetData, flags);
+        final AdaptiveGridRetrieval adaptive = new AdaptiveGridRetrieval(4, 0.05);
+
+        adaptive.compute(0, 0, WIDTH, HEIGHT, reflec, new boolean[WIDTH * HEIGHT], retrieval, targetData, flags);
+
+        assertEquals(6, retrieval.count);
+        assertEquals(6, adaptive.getComputedPixelCount());
+        assertEquals(39, adaptive.getInterpolatedPixelCount());
+        final int index = 2 * WIDTH + 3;
+        assertEquals(reflec[0][index], targetData[TARGET_A_PIGMENT_INDEX][index], 1.0e-5);
+        assertEquals(1 << INTERPOLATED_BIT_INDEX, flags[index]);
+        assertEquals(0, flags[0]);
+    }
+
+    @Test
+    public void testEdgeInCellIsRefined() {
+        final float[][] reflec = createReflec(true);
+        final float[][] targetData = new float[TARGET_FLAG_INDEX][WIDTH * HEIGHT];
+        final byte[] flags = new byte[WIDTH * HEIGHT];
+        final CountingRetrieval retrieval = new CountingRetrieval(reflec, targetData, flags);
+        final AdaptiveGridRetrieval adaptive = new AdaptiveGridRetrieval(4, 0.05);
+
+        adaptive.compute(0, 0, WIDTH, HEIGHT, reflec, new boolean[WIDTH * HEIGHT], retrieval, targetData, flags);
+
+        // the left cell column is refined, the right one interpolated
+        final int refinedIndex = 2 * WIDTH + 2;
+        assertEquals(reflec[0][refinedIndex], targetData[TARGET_A_PIGMENT_INDEX][refinedIndex], 0.0f);
+        assertEquals(1 << REFINED_BIT_INDEX, flags[refinedIndex]);
+        final int interpolatedIndex = 2 * WIDTH + 6;
+        assertEquals(1 << INTERPOLATED_BIT_INDEX, flags[interpolatedIndex]);
+        assertEquals(6 + 21, retrieval.count);
+    }
+
+    private static float[][] createReflec(boolean withEdge) {
+        final float[][] reflec = new float[2][WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int index = y * WIDTH + x;
+                reflec[0][index] = 0.01f + 0.00005f * x + 0.0001f * y;
+                reflec[1][index] = 0.02f;
+                if (withEdge && x == 2 && y == 2) {
+                    reflec[0][index] *= 2;
+                }
+            }
+        }
+        return reflec;
+    }
+
+    private static class CountingRetrieval implements AdaptiveGridRetrieval.PixelRetrieval {
+
+        private final float[][] reflec;
+        private final float[][] targetData;
+        private final byte[] flags;
+        private int count;
+
+        private CountingRetrieval(float[][] reflec, float[][] targetData, byte[] flags) {
+            this.reflec = reflec;
+            this.targetData = targetData;
+            this.flags = flags;
+        }
+
+        @Override
+        public void compute(int x, int y, int pixelIndex) {
+            for (float[] data : targetData) {
+                data[pixelIndex] = reflec[0][pixelIndex];
+            }
+            flags[pixelIndex] = 0;
+            count++;
+        }
+    }
+}
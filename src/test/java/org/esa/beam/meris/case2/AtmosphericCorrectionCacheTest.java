@@ -0,0 +1,121 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class AtmosphericCorrectionCacheTest {
+
+    private File cacheDir;
+
+    @Before
+    public void before() throws IOException {
+        cacheDir = File.createTempFile("ac-cache", "");
+        assertTrue(cacheDir.delete());
+    }
+
+    @After
+    public void after() {
+        deleteTree(cacheDir);
+    }
+
+    @Test
+    public void testKeyDependsOnParameters() {
+        final Product product = new Product("MER_RR__1P", "MER_RR__1P", 10, 20);
+        final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        parameters.put("doSmileCorrection", true);
+        parameters.put("landExpression", "toa_reflec_10 > toa_reflec_6");
+
+        final String key = AtmosphericCorrectionCache.createKey(product, parameters);
+        assertEquals(40, key.length());
+        assertEquals(key, AtmosphericCorrectionCache.createKey(product, parameters));
+
+        parameters.put("landExpression", "toa_reflec_10 > toa_reflec_7");
+        assertFalse(key.equals(AtmosphericCorrectionCache.createKey(product, parameters)));
+    }
+
+    @Test
+    public void testKeyDependsOnSubset() throws IOException {
+        final File sourceFile = File.createTempFile("MER_RR__1P", ".N1");
+        try {
+            final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+            parameters.put("doSmileCorrection", true);
+            final Product product = createProduct(10, 20, 4000.0, 4000.1);
+            product.setFileLocation(sourceFile);
+            final String key = AtmosphericCorrectionCache.createKey(product, parameters);
+
+            // subsets of the same file
+            final Product sameSubset = createProduct(10, 20, 4000.0, 4000.1);
+            sameSubset.setFileLocation(sourceFile);
+            assertEquals(key, AtmosphericCorrectionCache.createKey(sameSubset, parameters));
+            final Product narrowerSubset = createProduct(8, 20, 4000.0, 4000.1);
+            narrowerSubset.setFileLocation(sourceFile);
+            assertFalse(key.equals(AtmosphericCorrectionCache.createKey(narrowerSubset, parameters)));
+            final Product lowerSubset = createProduct(10, 20, 4000.05, 4000.15);
+            lowerSubset.setFileLocation(sourceFile);
+            assertFalse(key.equals(AtmosphericCorrectionCache.createKey(lowerSubset, parameters)));
+            final Product shorterSubset = createProduct(10, 20, 4000.0, 4000.05);
+            shorterSubset.setFileLocation(sourceFile);
+            assertFalse(key.equals(AtmosphericCorrectionCache.createKey(shorterSubset, parameters)));
+        } finally {
+            assertTrue(sourceFile.delete());
+        }
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        final AtmosphericCorrectionCache cache = new AtmosphericCorrectionCache(cacheDir);
+        final Product acProduct = createProduct(3, 2, 4000.0, 4000.1);
+        final Band band = new Band("reflec_1", ProductData.TYPE_FLOAT32, 3, 2);
+        band.setRasterData(ProductData.createInstance(new float[]{0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f}));
+        acProduct.addBand(band);
+        final String key = AtmosphericCorrectionCache.createKey(acProduct, new LinkedHashMap<String, Object>());
+        assertNull(cache.get(key));
+
+        final File entryDir = cache.put(key, acProduct, Logger.getAnonymousLogger());
+        assertEquals(new File(cacheDir, key), entryDir);
+        final Product cachedProduct = cache.get(key);
+        assertNotNull(cachedProduct);
+        try {
+            assertEquals(3, cachedProduct.getSceneRasterWidth());
+            assertEquals(2, cachedProduct.getSceneRasterHeight());
+            final float[] pixels = cachedProduct.getBand("reflec_1").readPixels(0, 0, 3, 2, new float[6],
+                                                                                ProgressMonitor.NULL);
+            assertArrayEquals(new float[]{0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f}, pixels, 0.0f);
+        } finally {
+            cachedProduct.dispose();
+        }
+        // no temporary directories are left
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    private static Product createProduct(int width, int height, double startMjd, double endMjd) {
+        final Product product = new Product("MER_RR__1P", "MER_RR__1P", width, height);
+        product.setStartTime(new ProductData.UTC(startMjd));
+        product.setEndTime(new ProductData.UTC(endMjd));
+        return product;
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,67 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.meris.case2.water.RegionalWater;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Test;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+import static org.junit.Assert.*;
+
+public class Case2ConversionOpTest {
+
+    @Test
+    public void testRegionalConversionReproducesRetrieval() throws Exception {
+        final Case2AlgorithmEnum regional = Case2AlgorithmEnum.REGIONAL;
+        final double[] targetValues = computeRegionalPixel(regional.getDefaultTsmExponent(),
+                                                           regional.getDefaultTsmFactor(),
+                                                           regional.getDefaultChlExponent(),
+                                                           regional.getDefaultChlFactor());
+        final double bbSpm = targetValues[TARGET_BB_SPM_INDEX];
+        final double aPig = targetValues[TARGET_A_PIGMENT_INDEX];
+
+        assertEquals(targetValues[TARGET_TSM_INDEX],
+                     Case2ConversionOp.convert(bbSpm / BTSM_TO_SPM_FACTOR, regional.getDefaultTsmFactor(),
+                                               regional.getDefaultTsmExponent()), 1.0e-10);
+        assertEquals(targetValues[TARGET_CHL_CONC_INDEX],
+                     Case2ConversionOp.convert(aPig, regional.getDefaultChlFactor(),
+                                               regional.getDefaultChlExponent()), 1.0e-10);
+    }
+
+    @Test
+    public void testRegionalConversionWithNewParameters() throws Exception {
+        final double[] targetValues = computeRegionalPixel(1.0, 1.73, 1.04, 21.0);
+        final double bTsm = targetValues[TARGET_BB_SPM_INDEX] / BTSM_TO_SPM_FACTOR;
+        final double aPig = targetValues[TARGET_A_PIGMENT_INDEX];
+
+        assertEquals(2.5 * bTsm, Case2ConversionOp.convert(bTsm, 2.5, 1.0), 1.0e-10);
+        assertEquals(1.73 * bTsm * bTsm, Case2ConversionOp.convert(bTsm, 1.73, 2.0), 1.0e-10);
+        assertEquals(30.0 * Math.pow(aPig, 0.9), Case2ConversionOp.convert(aPig, 30.0, 0.9), 1.0e-10);
+        // the retrieval with the new parameters yields the same concentrations
+        final double[] newTargetValues = computeRegionalPixel(2.0, 1.73, 0.9, 30.0);
+        assertEquals(newTargetValues[TARGET_TSM_INDEX], Case2ConversionOp.convert(bTsm, 1.73, 2.0), 1.0e-10);
+        assertEquals(newTargetValues[TARGET_CHL_CONC_INDEX], Case2ConversionOp.convert(aPig, 30.0, 0.9), 1.0e-10);
+    }
+
+    /**
+     * Computes the pixel of the regional algorithm test.
+     */
+    static double[] computeRegionalPixel(double tsmExponent, double tsmFactor, double chlExponent,
+                                         double chlFactor) throws Exception {
+        final String resourceDir = "/org/esa/beam/meris/case2/water/";
+        final NNffbpAlphaTabFast inverseNet = new NNffbpAlphaTabFast(
+                Case2ConversionOpTest.class.getResourceAsStream(resourceDir + "regional_inverse_test.net"));
+        final NNffbpAlphaTabFast forwardNet = new NNffbpAlphaTabFast(
+                Case2ConversionOpTest.class.getResourceAsStream(resourceDir + "regional_forward_test.net"));
+        final RegionalWater regionalWater = new RegionalWater(4.0, tsmExponent, tsmFactor, chlExponent, chlFactor);
+        final double[] reflec = {
+                0.015459167, 0.015351999, 0.016962104, 0.013087227, 0.0091405315,
+                0.0020359613, 0.0011729593, 0.0011168025, 5.6830555E-4
+        };
+        final double[] targetValues = new double[TARGET_COUNT];
+        regionalWater.perform(inverseNet, forwardNet, 23.255, 16.845,
+                              MerisCase2BasisWaterOp.getAzimuthDifference(89.83, 283.79), reflec, targetValues,
+                              ReflectanceEnum.RADIANCE_REFLECTANCES, null);
+        return targetValues;
+    }
+}
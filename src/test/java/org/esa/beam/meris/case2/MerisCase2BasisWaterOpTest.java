@@ -18,6 +18,14 @@ public class MerisCase2BasisWaterOpTest {
         assertEquals(10.0, MerisCase2BasisWaterOp.getAzimuthDifference(280.0, 90.0), 1.0e-8);
     }
 
+    @Test
+    public void testGetSceneX() throws Exception {
+        assertEquals(17.0, MerisCase2BasisWaterOp.getSceneX(17, 1.0), 0.0);
+        // the pixel covers the columns 8 to 11
+        assertEquals(9.5, MerisCase2BasisWaterOp.getSceneX(2, 4.0), 0.0);
+        assertEquals(0.5, MerisCase2BasisWaterOp.getSceneX(0, 2.0), 0.0);
+    }
+
     @Test
     public void testIsProductMerisFullResolution_FromGlobalAttributes() throws Exception {
         Product product = new Product("dummy", "type", 2, 2);
@@ -0,0 +1,64 @@
+package org.esa.beam.meris.case2;
+
+import org.esa.beam.meris.case2.water.WaterKernel;
+import org.junit.Test;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+import static org.junit.Assert.*;
+
+public class RegionalWaterOpTest {
+
+    private static final int OOTR = 1 << OOTR_BIT_INDEX;
+
+    @Test
+    public void testSweepReproducesRetrieval() throws Exception {
+        final double[] targetValues = Case2ConversionOpTest.computeRegionalPixel(1.0, 1.73, 1.04, 21.0);
+        final WaterKernel.Output output = createOutput(targetValues);
+
+        final float[] samples = new float[1];
+        new RegionalWaterOp.SweepBand(TARGET_TSM_INDEX, 1.73, 1.0, 4.0).computeSamples(output, 1, samples);
+        assertEquals(targetValues[TARGET_TSM_INDEX], samples[0], 1.0e-5 * targetValues[TARGET_TSM_INDEX]);
+        new RegionalWaterOp.SweepBand(TARGET_CHL_CONC_INDEX, 21.0, 1.04, 4.0).computeSamples(output, 1, samples);
+        assertEquals(targetValues[TARGET_CHL_CONC_INDEX], samples[0], 1.0e-5 * targetValues[TARGET_CHL_CONC_INDEX]);
+    }
+
+    @Test
+    public void testSweepWithNewParameters() throws Exception {
+        final double[] targetValues = Case2ConversionOpTest.computeRegionalPixel(1.0, 1.73, 1.04, 21.0);
+        final WaterKernel.Output output = createOutput(targetValues);
+        final double[] newTargetValues = Case2ConversionOpTest.computeRegionalPixel(1.2, 1.73, 1.04, 30.0);
+
+        final float[] samples = new float[1];
+        // tsm uses the factor of the operator and the exponent of the set
+        new RegionalWaterOp.SweepBand(TARGET_TSM_INDEX, 1.73, 1.2, 4.0).computeSamples(output, 1, samples);
+        assertEquals(newTargetValues[TARGET_TSM_INDEX], samples[0], 1.0e-5 * newTargetValues[TARGET_TSM_INDEX]);
+        // chl_conc uses the factor of the set and the exponent of the operator
+        new RegionalWaterOp.SweepBand(TARGET_CHL_CONC_INDEX, 30.0, 1.04, 4.0).computeSamples(output, 1, samples);
+        assertEquals(newTargetValues[TARGET_CHL_CONC_INDEX], samples[0],
+                     1.0e-5 * newTargetValues[TARGET_CHL_CONC_INDEX]);
+    }
+
+    @Test
+    public void testSweepFlags() throws Exception {
+        final double[] targetValues = Case2ConversionOpTest.computeRegionalPixel(1.0, 1.73, 1.04, 21.0);
+        final double chiSquare = targetValues[TARGET_CHI_SQUARE_INDEX];
+        final WaterKernel.Output output = createOutput(targetValues);
+        output.getFlags()[0] = (byte) (0x81 | OOTR);
+
+        final float[] samples = new float[1];
+        new RegionalWaterOp.SweepBand(TARGET_FLAG_INDEX, Double.NaN, Double.NaN, chiSquare * 2).computeSamples(
+                output, 1, samples);
+        assertEquals(0x81, (int) samples[0]);
+        new RegionalWaterOp.SweepBand(TARGET_FLAG_INDEX, Double.NaN, Double.NaN, chiSquare / 2).computeSamples(
+                output, 1, samples);
+        assertEquals(0x81 | OOTR, (int) samples[0]);
+    }
+
+    private static WaterKernel.Output createOutput(double[] targetValues) {
+        final WaterKernel.Output output = new WaterKernel.Output(1);
+        for (int index : new int[]{TARGET_BB_SPM_INDEX, TARGET_A_PIGMENT_INDEX, TARGET_CHI_SQUARE_INDEX}) {
+            output.getValues(index)[0] = (float) targetValues[index];
+        }
+        return output;
+    }
+}
@@ -0,0 +1,240 @@
+package org.esa.beam.meris.case2;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.meris.case2.fit.ChiSquareFitting;
+import org.esa.beam.meris.case2.water.WaterAlgorithm;
+import org.esa.beam.meris.case2.water.WaterKernel;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+import static org.junit.Assert.*;
+
+public class StreamingWaterProcessorTest {
+
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 10;
+    private static final int DERIVED_FLAG = 0x80;
+
+    private final AtomicInteger activeIoCount = new AtomicInteger();
+    private final AtomicInteger maxActiveIoCount = new AtomicInteger();
+
+    @Test
+    public void testWriteStripes() throws IOException {
+        writeAndCheckStripes(null);
+    }
+
+    @Test
+    public void testWriteStripesWithAsyncIO() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            writeAndCheckStripes(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+        // the reads and writes of the source, target and pass-through maps are serialised
+        assertEquals(1, maxActiveIoCount.get());
+    }
+
+    private void writeAndCheckStripes(ExecutorService ioExecutor) throws IOException {
+        final TestBand source = new TestBand("source", ProductData.TYPE_FLOAT32);
+        final Product inputProduct = new Product("input", "type", WIDTH, HEIGHT);
+        inputProduct.addBand(source);
+
+        final Product targetProduct = new Product("target", "type", WIDTH, HEIGHT);
+        final TestBand chl = new TestBand("chl_conc", ProductData.TYPE_FLOAT32);
+        final TestBand flags = new TestBand("case2_flags", ProductData.TYPE_UINT8);
+        final TestBand derivedChl = new TestBand("chl_conc_1", ProductData.TYPE_FLOAT32);
+        final TestBand derivedFlags = new TestBand("case2_flags_1", ProductData.TYPE_UINT8);
+        final TestBand passThrough = new TestBand("l1_flags", ProductData.TYPE_INT16);
+        for (TestBand band : new TestBand[]{chl, flags, derivedChl, derivedFlags, passThrough}) {
+            targetProduct.addBand(band);
+        }
+
+        final StripeOp operator = new StripeOp(inputProduct);
+        final StreamingWaterProcessor processor = new StreamingWaterProcessor(operator, 4);
+        processor.setAsyncIO(ioExecutor, 1);
+        processor.writeStripes(targetProduct, ProgressMonitor.NULL);
+
+        // the retrieval is performed once per stripe, also for the derived bands
+        assertEquals(3, operator.stripes.size());
+        assertEquals(new Rectangle(0, 0, WIDTH, 4), operator.stripes.get(0));
+        assertEquals(new Rectangle(0, 4, WIDTH, 4), operator.stripes.get(1));
+        assertEquals(new Rectangle(0, 8, WIDTH, 2), operator.stripes.get(2));
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(10.0f * source.values[i], chl.written[i], 0.0f);
+            assertEquals(i % 7, flags.written[i], 0.0f);
+            assertEquals(20.0f * source.values[i], derivedChl.written[i], 0.0f);
+            assertEquals(i % 7 | DERIVED_FLAG, derivedFlags.written[i], 0.0f);
+        }
+        assertArrayEquals(passThrough.values, passThrough.written, 0.0f);
+    }
+
+    private static class StripeOp extends MerisCase2BasisWaterOp {
+
+        private final Product inputProduct;
+        private final List<Rectangle> stripes;
+
+        private StripeOp(Product inputProduct) {
+            this.inputProduct = inputProduct;
+            stripes = new ArrayList<Rectangle>();
+        }
+
+        @Override
+        Product getInputProduct() {
+            return inputProduct;
+        }
+
+        @Override
+        String[] getSourceSampleNames() {
+            return new String[]{"source"};
+        }
+
+        @Override
+        Integer getComputedTargetIndex(String bandName) {
+            if ("chl_conc".equals(bandName)) {
+                return TARGET_CHL_CONC_INDEX;
+            }
+            if ("case2_flags".equals(bandName)) {
+                return TARGET_FLAG_INDEX;
+            }
+            return null;
+        }
+
+        @Override
+        protected boolean isDerivedBand(String bandName) {
+            return bandName.endsWith("_1");
+        }
+
+        @Override
+        WaterKernel.Output computeStripe(Rectangle stripeRect, float[][] sourceData, float[][] targetData,
+                                         byte[] flags, ProgressMonitor pm) {
+            stripes.add(stripeRect);
+            final int pixelCount = stripeRect.width * stripeRect.height;
+            for (int i = 0; i < pixelCount; i++) {
+                targetData[TARGET_CHL_CONC_INDEX][i] = 10.0f * sourceData[0][i];
+                flags[i] = (byte) ((stripeRect.y * WIDTH + i) % 7);
+            }
+            return new WaterKernel.Output(targetData, flags);
+        }
+
+        @Override
+        protected void computeDerivedSamples(String bandName, WaterKernel.Output output, int pixelCount,
+                                             float[] samples) {
+            for (int i = 0; i < pixelCount; i++) {
+                if ("chl_conc_1".equals(bandName)) {
+                    samples[i] = 2.0f * output.getValues(TARGET_CHL_CONC_INDEX)[i];
+                } else {
+                    samples[i] = output.getFlags()[i] | DERIVED_FLAG;
+                }
+            }
+        }
+
+        @Override
+        protected String getDefaultForwardWaterNetResourcePath() {
+            return null;
+        }
+
+        @Override
+        protected String getDefaultInverseWaterNetResourcePath() {
+            return null;
+        }
+
+        @Override
+        protected WaterAlgorithm createAlgorithm() {
+            return null;
+        }
+
+        @Override
+        protected ChiSquareFitting createChiSquareFitting() {
+            return null;
+        }
+
+        @Override
+        protected String getProductTypeSuffix() {
+            return null;
+        }
+    }
+
+    private class TestBand extends Band {
+
+        private final float[] values;
+        private final float[] written;
+
+        private TestBand(String name, int dataType) {
+            super(name, dataType, WIDTH, HEIGHT);
+            values = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i + 1;
+            }
+            written = new float[WIDTH * HEIGHT];
+        }
+
+        @Override
+        public float[] readPixels(int x, int y, int w, int h, float[] pixels, ProgressMonitor pm) {
+            startIo();
+            try {
+                System.arraycopy(values, y * WIDTH, pixels, 0, w * h);
+            } finally {
+                endIo();
+            }
+            return pixels;
+        }
+
+        @Override
+        public int[] readPixels(int x, int y, int w, int h, int[] pixels, ProgressMonitor pm) {
+            startIo();
+            try {
+                for (int i = 0; i < w * h; i++) {
+                    pixels[i] = (int) values[y * WIDTH + i];
+                }
+            } finally {
+                endIo();
+            }
+            return pixels;
+        }
+
+        @Override
+        public void writeRasterData(int offsetX, int offsetY, int width, int height, ProductData rasterData,
+                                    ProgressMonitor pm) {
+            startIo();
+            try {
+                for (int i = 0; i < width * height; i++) {
+                    written[offsetY * WIDTH + i] = rasterData.getElemFloatAt(i);
+                }
+            } finally {
+                endIo();
+            }
+        }
+
+        private void startIo() {
+            final int active = activeIoCount.incrementAndGet();
+            while (true) {
+                final int max = maxActiveIoCount.get();
+                if (active <= max || maxActiveIoCount.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            try {
+                // widens the window for concurrent calls
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void endIo() {
+            activeIoCount.decrementAndGet();
+        }
+    }
+}
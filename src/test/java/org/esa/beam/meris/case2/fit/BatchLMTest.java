@@ -0,0 +1,103 @@
+package org.esa.beam.meris.case2.fit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchLMTest {
+
+    private static final double[] X = {0.0, 0.5, 1.0, 1.5, 2.0, 2.5};
+
+    @Test
+    public void testPixelsConvergeIndependently() {
+        final double[][] truth = {{1.0, 2.0, 0.5}, {-0.5, 0.3, -1.2}};
+        final int count = truth[0].length;
+        final double[][] measurements = new double[X.length][count];
+        for (int i = 0; i < count; i++) {
+            for (int m = 0; m < X.length; m++) {
+                measurements[m][i] = truth[0][i] * Math.exp(truth[1][i] * X[m]);
+            }
+        }
+        final double[][] startPars = {{0.8, 1.5, 0.49}, {-0.3, 0.1, -1.19}};
+        final double[] variance = new double[X.length];
+        Arrays.fill(variance, 1.0);
+
+        final ExponentialModel model = new ExponentialModel();
+        final BatchLM lm = new BatchLM(model, count);
+        final BatchFitResult result = new BatchFitResult(2, count);
+        lm.fit(count, startPars, measurements, variance, result);
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(truth[0][i], result.parsfit[0][i], 1.0e-4);
+            assertEquals(truth[1][i], result.parsfit[1][i], 1.0e-4);
+            assertEquals(0.0, result.ChiSq[i], 1.0e-8);
+        }
+        // the third pixel starts close to the solution and leaves the active set first
+        assertTrue(result.niter[2] < result.niter[0]);
+        assertTrue(result.niter[2] < result.niter[1]);
+        // converged pixels are not evaluated any more
+        assertTrue(model.evaluationCount < count * (1 + Math.max(result.niter[0], result.niter[1])));
+    }
+
+    @Test
+    public void testParametersAreClipped() {
+        final double[][] measurements = new double[X.length][1];
+        for (int m = 0; m < X.length; m++) {
+            measurements[m][0] = 10.0 * Math.exp(0.1 * X[m]);
+        }
+        final double[][] startPars = {{1.0}, {0.1}};
+        final double[] variance = new double[X.length];
+        Arrays.fill(variance, 1.0);
+
+        final BatchLM lm = new BatchLM(new ExponentialModel(), 1);
+        final BatchFitResult result = new BatchFitResult(2, 1);
+        lm.fit(1, startPars, measurements, variance, result);
+
+        assertTrue(result.parsfit[0][0] <= 5.0);
+        assertTrue(result.ChiSq[0] > 0.0);
+    }
+
+    private static class ExponentialModel implements BatchModel4LM {
+
+        private int evaluationCount;
+
+        @Override
+        public int getNumPars() {
+            return 2;
+        }
+
+        @Override
+        public int getNumMeas() {
+            return X.length;
+        }
+
+        @Override
+        public double getParMin(int parIndex) {
+            return -5.0;
+        }
+
+        @Override
+        public double getParMax(int parIndex) {
+            return 5.0;
+        }
+
+        @Override
+        public void modelAndJacobian(int[] pixels, int count, double[][] pars, double[][] model,
+                                     double[][] jacobian) {
+            for (int k = 0; k < count; k++) {
+                final int i = pixels[k];
+                final double a = pars[0][i];
+                final double b = pars[1][i];
+                for (int m = 0; m < X.length; m++) {
+                    final double e = Math.exp(b * X[m]);
+                    model[m][i] = a * e;
+                    jacobian[m * 2][i] = e;
+                    jacobian[m * 2 + 1][i] = a * X[m] * e;
+                }
+                evaluationCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.esa.beam.meris.case2.fit;
+
+import org.esa.beam.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.meris.case2.MerisCase2BasisWaterOp;
+import org.esa.beam.meris.case2.water.RegionalWater;
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Test;
+
+import static org.esa.beam.meris.case2.water.WaterAlgorithm.*;
+import static org.junit.Assert.*;
+
+public class ChiSquareFittingTest {
+
+    private static final String RESOURCE_DIR = "/org/esa/beam/meris/case2/water/";
+    private static final double[] REFLEC = {
+            0.015459167, 0.015351999, 0.016962104, 0.013087227, 0.0091405315,
+            0.0020359613, 0.0011729593, 0.0011168025, 5.6830555E-4
+    };
+    private static final double SOLZEN = 23.255;
+    private static final double SATZEN = 16.845;
+    private static final double AZI_DIFF = MerisCase2BasisWaterOp.getAzimuthDifference(89.83, 283.79);
+
+    @Test
+    public void testInverseNetParsAreForwardNetParameters() {
+        final double[] targetValues = new double[TARGET_COUNT];
+        targetValues[TARGET_BB_SPM_INDEX] = 0.5 * BTSM_TO_SPM_FACTOR;
+        targetValues[TARGET_A_PIGMENT_INDEX] = 0.2;
+        targetValues[TARGET_A_GELBSTOFF_INDEX] = 0.1;
+
+        final double[] pars = new double[3];
+        ChiSquareFitting.getInverseNetPars(targetValues, pars);
+        assertEquals(Math.log(0.5), pars[0], 1.0e-12);
+        assertEquals(Math.log(0.2), pars[1], 1.0e-12);
+        assertEquals(Math.log(0.1), pars[2], 1.0e-12);
+    }
+
+    @Test
+    public void testLinearisedUncertaintyOnRegionalForwardNet() throws Exception {
+        final NNffbpAlphaTabFast inverseNet = loadNet("regional_inverse_test.net");
+        final NNffbpAlphaTabFast forwardNet = loadNet("regional_forward_test.net");
+        final RegionalWater regionalWater = new RegionalWater(4.0, 1.0, 1.73, 1.04, 21.0);
+        final double[] targetValues = new double[TARGET_COUNT];
+        regionalWater.perform(inverseNet, forwardNet, SOLZEN, SATZEN, AZI_DIFF, REFLEC, targetValues,
+                              ReflectanceEnum.RADIANCE_REFLECTANCES, null);
+
+        final ChiSquareFitting fitting = new ChiSquareFitting(1.0, 1.73, 1.04, 21.0, new MerisGLM(11, 8));
+        fitting.setLinearised(true);
+        fitting.perform(forwardNet, REFLEC, SOLZEN, SATZEN, AZI_DIFF, targetValues);
+
+        // the fit values are the inverse net solution, clipped to the training range of the forward net
+        final double[] inmin = forwardNet.getInmin();
+        final double[] inmax = forwardNet.getInmax();
+        final double[] pars = new double[3];
+        ChiSquareFitting.getInverseNetPars(targetValues, pars);
+        final int[] fitIndexes = {TARGET_B_TSM_FIT_INDEX, TARGET_A_PIG_FIT_INDEX, TARGET_A_GELBSTOFF_FIT_INDEX};
+        for (int p = 0; p < pars.length; p++) {
+            final double expected = Math.exp(Math.min(inmax[p + 3], Math.max(inmin[p + 3], pars[p])));
+            final double fit = targetValues[fitIndexes[p]];
+            assertEquals(expected, fit, 1.0e-10 * expected);
+            assertTrue(targetValues[fitIndexes[p] + 1] > fit);
+            assertTrue(targetValues[fitIndexes[p] + 2] < fit);
+        }
+        assertEquals(0, targetValues[TARGET_N_ITER_FIT_INDEX], 0.0);
+        final double chiSq = targetValues[TARGET_CHI_SQUARE_FIT_INDEX];
+        assertFalse(Double.isNaN(chiSq));
+
+        // a second pixel reuses the buffers and yields the same result
+        final double[] secondValues = targetValues.clone();
+        fitting.perform(forwardNet, REFLEC, SOLZEN, SATZEN, AZI_DIFF, secondValues);
+        assertArrayEquals(targetValues, secondValues, 0.0);
+    }
+
+    private static NNffbpAlphaTabFast loadNet(String name) throws Exception {
+        return new NNffbpAlphaTabFast(ChiSquareFittingTest.class.getResourceAsStream(RESOURCE_DIR + name));
+    }
+}
@@ -0,0 +1,30 @@
+package org.esa.beam.meris.case2.fit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CovarianceTest {
+
+    @Test
+    public void testWellConditionedMatrixIsInvertedDirectly() {
+        final double[][] a = {
+                {4.0, 1.0, 0.5},
+                {1.0, 3.0, 0.2},
+                {0.5, 0.2, 2.0}
+        };
+        final double[][] inverse = new double[3][3];
+        new Covariance(3).pseudoInverse(a, 1.0e-9, inverse);
+
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double product = 0.0;
+                for (int k = 0; k < 3; k++) {
+                    product += a[i][k] * inverse[k][j];
+                }
+                assertEquals(i == j ? 1.0 : 0.0, product, 1.0e-12);
+            }
+            assertEquals(inverse[i][(i + 1) % 3], inverse[(i + 1) % 3][i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.esa.beam.meris.case2.fit;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MerisBatchGLMTest {
+
+    private static final double VARIANCE = 1.5;
+    private static final double[] LOG_RLW = {
+            -5.3166, -5.3236, -5.2238, -5.4832, -5.8420, -7.3439, -7.6918, -8.3218
+    };
+    private static final double[][] GEOMETRY = {
+            {23.255, 16.845, 12.04}, {35.0, 5.0, 90.0}, {50.0, 30.0, 150.0}, {15.0, 25.0, 45.0}
+    };
+    private static final double[] SPECTRUM_OFFSET = {0.0, 0.3, -0.4, 0.8};
+    private static final double[][] START_PARS = {
+            {0.0, -2.5, -2.0}, {0.5, -1.0, -3.0}, {-1.0, 0.0, -1.0}, {1.0, -3.0, -2.5}
+    };
+
+    @Test
+    public void testBatchFitEqualsSinglePixelFit() throws Exception {
+        final NNffbpAlphaTabFast forwardNet = new NNffbpAlphaTabFast(getClass().getResourceAsStream(
+                "/org/esa/beam/meris/case2/water/regional_forward_test.net"));
+        final int count = GEOMETRY.length;
+        final double[] sun = new double[count];
+        final double[] view = new double[count];
+        final double[] azi = new double[count];
+        final double[][] startPars = new double[3][count];
+        final double[][] measurements = new double[LOG_RLW.length][count];
+        for (int i = 0; i < count; i++) {
+            sun[i] = GEOMETRY[i][0];
+            view[i] = GEOMETRY[i][1];
+            azi[i] = GEOMETRY[i][2];
+            for (int p = 0; p < 3; p++) {
+                startPars[p][i] = START_PARS[i][p];
+            }
+            for (int m = 0; m < LOG_RLW.length; m++) {
+                // the spectral shape changes with the offset, so that the pixels converge differently
+                measurements[m][i] = LOG_RLW[m] + SPECTRUM_OFFSET[i] * (1.0 + 0.1 * m);
+            }
+        }
+
+        final MerisBatchGLM batchModel = new MerisBatchGLM(11, 8);
+        batchModel.init(forwardNet, sun, view, azi);
+        final BatchLM batchLM = new BatchLM(batchModel, count);
+        final BatchFitResult batchResult = new BatchFitResult(3, count);
+        final double[] variance = new double[LOG_RLW.length];
+        Arrays.fill(variance, VARIANCE);
+        batchLM.fit(count, startPars, measurements, variance, batchResult);
+
+        final MerisGLM glm = new MerisGLM(11, 8);
+        glm.initSetOfFits(forwardNet, VARIANCE);
+        final ChiSquareFitting.Data4SingleFitInitialization init = new ChiSquareFitting.Data4SingleFitInitialization();
+        final FitSummary summary = new FitSummary(3);
+        for (int i = 0; i < count; i++) {
+            init.theta_sun_grad = sun[i];
+            init.theta_view_grad = view[i];
+            init.azi_diff_grad = azi[i];
+            init.ln_b_SPM_b_White = startPars[0][i];
+            init.ln_a_Chlor = startPars[1][i];
+            init.ln_a_Yellow_a_SPM = startPars[2][i];
+            for (int m = 0; m < LOG_RLW.length; m++) {
+                init.wlRefl[m] = measurements[m][i];
+            }
+            glm.initSingleFit(init);
+            glm.getMyLM().LMFit(summary);
+
+            assertEquals("niter of pixel " + i, summary.niter, batchResult.niter[i]);
+            assertEquals(summary.ChiSq, batchResult.ChiSq[i], 1.0e-9 * summary.ChiSq);
+            assertEquals(summary.startChiSq, batchResult.startChiSq[i], 1.0e-9 * summary.startChiSq);
+            for (int p = 0; p < 3; p++) {
+                assertEquals(summary.parsfit[p], batchResult.parsfit[p][i], 1.0e-8);
+                final double cov = summary.covParsDiagonal[p];
+                assertEquals(cov, batchResult.CovPars[p * 3 + p][i], 1.0e-6 * Math.abs(cov));
+            }
+        }
+    }
+}
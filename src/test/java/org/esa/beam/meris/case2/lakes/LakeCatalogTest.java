@@ -0,0 +1,59 @@
+package org.esa.beam.meris.case2.lakes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LakeCatalogTest {
+
+    private static LakeCatalog catalog;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        final String lakes = "# name<TAB>outline\n" +
+                             "Pyhaejaervi\tPOLYGON ((24 61, 26 61, 26 62, 24 62, 24 61), " +
+                             "(24.5 61.2, 25 61.2, 25 61.5, 24.5 61.5, 24.5 61.2))\n" +
+                             "\n" +
+                             "Vaenern\tMULTIPOLYGON (((12 58, 14 58, 14 59, 12 59, 12 58)), " +
+                             "((14.5 58, 15 58, 15 58.5, 14.5 58.5, 14.5 58)))\n";
+        catalog = LakeCatalog.read(new StringReader(lakes));
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        assertEquals(2, catalog.getLakeCount());
+        assertEquals("Pyhaejaervi", catalog.getLake(1).getName());
+        assertEquals(1, catalog.getLake(1).getIndex());
+        assertEquals("Vaenern", catalog.getLake(2).getName());
+        assertEquals(2, catalog.getLake(2).getIndex());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalidLine() throws Exception {
+        LakeCatalog.read(new StringReader("POLYGON ((24 61, 26 61, 26 62, 24 62, 24 61))\n"));
+    }
+
+    @Test
+    public void testFindLakeIndex() throws Exception {
+        assertEquals(1, catalog.findLakeIndex(25.5, 61.5));
+        assertEquals(0, catalog.findLakeIndex(24.7, 61.3)); // island
+        assertEquals(2, catalog.findLakeIndex(13.0, 58.5));
+        assertEquals(2, catalog.findLakeIndex(14.7, 58.2));
+        assertEquals(0, catalog.findLakeIndex(14.2, 58.2));
+        assertEquals(0, catalog.findLakeIndex(0.0, 0.0));
+    }
+
+    @Test
+    public void testGetLakes() throws Exception {
+        final List<Lake> lakes = catalog.getLakes(new Envelope(20.0, 30.0, 60.0, 65.0));
+        assertEquals(1, lakes.size());
+        assertEquals("Pyhaejaervi", lakes.get(0).getName());
+        assertTrue(catalog.getLakes(new Envelope(0.0, 1.0, 0.0, 1.0)).isEmpty());
+    }
+}
@@ -0,0 +1,52 @@
+package org.esa.beam.meris.case2.matchup;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MatchupReaderTest {
+
+    @Test
+    public void testRead() throws Exception {
+        final String csv = "Name;Latitude;Longitude;Time;Chl\n" +
+                           "st_1;54.5;8.25;2003-03-12T13:47:00;3.2\n" +
+                           "\n" +
+                           "st_2;54.75;7.5;;1.1\n";
+        final List<Matchup> matchups = MatchupReader.read(new StringReader(csv));
+        assertEquals(2, matchups.size());
+        assertEquals("st_1", matchups.get(0).getName());
+        assertEquals(54.5, matchups.get(0).getLat(), 1.0e-6);
+        assertEquals(8.25, matchups.get(0).getLon(), 1.0e-6);
+        assertNotNull(matchups.get(0).getTime());
+        assertEquals("st_2", matchups.get(1).getName());
+        assertNull(matchups.get(1).getTime());
+    }
+
+    @Test
+    public void testReadWithoutNameColumn() throws Exception {
+        final List<Matchup> matchups = MatchupReader.read(new StringReader("lat\tlon\n54.5\t8.25\n"));
+        assertEquals(1, matchups.size());
+        assertEquals("1", matchups.get(0).getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadWithoutLatitudeColumn() throws Exception {
+        MatchupReader.read(new StringReader("name,lon\nst_1,8.25\n"));
+    }
+
+    @Test
+    public void testIsInTimeWindow() throws Exception {
+        final long hour = 60 * 60 * 1000;
+        final Matchup matchup = new Matchup("st_1", 54.5, 8.25, new Date(10 * hour));
+        assertTrue(matchup.isInTimeWindow(new Date(9 * hour), new Date(11 * hour), 0));
+        assertFalse(matchup.isInTimeWindow(new Date(12 * hour), new Date(13 * hour), hour));
+        assertTrue(matchup.isInTimeWindow(new Date(12 * hour), new Date(13 * hour), 2 * hour));
+        assertFalse(matchup.isInTimeWindow(new Date(7 * hour), new Date(8 * hour), hour));
+        assertTrue(new Matchup("st_2", 54.5, 8.25, null).isInTimeWindow(new Date(0), new Date(1), 0));
+    }
+}
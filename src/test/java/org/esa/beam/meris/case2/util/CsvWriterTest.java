@@ -0,0 +1,34 @@
+package org.esa.beam.meris.case2.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class CsvWriterTest {
+
+    @Test
+    public void testRecords() throws IOException {
+        final StringWriter stringWriter = new StringWriter();
+        final CsvWriter writer = new CsvWriter(stringWriter);
+        writer.write("name");
+        writer.write("x");
+        writer.write("value");
+        writer.endRecord();
+        writer.write("Lake \"Inari\", north");
+        writer.write(12);
+        writer.write(0.25f);
+        writer.endRecord();
+        writer.write("Saimaa");
+        writer.write(-3);
+        writer.write(Double.NaN);
+        writer.endRecord();
+        writer.close();
+
+        assertEquals("name,x,value\r\n" +
+                     "\"Lake \"\"Inari\"\", north\",12,0.25\r\n" +
+                     "Saimaa,-3,NaN\r\n", stringWriter.toString());
+    }
+}
@@ -0,0 +1,193 @@
+package org.esa.beam.meris.case2.util;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RasterBlockMapTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 8;
+
+    private ExecutorService executor;
+    private AtomicInteger activeIoCount;
+    private AtomicInteger maxActiveIoCount;
+
+    @Before
+    public void before() {
+        executor = Executors.newFixedThreadPool(4);
+        activeIoCount = new AtomicInteger();
+        maxActiveIoCount = new AtomicInteger();
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testShortFinalBlockIsWrittenAtOnce() throws IOException {
+        final TestBand floatBand = new TestBand("float", ProductData.TYPE_FLOAT32);
+        final TestBand shortBand = new TestBand("short", ProductData.TYPE_INT16);
+        final RasterBlockMap blockMap = new RasterBlockMap(3);
+        blockMap.addRaster(floatBand, -1.0f);
+        blockMap.addRaster(shortBand);
+        final int floatHandle = blockMap.getHandle("float");
+
+        final int[] expectedLines = {3, 3, 2};
+        for (int block = 0; block < expectedLines.length; block++) {
+            assertEquals(expectedLines[block], blockMap.readBlock(3 * block));
+            assertEquals(expectedLines[block], blockMap.getActiveLineCount());
+            blockMap.writeBlock(3 * block);
+        }
+        // the lines beyond the raster hold the initial value
+        final float[] lastBlock = blockMap.getFloatData(floatHandle);
+        for (int i = 2 * WIDTH; i < lastBlock.length; i++) {
+            assertEquals(-1.0, lastBlock[i], 0.0);
+        }
+
+        for (TestBand band : new TestBand[]{floatBand, shortBand}) {
+            assertEquals(3, band.writes.size());
+            assertArrayEquals(new int[]{0, 3}, band.writes.get(0));
+            assertArrayEquals(new int[]{3, 3}, band.writes.get(1));
+            assertArrayEquals(new int[]{6, 2}, band.writes.get(2));
+            assertArrayEquals(band.values, band.written, 0.0f);
+        }
+    }
+
+    @Test
+    public void testReadAndWriteWithOneBlockInFlight() throws IOException {
+        final TestBand source = new TestBand("source", ProductData.TYPE_FLOAT32);
+        final TestBand target = new TestBand("target", ProductData.TYPE_FLOAT32);
+        final RasterBlockMap blockMap = new RasterBlockMap(3, executor, 1);
+        blockMap.addRaster(source);
+        blockMap.addRaster(target);
+        final int sourceHandle = blockMap.getHandle("source");
+        final int targetHandle = blockMap.getHandle("target");
+
+        for (int y = 0; y < HEIGHT; y += blockMap.getLinesPerBlock()) {
+            final int lineCount = blockMap.readBlock(y);
+            for (int i = 0; i < lineCount * WIDTH; i++) {
+                blockMap.setPixel(targetHandle, i, 2.0 * blockMap.getPixelFloat(sourceHandle, i));
+            }
+            blockMap.writeBlock(y);
+        }
+        blockMap.flush();
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(2.0 * source.values[i], target.written[i], 0.0);
+        }
+        assertArrayEquals(source.values, source.written, 0.0f);
+        // the reads and writes of the map are serialised
+        assertEquals(1, maxActiveIoCount.get());
+    }
+
+    @Test
+    public void testWriteFailureIsReported() throws IOException {
+        final TestBand band = new TestBand("band", ProductData.TYPE_FLOAT32);
+        band.failWrites = true;
+        final RasterBlockMap blockMap = new RasterBlockMap(3, executor, 1);
+        blockMap.addRaster(band);
+
+        blockMap.readBlock(0);
+        blockMap.writeBlock(0);
+        try {
+            blockMap.flush();
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertEquals("write failed", expected.getMessage());
+        }
+    }
+
+    private class TestBand extends Band {
+
+        private final float[] values;
+        private final float[] written;
+        private final List<int[]> writes;
+        private boolean failWrites;
+
+        private TestBand(String name, int dataType) {
+            super(name, dataType, WIDTH, HEIGHT);
+            values = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i + 1;
+            }
+            written = new float[WIDTH * HEIGHT];
+            writes = new ArrayList<int[]>();
+        }
+
+        @Override
+        public float[] readPixels(int x, int y, int w, int h, float[] pixels, ProgressMonitor pm) throws IOException {
+            startIo();
+            try {
+                System.arraycopy(values, y * WIDTH, pixels, 0, w * h);
+            } finally {
+                endIo();
+            }
+            return pixels;
+        }
+
+        @Override
+        public int[] readPixels(int x, int y, int w, int h, int[] pixels, ProgressMonitor pm) throws IOException {
+            startIo();
+            try {
+                for (int i = 0; i < w * h; i++) {
+                    pixels[i] = (int) values[y * WIDTH + i];
+                }
+            } finally {
+                endIo();
+            }
+            return pixels;
+        }
+
+        @Override
+        public void writeRasterData(int offsetX, int offsetY, int width, int height, ProductData rasterData,
+                                    ProgressMonitor pm) throws IOException {
+            startIo();
+            try {
+                if (failWrites) {
+                    throw new IOException("write failed");
+                }
+                assertEquals(width * height, rasterData.getNumElems());
+                writes.add(new int[]{offsetY, height});
+                for (int i = 0; i < width * height; i++) {
+                    written[offsetY * WIDTH + i] = rasterData.getElemFloatAt(i);
+                }
+            } finally {
+                endIo();
+            }
+        }
+
+        private void startIo() {
+            final int active = activeIoCount.incrementAndGet();
+            while (true) {
+                final int max = maxActiveIoCount.get();
+                if (active <= max || maxActiveIoCount.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            try {
+                // widens the window for concurrent calls
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void endIo() {
+            activeIoCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.esa.beam.meris.case2.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamingHistogramTest {
+
+    @Test
+    public void testMomentsAndQuantiles() {
+        final StreamingHistogram histogram = new StreamingHistogram(1.0e-3, 1.0e3, 1000, true);
+        final float[] values = new float[1001];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 1;
+        }
+        values[1000] = Float.NaN;
+        histogram.accumulate(values, values.length);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 1.0e-9);
+        assertEquals(1.0, histogram.getMinimum(), 0.0);
+        assertEquals(1000.0, histogram.getMaximum(), 0.0);
+        assertEquals(500.0, histogram.getQuantile(0.5), 500.0 * 0.015);
+        assertEquals(950.0, histogram.getQuantile(0.95), 950.0 * 0.015);
+        assertEquals(1.0, histogram.getQuantile(0.0), 0.0);
+        assertEquals(1000.0, histogram.getQuantile(1.0), 0.0);
+    }
+
+    @Test
+    public void testUnderflowAndOverflow() {
+        final StreamingHistogram histogram = new StreamingHistogram(0.0, 10.0, 10, false);
+        histogram.accumulate(new float[]{-1.0f, 0.5f, 9.5f, 10.0f, 20.0f}, 5);
+
+        assertEquals(5, histogram.getCount());
+        assertEquals(1, histogram.getUnderflowCount());
+        assertEquals(2, histogram.getOverflowCount());
+        final long[] bins = histogram.getBinCounts();
+        assertEquals(1, bins[0]);
+        assertEquals(1, bins[9]);
+        assertEquals(-1.0, histogram.getQuantile(0.1), 0.0);
+        assertEquals(20.0, histogram.getQuantile(0.9), 0.0);
+    }
+
+    @Test
+    public void testMerge() {
+        final StreamingHistogram histogram1 = new StreamingHistogram(0.0, 10.0, 10, false);
+        final StreamingHistogram histogram2 = new StreamingHistogram(0.0, 10.0, 10, false);
+        histogram1.accumulate(new float[]{1.5f, 2.5f}, 2);
+        histogram2.accumulate(new float[]{0.5f, 8.5f}, 2);
+
+        histogram1.merge(histogram2);
+        assertEquals(4, histogram1.getCount());
+        assertEquals(3.25, histogram1.getMean(), 1.0e-9);
+        assertEquals(0.5, histogram1.getMinimum(), 0.0);
+        assertEquals(8.5, histogram1.getMaximum(), 0.0);
+        assertEquals(1, histogram1.getBinCounts()[8]);
+    }
+
+    @Test
+    public void testConcurrentAccumulation() throws InterruptedException {
+        final StreamingHistogram histogram = new StreamingHistogram(0.0, 100.0, 100, false);
+        final float[] values = new float[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 0.5f;
+        }
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < 1000; k++) {
+                        histogram.accumulate(values, values.length);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, histogram.getCount());
+        assertEquals(50.0, histogram.getMean(), 1.0e-9);
+        for (long binCount : histogram.getBinCounts()) {
+            assertEquals(8000, binCount);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.esa.beam.meris.case2.util.nn;
+
+import org.esa.beam.nn.NNffbpAlphaTabFast;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NNOutputCacheTest {
+
+    private static final double[] LOG_RLW = {
+            -4.1696, -4.1765, -4.0768, -4.3361, -4.6950, -6.1968, -6.7481, -6.7972
+    };
+
+    private NNffbpAlphaTabFast net;
+
+    @Before
+    public void before() throws Exception {
+        net = new NNffbpAlphaTabFast(getClass().getResourceAsStream(
+                "/org/esa/beam/meris/case2/water/regional_inverse_test.net"));
+    }
+
+    @Test
+    public void testOutputsAreEvaluatedAtBinCentre() {
+        final NNOutputCache cache = new NNOutputCache(100, 1.0e-4);
+        final double[] binWidths = getBinWidths(1.0e-4);
+        for (int k = 0; k < 20; k++) {
+            final double[] centre = moveToBinCentre(createInput(10.0 + 3.0 * k, 5.0 + k, 7.0 * k, 0.02 * k),
+                                                    binWidths);
+            final double[] expected = net.calc(centre).clone();
+
+            // two inputs of the same bin get the output at the bin centre, whichever comes first
+            final double[] first = centre.clone();
+            final double[] second = centre.clone();
+            for (int i = 0; i < centre.length; i++) {
+                first[i] += (i % 2 == 0 ? 0.3 : -0.3) * binWidths[i];
+                second[i] -= (i % 2 == 0 ? 0.4 : -0.2) * binWidths[i];
+            }
+            assertArrayEquals(expected, cache.calc(net, first), 0.0);
+            assertArrayEquals(expected, cache.calc(net, second), 0.0);
+        }
+        assertEquals(20, cache.getHitCount());
+        assertEquals(20, cache.getMissCount());
+        assertEquals(20, cache.size());
+    }
+
+    @Test
+    public void testOutputErrorIsWithinLinearBound() {
+        final double precision = 1.0e-4;
+        final NNOutputCache cache = new NNOutputCache(100, precision);
+        final double[] binWidths = getBinWidths(precision);
+        for (int k = 0; k < 20; k++) {
+            final double[] input = createInput(12.0 + 2.5 * k, 3.0 + 1.5 * k, 9.0 * k, 0.015 * k);
+            for (int i = 0; i < input.length; i++) {
+                input[i] += 0.37 * binWidths[i];
+            }
+            final double[] exact = net.calc(input).clone();
+            final double[] cached = cache.calc(net, input);
+
+            // sum_i |d out_j / d in_i| * bin width / 2, with central differences for the derivatives
+            final double[] bound = new double[exact.length];
+            for (int i = 0; i < input.length; i++) {
+                final double[] plus = input.clone();
+                final double[] minus = input.clone();
+                plus[i] += binWidths[i];
+                minus[i] -= binWidths[i];
+                final double[] outPlus = net.calc(plus).clone();
+                final double[] outMinus = net.calc(minus).clone();
+                for (int j = 0; j < bound.length; j++) {
+                    bound[j] += Math.abs(outPlus[j] - outMinus[j]) / 2.0 / 2.0;
+                }
+            }
+            for (int j = 0; j < exact.length; j++) {
+                // 10% allowance for the curvature of the net within a bin
+                assertEquals(exact[j], cached[j], 1.1 * bound[j] + 1.0e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testNonFiniteInputsAreNotCached() {
+        final NNOutputCache cache = new NNOutputCache(100, 1.0e-4);
+        final double[] nanInput = createInput(30.0, 10.0, 90.0, 0.0);
+        nanInput[5] = Double.NaN;
+        cache.calc(net, nanInput);
+        cache.calc(net, nanInput);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // an input at the lower limit of the training range must not get the output of the NaN input
+        final double[] minInput = nanInput.clone();
+        minInput[5] = net.getInmin()[5];
+        moveToBinCentre(minInput, getBinWidths(1.0e-4));
+        assertArrayEquals(net.calc(minInput), cache.calc(net, minInput), 0.0);
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    private double[] getBinWidths(double precision) {
+        final double[] binWidths = new double[LOG_RLW.length + 3];
+        for (int i = 0; i < binWidths.length; i++) {
+            binWidths[i] = precision * (net.getInmax()[i] - net.getInmin()[i]);
+        }
+        return binWidths;
+    }
+
+    private double[] moveToBinCentre(double[] input, double[] binWidths) {
+        for (int i = 0; i < input.length; i++) {
+            final double inmin = net.getInmin()[i];
+            input[i] = inmin + Math.round((input[i] - inmin) / binWidths[i]) * binWidths[i];
+        }
+        return input;
+    }
+
+    private static double[] createInput(double solzen, double satzen, double aziDiff, double logRLwOffset) {
+        final double[] input = new double[LOG_RLW.length + 3];
+        input[0] = solzen;
+        input[1] = satzen;
+        input[2] = aziDiff;
+        for (int i = 0; i < LOG_RLW.length; i++) {
+            input[i + 3] = LOG_RLW[i] + logRLwOffset;
+        }
+        return input;
+    }
+}